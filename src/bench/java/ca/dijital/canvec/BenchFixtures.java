@@ -0,0 +1,289 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the inputs for the benchmarks: entry names, archives and output
+ * that look like CanVec's. Everything is generated from a fixed seed, so each
+ * run measures the same data.
+ */
+final class BenchFixtures {
+
+	/**
+	 * Feature codes of the kind used in the jobs file.
+	 */
+	static final String[] FEATURES = { "1000019", "1000029", "1010009",
+			"1060009", "1080019", "1090009", "1150009", "1170009", "1180009",
+			"1190009", "1200029", "1210019", "1250009", "1260009", "1280009",
+			"1290009", "1330009", "1350029", "1350049", "1350059", "1360009",
+			"1390009", "1400009", "1410009", "1420009", "1440009", "1450009",
+			"1460009", "1470009", "1480009", "1500009", "1550009", "1560009",
+			"1570009", "1580009", "1590009", "1620009", "1630009", "1690009",
+			"2000009", "2010009", "2030009", "2040009", "2240009", "2600009" };
+
+	/**
+	 * The extensions of a shapefile and its companion files.
+	 */
+	static final String[] EXTENSIONS = { ".shp", ".shx", ".dbf", ".prj" };
+
+	private static final long SEED = 20130101L;
+
+	private BenchFixtures() {
+	}
+
+	/**
+	 * Quiets the extractor's logging, which would otherwise be measured.
+	 */
+	static void quiet() {
+		java.util.logging.Logger.getLogger("ca.dijital.canvec").setLevel(
+				Level.WARNING);
+	}
+
+	/**
+	 * Returns the name of a map sheet, like 021m07.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	static String getSheet(int index) {
+		int block = 21 + index / 256;
+		char letter = (char) ('a' + (index / 16) % 16);
+		int sheet = index % 16 + 1;
+		return String.format("%03d%c%02d", block, letter, sheet);
+	}
+
+	/**
+	 * Returns the name of a shapefile's entry in a sheet's archive, like
+	 * 021M07_1_0_XX_1180009_0.shp.
+	 * 
+	 * @param sheet
+	 * @param feature
+	 * @param extension
+	 * @return
+	 */
+	static String getEntryName(String sheet, String feature, String extension) {
+		return sheet.toUpperCase() + "_1_0_XX_" + feature + "_0" + extension;
+	}
+
+	/**
+	 * Returns the names of every entry in the given number of sheets' archives.
+	 * 
+	 * @param sheets
+	 * @return
+	 */
+	static String[] getEntryNames(int sheets) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < sheets; ++i) {
+			for (String feature : FEATURES) {
+				for (String extension : EXTENSIONS)
+					names.add(getEntryName(getSheet(i), feature, extension));
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Returns jobs for the first count feature codes.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	static List<ExtractorJob> getJobs(int count) {
+		List<ExtractorJob> jobs = new ArrayList<ExtractorJob>();
+		for (int i = 0; i < count; ++i) {
+			ExtractorJob job = new ExtractorJob();
+			job.setPattern(FEATURES[i % FEATURES.length]);
+			job.setSchemaName("public");
+			job.setTableName("canvec_" + FEATURES[i % FEATURES.length]);
+			jobs.add(job);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Returns data which compresses about as well as a shapefile: records of
+	 * coordinates which change a little from one to the next.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	static byte[] getShapeData(int size) {
+		Random random = new Random(SEED);
+		byte[] data = new byte[size];
+		long x = Double.doubleToLongBits(-66.5);
+		long y = Double.doubleToLongBits(45.25);
+		for (int i = 0; i + 16 <= size; i += 16) {
+			x += random.nextInt(1 << 20);
+			y += random.nextInt(1 << 20);
+			for (int j = 0; j < 8; ++j) {
+				data[i + j] = (byte) (x >>> (8 * j));
+				data[i + 8 + j] = (byte) (y >>> (8 * j));
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Returns SQL of the kind written by shp2pgsql.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	static byte[] getSql(int size) {
+		Random random = new Random(SEED);
+		StringBuilder sql = new StringBuilder(size + 256);
+		int gid = 0;
+		while (sql.length() < size) {
+			sql.append("INSERT INTO \"public\".\"canvec_1180009\" (\"code\",\"valdatum\",\"geom\") VALUES ('1180009','");
+			sql.append(1990 + random.nextInt(30)).append("0101','0102000020E6100000");
+			for (int i = 0; i < 4; ++i)
+				sql.append(Long.toHexString(random.nextLong() | Long.MIN_VALUE));
+			sql.append("');\n");
+			if (++gid % 1000 == 0)
+				sql.append("COMMIT;\nBEGIN;\n");
+		}
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; ++i)
+			bytes[i] = (byte) sql.charAt(i);
+		return bytes;
+	}
+
+	/**
+	 * Writes a sheet's archive, with a shapefile and its companion files for
+	 * each of the first features.
+	 * 
+	 * @param dir
+	 * @param sheet
+	 * @param features
+	 * @param shapeSize
+	 *            The size of each .shp entry; the others are smaller.
+	 * @return
+	 * @throws IOException
+	 */
+	static File createArchive(File dir, String sheet, int features,
+			int shapeSize) throws IOException {
+		String[] codes = new String[features];
+		int[] sizes = new int[features];
+		for (int i = 0; i < features; ++i) {
+			codes[i] = FEATURES[i % FEATURES.length];
+			sizes[i] = shapeSize;
+		}
+		return createArchive(dir, sheet, codes, sizes);
+	}
+
+	/**
+	 * Writes a sheet's archive, with a shapefile and its companion files for
+	 * each of the given features. The .shx and .dbf entries are an eighth of
+	 * the size of the .shp.
+	 * 
+	 * @param dir
+	 * @param sheet
+	 * @param features
+	 *            The features' codes.
+	 * @param shapeSizes
+	 *            The size of each feature's .shp entry.
+	 * @return
+	 * @throws IOException
+	 */
+	static File createArchive(File dir, String sheet, String[] features,
+			int[] shapeSizes) throws IOException {
+		File file = new File(dir, "canvec_" + sheet + "_shp.zip");
+		int max = 0;
+		for (int size : shapeSizes)
+			max = Math.max(max, size);
+		byte[] data = getShapeData(max);
+		ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			for (int i = 0; i < features.length; ++i) {
+				for (String extension : EXTENSIONS) {
+					out.putNextEntry(new ZipEntry(getEntryName(sheet,
+							features[i], extension)));
+					int size = ".shp".equals(extension) ? shapeSizes[i]
+							: ".prj".equals(extension) ? Math.min(512,
+									shapeSizes[i]) : shapeSizes[i] / 8;
+					out.write(data, 0, size);
+					out.closeEntry();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Writes data to a file.
+	 * 
+	 * @param file
+	 * @param data
+	 * @throws IOException
+	 */
+	static void write(File file, byte[] data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	static File createTempDir() throws IOException {
+		File dir = File.createTempFile("canvec_bench_", "");
+		if (!dir.delete() || !dir.mkdirs())
+			throw new IOException("Failed to create " + dir + ".");
+		return dir;
+	}
+
+	/**
+	 * Deletes a file, or a directory and everything in it.
+	 * 
+	 * @param file
+	 */
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
+	/**
+	 * An output stream which only counts what is written to it.
+	 */
+	static class CountingOutputStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the results of a benchmark run with the stored baseline, and
+ * reports any benchmark that has become slower by more than the allowed
+ * fraction. Both are JMH's CSV results. A benchmark missing from either is
+ * reported but not counted as a regression.
+ * 
+ * Timings are only comparable on the machine where the baseline was recorded,
+ * so regressions fail the run only when failOnRegression is true.
+ * 
+ * Usage: BenchmarkBaseline &lt;results&gt; &lt;baseline&gt; [threshold]
+ * [failOnRegression]
+ */
+public class BenchmarkBaseline {
+
+	/**
+	 * A result: its mode, score and unit.
+	 */
+	private static class Result {
+
+		private String mode;
+		private double score;
+		private String unit;
+
+		Result(String mode, double score, String unit) {
+			this.mode = mode;
+			this.score = score;
+			this.unit = unit;
+		}
+
+		/**
+		 * Returns how much slower this result is than another, as a fraction;
+		 * negative if faster.
+		 */
+		double slowdown(Result base) {
+			// A throughput is better when higher, a time when lower.
+			if ("thrpt".equals(mode))
+				return base.score / score - 1;
+			return score / base.score - 1;
+		}
+	}
+
+	/**
+	 * Reads JMH's CSV results, keyed by benchmark and parameters.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static Map<String, Result> read(File file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			List<String> header = split(in.readLine());
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().length() == 0)
+					continue;
+				List<String> row = split(line);
+				StringBuilder key = new StringBuilder(row.get(0).substring(
+						row.get(0).lastIndexOf('.', row.get(0).lastIndexOf('.') - 1) + 1));
+				for (int i = 0; i < header.size() && i < row.size(); ++i) {
+					if (header.get(i).startsWith("Param: ")
+							&& row.get(i).length() > 0)
+						key.append(' ').append(header.get(i).substring(7))
+								.append('=').append(row.get(i));
+				}
+				results.put(key.toString(), new Result(
+						row.get(header.indexOf("Mode")), Double.parseDouble(row
+								.get(header.indexOf("Score"))), row.get(header
+								.indexOf("Unit"))));
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Splits a line of CSV, with optional quotes.
+	 */
+	private static List<String> split(String line) {
+		List<String> fields = new ArrayList<String>();
+		if (line == null)
+			return fields;
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); ++i) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: BenchmarkBaseline <results> <baseline> [threshold] [failOnRegression]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+		boolean failOnRegression = args.length > 3
+				&& Boolean.parseBoolean(args[3]);
+		Map<String, Result> results = read(new File(args[0]));
+		File baselineFile = new File(args[1]);
+		if (!baselineFile.exists()) {
+			System.out.println("There is no baseline; copy " + args[0]
+					+ " to " + args[1] + " to make these results the baseline.");
+			return;
+		}
+		Map<String, Result> baseline = read(baselineFile);
+		int regressions = 0;
+		for (Map.Entry<String, Result> e : results.entrySet()) {
+			Result base = baseline.get(e.getKey());
+			Result result = e.getValue();
+			if (base == null || !base.unit.equals(result.unit)) {
+				System.out.println(String.format("%-52s %12.3f %-8s (no baseline)",
+						e.getKey(), result.score, result.unit));
+				continue;
+			}
+			double slowdown = result.slowdown(base);
+			boolean regressed = slowdown > threshold;
+			if (regressed)
+				++regressions;
+			System.out.println(String.format("%-52s %12.3f %-8s %+7.1f%%%s",
+					e.getKey(), result.score, result.unit, slowdown * 100,
+					regressed ? "  REGRESSION" : ""));
+		}
+		for (String key : baseline.keySet()) {
+			if (!results.containsKey(key))
+				System.out.println(String.format("%-52s (not run)", key));
+		}
+		if (regressions > 0) {
+			System.out.println(regressions + " benchmarks are more than "
+					+ Math.round(threshold * 100) + "% slower than the baseline.");
+			if (failOnRegression)
+				System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a fake CanVec tree, so that the extractor can be run end to end, at
+ * scale, without the real data or PostGIS.
+ *
+ * The tree is laid out like CanVec's, by NTS map sheet: canvec/021/m/021m07/
+ * canvec_021m07_shp.zip. Each archive holds a .shp, .shx, .dbf and .prj for
+ * some of the features, chosen at random with the given density. The sizes of
+ * the .shp entries vary around the given size, and the last feature's are
+ * eight times larger, as waterbodies are in CanVec, so a job that dominates
+ * the run comes last in the jobs file.
+ *
+ * Next to the tree are a jobs file with a job for each feature, and a stub
+ * shp2pgsql in bin/, which writes SQL statements about twice the size of the
+ * shapefile, as shp2pgsql does. Everything is generated from the seed, so the
+ * same arguments always give the same tree.
+ *
+ * Usage: CanvecFixtureGenerator &lt;dir&gt; [--sheets n] [--features n]
+ * [--size bytes] [--density fraction] [--seed n]
+ */
+public class CanvecFixtureGenerator {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(CanvecFixtureGenerator.class);
+
+	private static final int HEAVY_FACTOR = 8;
+	private static final int SAMPLE_SIZE = 65536;
+
+	private int sheets = 64;
+	private int features = 10;
+	private int shapeSize = 262144;
+	private double density = 0.7;
+	private long seed = 1;
+
+	/**
+	 * Sets the number of map sheets, and so of archives.
+	 *
+	 * @param sheets
+	 */
+	public void setSheets(int sheets) {
+		this.sheets = sheets;
+	}
+
+	/**
+	 * Sets the number of features, and so of jobs.
+	 *
+	 * @param features
+	 */
+	public void setFeatures(int features) {
+		if (features < 1 || features > BenchFixtures.FEATURES.length)
+			throw new IllegalArgumentException("There can be 1 to "
+					+ BenchFixtures.FEATURES.length + " features.");
+		this.features = features;
+	}
+
+	/**
+	 * Sets the typical size of a .shp entry, in bytes.
+	 *
+	 * @param shapeSize
+	 */
+	public void setShapeSize(int shapeSize) {
+		this.shapeSize = shapeSize;
+	}
+
+	/**
+	 * Sets the chance that a sheet has a given feature.
+	 *
+	 * @param density
+	 */
+	public void setDensity(double density) {
+		this.density = density;
+	}
+
+	/**
+	 * Sets the seed from which everything is generated.
+	 *
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Builds the tree, jobs file and stub in the given directory.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public void generate(File dir) throws IOException {
+		File canvecDir = new File(dir, "canvec");
+		Random random = new Random(seed);
+		long total = 0;
+		for (int i = 0; i < sheets; ++i) {
+			String sheet = BenchFixtures.getSheet(i);
+			File sheetDir = new File(canvecDir, sheet.substring(0, 3)
+					+ File.separator + sheet.charAt(3) + File.separator + sheet);
+			if (!sheetDir.exists() && !sheetDir.mkdirs())
+				throw new IOException("Failed to create " + sheetDir + ".");
+			List<String> codes = new ArrayList<String>();
+			List<Integer> sizes = new ArrayList<Integer>();
+			for (int f = 0; f < features; ++f) {
+				if (random.nextDouble() >= density)
+					continue;
+				// Sizes are spread over about a factor of 10 either way.
+				double size = shapeSize * Math.exp(random.nextGaussian());
+				if (f == features - 1)
+					size *= HEAVY_FACTOR;
+				codes.add(BenchFixtures.FEATURES[f]);
+				sizes.add((int) Math.max(1024,
+						Math.min(Integer.MAX_VALUE / 2, size)));
+			}
+			int[] shapeSizes = new int[sizes.size()];
+			for (int j = 0; j < shapeSizes.length; ++j)
+				shapeSizes[j] = sizes.get(j);
+			File archive = BenchFixtures.createArchive(sheetDir, sheet,
+					codes.toArray(new String[codes.size()]), shapeSizes);
+			total += archive.length();
+		}
+		writeStub(new File(dir, "bin"));
+		writeJobs(dir, canvecDir);
+		logger.info("Wrote {} archives, {} bytes, to {}.", new Object[] {
+				sheets, total, canvecDir });
+	}
+
+	/**
+	 * Writes the stub shp2pgsql and the sample of SQL that it repeats.
+	 */
+	private void writeStub(File binDir) throws IOException {
+		if (!binDir.exists() && !binDir.mkdirs())
+			throw new IOException("Failed to create " + binDir + ".");
+		BenchFixtures.write(new File(binDir, "sample.sql"),
+				BenchFixtures.getSql(SAMPLE_SIZE));
+		File stub = new File(binDir, "shp2pgsql");
+		Writer out = new FileWriter(stub);
+		try {
+			out.write("#!/bin/sh\n"
+					+ "# A stand-in for shp2pgsql, written by CanvecFixtureGenerator.\n"
+					+ "# Writes SQL about twice the size of the shapefile.\n"
+					+ "dir=$(dirname \"$0\")\n"
+					+ "drop=; index=; shp=; prev=\n"
+					+ "for a; do\n"
+					+ "\tcase $a in -d) drop=1;; -I) index=1;; esac\n"
+					+ "\tshp=$prev; prev=$a\n"
+					+ "done\n"
+					+ "table=$prev\n"
+					+ "[ -f \"$shp\" ] || { echo \"$shp: no such file\" >&2; exit 1; }\n"
+					+ "if [ -n \"$drop\" ]; then\n"
+					+ "\techo \"DROP TABLE IF EXISTS $table;\"\n"
+					+ "\techo \"CREATE TABLE $table (gid serial, code varchar(7), valdatum varchar(8));\"\n"
+					+ "\techo \"SELECT AddGeometryColumn('${table%%.*}','${table#*.}','geom','4326','MULTILINESTRING',2);\"\n"
+					+ "fi\n"
+					+ "echo 'BEGIN;'\n"
+					+ "n=$(( $(wc -c < \"$shp\") * 2 / " + SAMPLE_SIZE + " + 1 ))\n"
+					+ "while [ $n -gt 0 ]; do cat \"$dir/sample.sql\"; n=$((n - 1)); done\n"
+					+ "echo 'COMMIT;'\n"
+					+ "[ -n \"$index\" ] && echo \"CREATE INDEX ON $table USING GIST (geom);\"\n"
+					+ "exit 0\n");
+		} finally {
+			out.close();
+		}
+		if (!stub.setExecutable(true))
+			throw new IOException("Failed to make " + stub + " executable.");
+	}
+
+	/**
+	 * Writes a jobs file with a job for each feature.
+	 */
+	private void writeJobs(File dir, File canvecDir) throws IOException {
+		File outDir = new File(dir, "out");
+		File tempDir = new File(dir, "tmp");
+		if (!outDir.exists() && !outDir.mkdirs())
+			throw new IOException("Failed to create " + outDir + ".");
+		Writer out = new FileWriter(new File(dir, "extractor.jobs"));
+		try {
+			out.write("# Written by CanvecFixtureGenerator. Run the extractor with\n"
+					+ "# " + new File(dir, "bin").getAbsolutePath()
+					+ " first on the PATH.\n\n");
+			out.write("@canvecDir " + canvecDir.getAbsolutePath() + "\n");
+			out.write("@tempDir " + tempDir.getAbsolutePath() + "\n");
+			out.write("@numWorkers 4\n\n");
+			for (int f = 0; f < features; ++f) {
+				String code = BenchFixtures.FEATURES[f];
+				out.write(code + " public canvec_" + code + " "
+						+ new File(outDir, "canvec_" + code + ".sql").getAbsolutePath()
+						+ "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			logger.error("Usage: CanvecFixtureGenerator <dir> [--sheets n] [--features n] [--size bytes] [--density fraction] [--seed n]");
+			System.exit(1);
+		}
+		CanvecFixtureGenerator generator = new CanvecFixtureGenerator();
+		for (int i = 1; i < args.length; ++i) {
+			String arg = args[i];
+			try {
+				if (i + 1 == args.length)
+					throw new IllegalArgumentException("It has no value.");
+				String value = args[++i];
+				if ("--sheets".equals(arg)) {
+					generator.setSheets(Integer.parseInt(value));
+				} else if ("--features".equals(arg)) {
+					generator.setFeatures(Integer.parseInt(value));
+				} else if ("--size".equals(arg)) {
+					generator.setShapeSize(Integer.parseInt(value));
+				} else if ("--density".equals(arg)) {
+					generator.setDensity(Double.parseDouble(value));
+				} else if ("--seed".equals(arg)) {
+					generator.setSeed(Long.parseLong(value));
+				} else {
+					throw new IllegalArgumentException("It isn't an option.");
+				}
+			} catch (Exception e) {
+				logger.error("The argument {} was invalid: {}", arg,
+						e.getMessage());
+				System.exit(1);
+			}
+		}
+		try {
+			generator.generate(new File(args[0]));
+		} catch (IOException e) {
+			logger.error("Failed to generate the fixture.", e);
+			System.exit(1);
+		}
+	}
+}
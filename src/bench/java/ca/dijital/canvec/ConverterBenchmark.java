@@ -0,0 +1,81 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures starting a converter process and piping its output, by running
+ * cat on a file of SQL in place of shp2pgsql.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConverterBenchmark {
+
+	/**
+	 * The size of the process's output, in bytes.
+	 */
+	@Param({ "65536", "8388608" })
+	public int size;
+
+	/**
+	 * The launcher: direct or helper.
+	 */
+	@Param({ "direct", "helper" })
+	public String launcher;
+
+	private File dir;
+	private File shapeFile;
+	private ExtractorJob job;
+	private ProcessShapeConverter converter;
+	private Launcher delegate;
+
+	@Setup
+	public void setUp() throws IOException {
+		BenchFixtures.quiet();
+		dir = BenchFixtures.createTempDir();
+		final File sqlFile = new File(dir, "out.sql");
+		BenchFixtures.write(sqlFile, BenchFixtures.getSql(size));
+		shapeFile = new File(dir, BenchFixtures.getEntryName("021m07",
+				BenchFixtures.FEATURES[0], ".shp"));
+		job = BenchFixtures.getJobs(1).get(0);
+		delegate = "helper".equals(launcher) ? new HelperLauncher()
+				: new DirectLauncher();
+		converter = new ProcessShapeConverter();
+		converter.setLauncher(new Launcher() {
+			public Process start(List<String> command) throws IOException {
+				return delegate.start(Arrays.asList("cat",
+						sqlFile.getPath()));
+			}
+
+			public void close() {
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		delegate.close();
+		BenchFixtures.delete(dir);
+	}
+
+	@Benchmark
+	public long pipe() throws IOException, InterruptedException {
+		BenchFixtures.CountingOutputStream out = new BenchFixtures.CountingOutputStream();
+		converter.convert(shapeFile, job, "latin1", 0, out);
+		return out.getCount();
+	}
+}
@@ -0,0 +1,126 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the cost of handing work out: running workers on the
+ * {@link JobScheduler}, and passing extracted shapefiles to a worker through
+ * its {@link ExtractorJob}. The work itself does nothing, so only the
+ * dispatch is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+
+	private static final int COUNT = 256;
+
+	/**
+	 * The number of worker threads.
+	 */
+	@Param({ "1", "8" })
+	public int workers;
+
+	private JobScheduler scheduler;
+	private ExecutorService producer;
+	private File[] files;
+
+	@Setup
+	public void setUp() {
+		scheduler = new JobScheduler(workers, new JobScheduler.Listener() {
+			public void workerFinished(ExtractorWorker worker) {
+			}
+		});
+		producer = Executors.newSingleThreadExecutor();
+		files = new File[COUNT];
+		for (int i = 0; i < COUNT; ++i)
+			files[i] = new File(BenchFixtures.getEntryName(
+					BenchFixtures.getSheet(i), BenchFixtures.FEATURES[0],
+					".shp"));
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		scheduler.shutdown();
+		producer.shutdown();
+	}
+
+	/**
+	 * Runs workers which do nothing; the time per worker.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public boolean schedule() throws InterruptedException {
+		ExtractorJob job = new ExtractorJob();
+		for (int i = 0; i < COUNT; ++i)
+			scheduler.submit(new IdleWorker(job));
+		return scheduler.awaitCompletion();
+	}
+
+	/**
+	 * Passes shapefiles from another thread to this one, taking them as the
+	 * worker does, by polling and waiting for a change; the time per
+	 * shapefile.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public int handOff() throws Exception {
+		final ExtractorJob job = new ExtractorJob();
+		Future<?> offered = producer.submit(new Runnable() {
+			public void run() {
+				int first = job.planShapeFiles(files.length);
+				for (int i = 0; i < files.length; ++i)
+					job.offerShapeFile(files[i], first + i);
+				job.seal();
+			}
+		});
+		int count = 0;
+		try {
+			while (true) {
+				boolean sealed = job.isSealed();
+				File next = job.pollShapeFile();
+				if (next == null) {
+					if (sealed)
+						break;
+					job.awaitChange();
+					continue;
+				}
+				count += job.getShapeFileIndex(next) >= 0 ? 1 : 0;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		offered.get();
+		return count;
+	}
+
+	/**
+	 * A worker which does nothing.
+	 */
+	private static class IdleWorker extends ExtractorWorker {
+
+		IdleWorker(ExtractorJob job) {
+			super(null, job, false);
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+}
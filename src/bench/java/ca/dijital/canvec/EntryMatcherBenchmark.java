@@ -0,0 +1,46 @@
+package ca.dijital.canvec;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures matching an archive's entry names against the jobs' patterns,
+ * which is done for every entry of every archive.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EntryMatcherBenchmark {
+
+	/**
+	 * The number of jobs.
+	 */
+	@Param({ "3", "45" })
+	public int jobs;
+
+	private EntryMatcher matcher;
+	private String[] names;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		matcher = new EntryMatcher(BenchFixtures.getJobs(jobs));
+		names = BenchFixtures.getEntryNames(16);
+	}
+
+	@Benchmark
+	public List<ExtractorJob> match() {
+		if (++next == names.length)
+			next = 0;
+		return matcher.match(names[next]);
+	}
+}
@@ -0,0 +1,58 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures inflating a shapefile's entry from an archive to disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExtractBenchmark {
+
+	/**
+	 * The size of the entry, in bytes.
+	 */
+	@Param({ "1048576", "16777216" })
+	public int size;
+
+	private File dir;
+	private ZipArchive archive;
+	private ZipEntry entry;
+	private File outFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = BenchFixtures.createTempDir();
+		File file = BenchFixtures.createArchive(dir, "021m07", 1, size);
+		archive = new ZipArchive(new FileSource(file), file.getName());
+		entry = archive.getEntry(BenchFixtures.getEntryName("021m07",
+				BenchFixtures.FEATURES[0], ".shp"));
+		outFile = new File(dir, entry.getName());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		archive.close();
+		BenchFixtures.delete(dir);
+	}
+
+	@Benchmark
+	public long inflate() throws IOException {
+		Extractor.saveZipEntry(archive, entry, outFile);
+		return outFile.length();
+	}
+}
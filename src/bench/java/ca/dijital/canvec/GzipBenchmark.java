@@ -0,0 +1,66 @@
+package ca.dijital.canvec;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures compressing 16MB of SQL output with
+ * {@link ParallelGzipOutputStream}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GzipBenchmark {
+
+	private static final int SIZE = 16 << 20;
+	private static final int WRITE_SIZE = 65536;
+
+	/**
+	 * The number of compression threads.
+	 */
+	@Param({ "1", "4" })
+	public int threads;
+
+	/**
+	 * The compression level.
+	 */
+	@Param({ "1", "6" })
+	public int level;
+
+	private byte[] data;
+	private ExecutorService pool;
+
+	@Setup
+	public void setUp() {
+		data = BenchFixtures.getSql(SIZE);
+		pool = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public long compress() throws IOException {
+		BenchFixtures.CountingOutputStream count = new BenchFixtures.CountingOutputStream();
+		ParallelGzipOutputStream out = new ParallelGzipOutputStream(count,
+				pool, level, 1 << 20, threads * 2);
+		for (int i = 0; i < data.length; i += WRITE_SIZE)
+			out.write(data, i, Math.min(WRITE_SIZE, data.length - i));
+		out.close();
+		return count.getCount();
+	}
+}
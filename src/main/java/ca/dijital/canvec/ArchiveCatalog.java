@@ -0,0 +1,387 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cached catalogue of the archives under the CanVec directory. Each
+ * directory is recorded with its modification time, its sub-directories and
+ * its archives. When the catalogue is refreshed, a directory whose
+ * modification time hasn't changed is not listed again; only the changed
+ * parts of the tree are re-walked. Sub-directories are always visited, since
+ * a change deep in the tree doesn't touch the times of the directories above
+ * it.
+ *
+ * Directories are visited by a pool of threads, so that many listings are in
+ * flight at once; on a network file system each listing is a round trip. A
+ * directory which can't be listed is skipped with a warning, or its cached
+ * record is used if it has one.
+ *
+ * The catalogue is saved as text. The first line holds the time of the scan,
+ * and each directory is written as a D line followed by its children:
+ *
+ * <pre>
+ * T	scanTime
+ * D	lastModified	path
+ * S	name
+ * A	lastModified	length	name
+ * </pre>
+ */
+public class ArchiveCatalog {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(ArchiveCatalog.class);
+
+	/**
+	 * A directory modified this close to the time of the last scan might
+	 * have changed again within the resolution of its timestamp, so it is
+	 * listed again.
+	 */
+	private static final long TIMESTAMP_SLOP = 2000;
+
+	/**
+	 * The number of times a listing is attempted before giving up.
+	 */
+	private static final int LIST_ATTEMPTS = 3;
+
+	/**
+	 * The directories from the loaded catalogue, by path.
+	 */
+	private Map<String, Directory> loaded;
+
+	/**
+	 * The directories visited by the last refresh, by path.
+	 */
+	private Map<String, Directory> current;
+
+	private long scanTime;
+	private AtomicInteger listed;
+	private AtomicInteger changed;
+
+	/**
+	 * Construct an empty {@link ArchiveCatalog}.
+	 */
+	public ArchiveCatalog() {
+		loaded = new HashMap<String, Directory>();
+		current = new ConcurrentHashMap<String, Directory>();
+		listed = new AtomicInteger();
+		changed = new AtomicInteger();
+	}
+
+	/**
+	 * Loads a catalogue from a file. If the file doesn't exist, or is not a
+	 * catalogue, an empty one is returned.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static ArchiveCatalog load(File file) {
+		ArchiveCatalog catalog = new ArchiveCatalog();
+		if (!file.exists())
+			return catalog;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"));
+			try {
+				String line = in.readLine();
+				if (line == null || !line.startsWith("T\t")) {
+					logger.info("The file table is in an old format. Rebuilding it.");
+					return catalog;
+				}
+				catalog.scanTime = Long.parseLong(line.substring(2));
+				Directory dir = null;
+				while ((line = in.readLine()) != null) {
+					String[] parts = line.split("\t", 4);
+					if ("D".equals(parts[0])) {
+						dir = new Directory(parts[2], Long.parseLong(parts[1]));
+						catalog.loaded.put(dir.path, dir);
+					} else if ("S".equals(parts[0])) {
+						dir.subdirs.add(parts[1]);
+					} else if ("A".equals(parts[0])) {
+						dir.archives.add(new Archive(parts[3], Long
+								.parseLong(parts[1]), Long.parseLong(parts[2])));
+					} else {
+						throw new IOException("Unrecognized line: " + line);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			logger.warn("Failed to read the file table. Rebuilding it.", e);
+			catalog.loaded.clear();
+		}
+		return catalog;
+	}
+
+	/**
+	 * Brings the catalogue up to date with the tree under the given root, and
+	 * returns the archives found, in the order of a depth-first walk with
+	 * each directory's entries sorted by name, so that the order doesn't
+	 * depend on the file system.
+	 *
+	 * @param root
+	 * @param threads
+	 *            The number of directories to visit at once.
+	 * @return
+	 * @throws IOException
+	 */
+	public List<File> refresh(File root, int threads) throws IOException {
+		long now = System.currentTimeMillis();
+		current.clear();
+		listed.set(0);
+		changed.set(0);
+		List<File> archives = new ArrayList<File>();
+		root = root.getAbsoluteFile();
+		if (root.isDirectory()) {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(
+					threads, 1));
+			AtomicInteger pending = new AtomicInteger();
+			CountDownLatch done = new CountDownLatch(1);
+			try {
+				visit(root, pool, pending, done);
+				done.await();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while walking "
+						+ root + ".");
+			} finally {
+				pool.shutdownNow();
+			}
+			collect(root, archives);
+		}
+		scanTime = now;
+		logger.info("Listed " + listed + " of " + current.size()
+				+ " directories; found " + changed
+				+ " new or changed archives.");
+		return archives;
+	}
+
+	/**
+	 * Returns the number of directories which were listed by the last
+	 * refresh, because they were new or had changed.
+	 *
+	 * @return
+	 */
+	public int getListedCount() {
+		return listed.get();
+	}
+
+	/**
+	 * Saves the directories visited by the last refresh. The catalogue is
+	 * written to a temporary file of its own first, so a failed save can't
+	 * leave a partial catalogue behind, and processes sharing the catalogue
+	 * don't write over each other's.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp",
+				file.getAbsoluteFile().getParentFile());
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(tmp), "UTF-8"));
+		try {
+			out.write("T\t" + scanTime + "\n");
+			for (Directory dir : current.values()) {
+				out.write("D\t" + dir.lastModified + "\t" + dir.path + "\n");
+				for (String sub : dir.subdirs)
+					out.write("S\t" + sub + "\n");
+				for (Archive archive : dir.archives)
+					out.write("A\t" + archive.lastModified + "\t"
+							+ archive.length + "\t" + archive.name + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		// Renaming over the old file fails on some platforms.
+		if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Failed to save the file table " + file
+					+ ".");
+		}
+	}
+
+	/**
+	 * Queues a visit to a directory. The latch is released when there are no
+	 * visits left.
+	 *
+	 * @param path
+	 * @param pool
+	 * @param pending
+	 *            The number of queued or running visits.
+	 * @param done
+	 */
+	private void visit(final File path, final ExecutorService pool,
+			final AtomicInteger pending, final CountDownLatch done) {
+		pending.incrementAndGet();
+		pool.execute(new Runnable() {
+			public void run() {
+				try {
+					Directory dir = visit(path);
+					if (dir != null) {
+						for (String sub : dir.subdirs)
+							visit(new File(path, sub), pool, pending, done);
+					}
+				} catch (RuntimeException e) {
+					logger.warn("Failed to visit the directory " + path + ".",
+							e);
+				} finally {
+					if (pending.decrementAndGet() == 0)
+						done.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Visits a directory, listing it if it is new or has changed. Returns the
+	 * directory's record, or null if it has gone or couldn't be listed.
+	 *
+	 * @param path
+	 * @return
+	 */
+	private Directory visit(File path) {
+		Directory old = loaded.get(path.getPath());
+		long lastModified = path.lastModified();
+		// The directory has gone.
+		if (lastModified == 0 && !path.exists())
+			return null;
+		Directory dir = old;
+		if (old == null || old.lastModified != lastModified
+				|| lastModified >= scanTime - TIMESTAMP_SLOP) {
+			dir = list(path, lastModified, old);
+			if (dir == null) {
+				if (old == null) {
+					logger.warn("Failed to list the directory {}. Skipping it.",
+							path);
+					return null;
+				}
+				logger.warn(
+						"Failed to list the directory {}. Using the cached listing.",
+						path);
+				dir = old;
+			}
+		}
+		current.put(dir.path, dir);
+		return dir;
+	}
+
+	/**
+	 * Adds the archives in a directory, and then those in its
+	 * sub-directories, to the list.
+	 *
+	 * @param path
+	 * @param archives
+	 */
+	private void collect(File path, List<File> archives) {
+		Directory dir = current.get(path.getPath());
+		if (dir == null)
+			return;
+		List<String> names = new ArrayList<String>();
+		for (Archive archive : dir.archives)
+			names.add(archive.name);
+		Collections.sort(names);
+		for (String name : names)
+			archives.add(new File(path, name));
+		List<String> subdirs = new ArrayList<String>(dir.subdirs);
+		Collections.sort(subdirs);
+		for (String sub : subdirs)
+			collect(new File(path, sub), archives);
+	}
+
+	/**
+	 * Lists a directory and records its archives and sub-directories.
+	 * Archives which weren't in the old record, or whose size or time have
+	 * changed, are counted.
+	 *
+	 * @param path
+	 * @param lastModified
+	 * @param old
+	 *            The directory's previous record, or null.
+	 * @return The new record, or null if the directory couldn't be listed.
+	 */
+	private Directory list(File path, long lastModified, Directory old) {
+		// listFiles returns null on any error; try again in case it was
+		// transient.
+		File[] files = null;
+		for (int i = 0; files == null && i < LIST_ATTEMPTS; ++i)
+			files = path.listFiles();
+		if (files == null)
+			return null;
+		listed.incrementAndGet();
+		Map<String, Archive> previous = new HashMap<String, Archive>();
+		if (old != null) {
+			for (Archive archive : old.archives)
+				previous.put(archive.name, archive);
+		}
+		Directory dir = new Directory(path.getPath(), lastModified);
+		for (File sub : files) {
+			if (sub.isDirectory()) {
+				dir.subdirs.add(sub.getName());
+			} else if (sub.getName().toLowerCase().endsWith(".zip")) {
+				Archive archive = new Archive(sub.getName(),
+						sub.lastModified(), sub.length());
+				Archive before = previous.get(archive.name);
+				if (before == null || before.lastModified != archive.lastModified
+						|| before.length != archive.length)
+					changed.incrementAndGet();
+				dir.archives.add(archive);
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * A directory's record.
+	 */
+	private static class Directory {
+
+		private String path;
+		private long lastModified;
+		private List<String> subdirs;
+		private List<Archive> archives;
+
+		Directory(String path, long lastModified) {
+			this.path = path;
+			this.lastModified = lastModified;
+			subdirs = new ArrayList<String>();
+			archives = new ArrayList<Archive>();
+		}
+	}
+
+	/**
+	 * An archive's record.
+	 */
+	private static class Archive {
+
+		private String name;
+		private long lastModified;
+		private long length;
+
+		Archive(String name, long lastModified, long length) {
+			this.name = name;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
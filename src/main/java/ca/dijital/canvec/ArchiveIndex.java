@@ -0,0 +1,320 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent index of the entries in each CanVec archive. With the index,
+ * the job patterns can be matched without opening the archives, and archives
+ * which contain nothing of interest are never read.
+ *
+ * An archive's record is trusted as long as the archive's size and
+ * modification time are unchanged. The index is saved as a compact binary
+ * file, which is read through a buffer when it is loaded:
+ *
+ * <pre>
+ * int magic, int version, int archiveCount
+ * archive: string path, long lastModified, long length, int entryCount
+ * entry: string name, long size, long crc
+ * </pre>
+ *
+ * Strings are an unsigned short length followed by UTF-8 bytes. Instances are
+ * safe to use from several threads at once. Several processes can share an
+ * index, if they save it with {@link #saveMerged(File)}.
+ */
+public class ArchiveIndex {
+
+	private static Logger logger = LoggerFactory.getLogger(ArchiveIndex.class);
+
+	private static final int MAGIC = 0x43564958;
+	private static final int VERSION = 1;
+
+	/**
+	 * Records loaded from the index file, by path.
+	 */
+	private Map<String, Archive> loaded;
+
+	/**
+	 * Records used or created during this run, by path. Only these are
+	 * saved, so archives which have gone away are dropped from the index.
+	 */
+	private Map<String, Archive> current;
+
+	private volatile boolean changed;
+
+	/**
+	 * Construct an empty {@link ArchiveIndex}.
+	 */
+	public ArchiveIndex() {
+		loaded = new ConcurrentHashMap<String, Archive>();
+		current = new ConcurrentHashMap<String, Archive>();
+	}
+
+	/**
+	 * Loads an index from a file. If the file doesn't exist, or can't be
+	 * read, an empty index is returned.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static ArchiveIndex load(File file) {
+		ArchiveIndex index = new ArchiveIndex();
+		if (!file.exists())
+			return index;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 65536));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					throw new IOException("Unrecognized index file.");
+				int count = in.readInt();
+				for (int i = 0; i < count; ++i) {
+					Archive archive = new Archive(getString(in), in.readLong(),
+							in.readLong());
+					int entries = in.readInt();
+					for (int j = 0; j < entries; ++j)
+						archive.entries.add(new Entry(getString(in), in
+								.readLong(), in.readLong()));
+					index.loaded.put(archive.path, archive);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			logger.warn("The archive index is truncated. Rebuilding it.");
+			index.loaded.clear();
+		} catch (IOException e) {
+			logger.warn("Failed to read the archive index. Rebuilding it.", e);
+			index.loaded.clear();
+		}
+		logger.info("Loaded archive index with {} archives.",
+				index.loaded.size());
+		return index;
+	}
+
+	/**
+	 * Returns the record for an archive, or null if there isn't one or the
+	 * archive has changed since it was indexed.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public Archive get(File file) {
+		Archive archive = loaded.get(file.getAbsolutePath());
+		if (archive == null || archive.lastModified != file.lastModified()
+				|| archive.length != file.length())
+			return null;
+		current.put(archive.path, archive);
+		return archive;
+	}
+
+	/**
+	 * Adds or replaces the record for an archive.
+	 *
+	 * @param archive
+	 */
+	public void put(Archive archive) {
+		current.put(archive.path, archive);
+		changed = true;
+	}
+
+	/**
+	 * Saves the records used or created during this run, if anything has
+	 * changed. The index is written to a temporary file first, so a failed
+	 * run can't leave a partial index behind.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		if (!changed && current.size() == loaded.size())
+			return;
+		write(file, new ArrayList<Archive>(current.values()));
+	}
+
+	/**
+	 * Saves the records used or created during this run, if any were
+	 * created, together with those in the file as it is now which this run
+	 * didn't use, since other processes may have added them. The file is
+	 * locked while it is read and written.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void saveMerged(File file) throws IOException {
+		if (!changed)
+			return;
+		RandomAccessFile lockFile = new RandomAccessFile(file.getPath()
+				+ ".lock", "rw");
+		try {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				List<Archive> archives = new ArrayList<Archive>(
+						current.values());
+				for (Archive archive : load(file).loaded.values()) {
+					if (!current.containsKey(archive.path))
+						archives.add(archive);
+				}
+				write(file, archives);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Writes the records to a temporary file of its own, and renames it over
+	 * the index, so a failed run can't leave a partial index behind.
+	 */
+	private void write(File file, List<Archive> archives) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file
+				.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(archives.size());
+			for (Archive archive : archives) {
+				putString(out, archive.path);
+				out.writeLong(archive.lastModified);
+				out.writeLong(archive.length);
+				out.writeInt(archive.entries.size());
+				for (Entry entry : archive.entries) {
+					putString(out, entry.name);
+					out.writeLong(entry.size);
+					out.writeLong(entry.crc);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		// Renaming over the old file fails on some platforms.
+		if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Failed to save the archive index " + file
+					+ ".");
+		}
+		logger.info("Saved archive index with {} archives.", archives.size());
+	}
+
+	private static String getString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void putString(DataOutputStream out, String str)
+			throws IOException {
+		byte[] bytes = str.getBytes("UTF-8");
+		if (bytes.length > 0xffff)
+			throw new IOException("Name too long for the archive index: "
+					+ str);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * The indexed contents of an archive.
+	 */
+	public static class Archive {
+
+		private String path;
+		private long lastModified;
+		private long length;
+		private List<Entry> entries;
+
+		/**
+		 * Construct an empty record for an archive, stamped with its current
+		 * size and modification time.
+		 *
+		 * @param file
+		 */
+		public Archive(File file) {
+			this(file.getAbsolutePath(), file.lastModified(), file.length());
+		}
+
+		private Archive(String path, long lastModified, long length) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.length = length;
+			entries = new ArrayList<Entry>();
+		}
+
+		/**
+		 * Adds an entry from the archive.
+		 *
+		 * @param entry
+		 */
+		public void addEntry(ZipEntry entry) {
+			entries.add(new Entry(entry.getName(), entry.getSize(), entry
+					.getCrc()));
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public List<Entry> getEntries() {
+			return Collections.unmodifiableList(entries);
+		}
+	}
+
+	/**
+	 * An entry in an indexed archive.
+	 */
+	public static class Entry {
+
+		private String name;
+		private long size;
+		private long crc;
+
+		Entry(String name, long size, long crc) {
+			this.name = name;
+			this.size = size;
+			this.crc = crc;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the uncompressed size, or -1 if unknown.
+		 *
+		 * @return
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns the CRC-32 of the entry, or -1 if unknown.
+		 *
+		 * @return
+		 */
+		public long getCrc() {
+			return crc;
+		}
+	}
+}
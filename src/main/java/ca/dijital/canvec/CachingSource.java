@@ -0,0 +1,135 @@
+package ca.dijital.canvec;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link SeekableSource} which reads another source in fixed-size blocks
+ * and keeps the most recently used blocks in memory. Small reads, like those
+ * made while parsing an archive's headers, are served from the cache, so a
+ * slow source sees a few large reads instead of many small ones.
+ *
+ * When the reads run through the source in order, each miss fetches more
+ * blocks ahead of the one requested, doubling up to a limit, so a long entry
+ * is read in a handful of round trips. A read elsewhere resets the window to
+ * a single block.
+ *
+ * Reads are serialized; a cache is meant for one archive, read by one thread
+ * at a time.
+ */
+public class CachingSource implements SeekableSource {
+
+	private SeekableSource source;
+	private int blockSize;
+	private int maxReadAhead;
+	private Map<Long, byte[]> blocks;
+	private long size = -1;
+
+	/**
+	 * The block after the last fetch; a miss here continues a sequential
+	 * read.
+	 */
+	private long nextBlock = -1;
+	private int window = 1;
+
+	/**
+	 * Construct a {@link CachingSource}.
+	 *
+	 * @param source
+	 * @param blockSize
+	 *            The size of a block, in bytes.
+	 * @param maxBlocks
+	 *            The number of blocks to keep.
+	 * @param maxReadAhead
+	 *            The largest number of blocks fetched at once.
+	 */
+	public CachingSource(SeekableSource source, int blockSize,
+			final int maxBlocks, int maxReadAhead) {
+		if (blockSize < 1 || maxBlocks < 1 || maxReadAhead < 1)
+			throw new IllegalArgumentException(
+					"The block size and counts must be positive.");
+		this.source = source;
+		this.blockSize = blockSize;
+		this.maxReadAhead = Math.min(maxReadAhead, maxBlocks);
+		blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > maxBlocks;
+			}
+		};
+	}
+
+	public synchronized long size() throws IOException {
+		if (size < 0)
+			size = source.size();
+		return size;
+	}
+
+	public synchronized int read(long position, byte[] buf, int off, int len)
+			throws IOException {
+		if (position >= size())
+			return -1;
+		int total = 0;
+		while (total < len && position < size) {
+			long index = position / blockSize;
+			byte[] block = getBlock(index);
+			int start = (int) (position - index * blockSize);
+			int n = Math.min(len - total, block.length - start);
+			if (n <= 0)
+				break;
+			System.arraycopy(block, start, buf, off + total, n);
+			total += n;
+			position += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns a block, fetching it and any blocks to be read ahead if it
+	 * isn't cached.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] getBlock(long index) throws IOException {
+		byte[] block = blocks.get(index);
+		if (block != null)
+			return block;
+		window = index == nextBlock ? Math.min(window * 2, maxReadAhead) : 1;
+		long lastBlock = (size - 1) / blockSize;
+		int count = 1;
+		while (count < window && index + count <= lastBlock
+				&& !blocks.containsKey(index + count))
+			++count;
+		long start = index * blockSize;
+		int length = (int) Math.min((long) count * blockSize, size - start);
+		byte[] data = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = source.read(start + read, data, read, length - read);
+			if (n < 0)
+				throw new IOException("Unexpected end of source.");
+			read += n;
+		}
+		for (int i = 0; i < count; ++i) {
+			int from = i * blockSize;
+			int to = Math.min(from + blockSize, length);
+			byte[] b = new byte[to - from];
+			System.arraycopy(data, from, b, 0, b.length);
+			blocks.put(index + i, b);
+			if (i == 0)
+				block = b;
+		}
+		nextBlock = index + count;
+		return block;
+	}
+
+	public void close() throws IOException {
+		blocks.clear();
+		source.close();
+	}
+}
@@ -0,0 +1,207 @@
+package ca.dijital.canvec;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes the conversion and extraction pools while a run is going, so that the
+ * number of workers needn't be tuned by hand for each machine.
+ *
+ * It is run every few seconds. The number of conversion threads is found by
+ * hill climbing on throughput, the bytes converted per second, which is only
+ * measured while conversions are queued, since otherwise it is limited by
+ * input. If the last step improved throughput, another is taken in the same
+ * direction; if it made throughput worse, it is undone. If throughput didn't
+ * change, but the time per shapefile went up, or threads were just added,
+ * the extra threads are only contending, and one is taken away. Once the size
+ * has held for a while, one more thread is tried, in case conditions have
+ * changed.
+ *
+ * The extraction pool grows while conversions are starved for input and
+ * archives are waiting, and shrinks while conversions are well behind.
+ *
+ * Both pools stay within their bounds.
+ */
+public class ConcurrencyController implements Runnable {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(ConcurrencyController.class);
+
+	/**
+	 * Changes in throughput or latency smaller than this fraction are noise.
+	 */
+	private static final double TOLERANCE = 0.05;
+
+	/**
+	 * The number of steps a steady size is held before another thread is
+	 * tried.
+	 */
+	private static final int PROBE_STEPS = 6;
+
+	/**
+	 * Conversions are well behind when this many are queued per thread.
+	 */
+	private static final int BACKLOG_FACTOR = 4;
+
+	private ThreadPoolExecutor converters;
+	private ThreadPoolExecutor extractors;
+	private Metrics metrics;
+	private int minWorkers;
+	private int maxWorkers;
+	private int maxExtractThreads;
+
+	private long lastTime;
+	private long lastBytes;
+	private long lastCount;
+	private double lastSeconds;
+	private double lastThroughput = -1;
+	private double lastLatency = -1;
+	private int lastStep;
+	private int held;
+
+	/**
+	 * Construct a {@link ConcurrencyController}.
+	 *
+	 * @param converters
+	 *            The conversion pool.
+	 * @param extractors
+	 *            The extraction pool.
+	 * @param metrics
+	 *            The run's metrics, from which throughput and queues are read,
+	 *            and to which the pools' sizes are reported.
+	 * @param minWorkers
+	 * @param maxWorkers
+	 *            The bounds of the conversion pool.
+	 * @param maxExtractThreads
+	 *            The most extraction threads.
+	 */
+	public ConcurrencyController(ThreadPoolExecutor converters,
+			ThreadPoolExecutor extractors, Metrics metrics, int minWorkers,
+			int maxWorkers, int maxExtractThreads) {
+		this.converters = converters;
+		this.extractors = extractors;
+		this.metrics = metrics;
+		this.minWorkers = minWorkers;
+		this.maxWorkers = maxWorkers;
+		this.maxExtractThreads = maxExtractThreads;
+		lastTime = System.nanoTime();
+	}
+
+	/**
+	 * Samples the metrics since the last run, and adjusts the pools.
+	 */
+	public void run() {
+		try {
+			long now = System.nanoTime();
+			Metrics.Timer convert = metrics.getConvert();
+			long bytes = convert.getBytes();
+			long count = convert.getCount();
+			double seconds = convert.getSeconds();
+			double elapsed = (now - lastTime) / 1e9;
+			double throughput = elapsed > 0 ? (bytes - lastBytes) / elapsed
+					: 0;
+			double latency = count > lastCount ? (seconds - lastSeconds)
+					/ (count - lastCount) : -1;
+			lastTime = now;
+			lastBytes = bytes;
+			lastCount = count;
+			lastSeconds = seconds;
+			adjust(throughput, latency, metrics.getConversionQueue(),
+					metrics.getExtractionQueue());
+		} catch (RuntimeException e) {
+			// An exception would cancel the periodic task.
+			logger.warn("Failed to adjust the pools.", e);
+		}
+	}
+
+	/**
+	 * Adjusts the pools, given what was measured over the last interval.
+	 *
+	 * @param throughput
+	 *            The bytes converted per second.
+	 * @param latency
+	 *            The seconds per shapefile converted, or -1 if none were.
+	 * @param conversionQueue
+	 *            The number of shapefiles waiting to be converted.
+	 * @param extractionQueue
+	 *            The number of archives waiting to be extracted.
+	 */
+	void adjust(double throughput, double latency, long conversionQueue,
+			long extractionQueue) {
+		int workers = converters.getCorePoolSize();
+		int step = 0;
+		if (conversionQueue >= workers && latency >= 0) {
+			if (lastThroughput < 0) {
+				// Start by trying another thread.
+				step = 1;
+			} else if (throughput > lastThroughput * (1 + TOLERANCE)) {
+				// The last step helped; take another. If there wasn't one,
+				// the work got easier, and nothing is learned.
+				step = lastStep;
+			} else if (throughput < lastThroughput * (1 - TOLERANCE)) {
+				// The last step hurt; undo it.
+				step = -lastStep;
+			} else if (lastStep > 0
+					|| (lastLatency >= 0 && latency > lastLatency
+							* (1 + TOLERANCE))) {
+				// More threads did no more work.
+				step = -1;
+			} else if (++held >= PROBE_STEPS) {
+				step = 1;
+			}
+			lastThroughput = throughput;
+			lastLatency = latency;
+		} else {
+			// Conversion is limited by its input, so its throughput says
+			// nothing about its size.
+			lastThroughput = -1;
+			lastLatency = -1;
+		}
+		int size = Math.max(minWorkers, Math.min(maxWorkers, workers + step));
+		lastStep = size - workers;
+		if (lastStep != 0) {
+			held = 0;
+			resize(converters, size);
+			metrics.setConversionThreads(size);
+			logger.info(String.format(Locale.ROOT,
+					"Conversion threads: %d -> %d (%.1f MB/s, %.2fs per shapefile).",
+					workers, size, throughput / 1e6, latency));
+		}
+
+		// Extraction keeps conversion fed, but not too far ahead of it.
+		int extractThreads = extractors.getCorePoolSize();
+		int extractStep = 0;
+		if (conversionQueue < size && extractionQueue > 0)
+			extractStep = 1;
+		else if (conversionQueue > (long) size * BACKLOG_FACTOR)
+			extractStep = -1;
+		int extractSize = Math.max(1,
+				Math.min(maxExtractThreads, extractThreads + extractStep));
+		if (extractSize != extractThreads) {
+			resize(extractors, extractSize);
+			metrics.setExtractionThreads(extractSize);
+			logger.info("Extraction threads: {} -> {}.", extractThreads,
+					extractSize);
+		}
+	}
+
+	/**
+	 * Changes the number of threads in a fixed-size pool. Threads beyond the
+	 * new size finish their tasks before they stop.
+	 *
+	 * @param pool
+	 * @param size
+	 */
+	static void resize(ThreadPoolExecutor pool, int size) {
+		if (size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the attribute records of a dBase (.dbf) file. Values are returned as
+ * strings, trimmed of surrounding white space, in the same way as shapelib;
+ * null values are returned as null.
+ */
+public class DbfReader {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * A field in a dBase file.
+	 */
+	public static class Field {
+
+		private String name;
+		private char type;
+		private int width;
+		private int decimals;
+
+		/**
+		 * Construct a {@link Field}.
+		 *
+		 * @param name
+		 * @param type
+		 * @param width
+		 * @param decimals
+		 */
+		public Field(String name, char type, int width, int decimals) {
+			this.name = name;
+			this.type = type;
+			this.width = width;
+			this.decimals = decimals;
+		}
+
+		/**
+		 * Returns the field name as stored in the file.
+		 *
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the dBase type code, like C, N, F, D or L.
+		 *
+		 * @return
+		 */
+		public char getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the width of the field in bytes.
+		 *
+		 * @return
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * Returns the number of decimal places.
+		 *
+		 * @return
+		 */
+		public int getDecimals() {
+			return decimals;
+		}
+	}
+
+	private DataInputStream in;
+	private Charset charset;
+	private List<Field> fields;
+	private int numRecords;
+	private int recordLength;
+	private int record;
+	private byte[] buf;
+	private String[] values;
+	private boolean deleted;
+
+	/**
+	 * Opens a dBase file. Strings are decoded with the given character set.
+	 *
+	 * @param dbfFile
+	 * @param charset
+	 * @throws IOException
+	 */
+	public DbfReader(File dbfFile, String charset) throws IOException {
+		this.charset = Charset.forName(charset);
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				dbfFile), 65536));
+		try {
+			byte[] header = new byte[32];
+			in.readFully(header);
+			ByteBuffer bb = ByteBuffer.wrap(header).order(
+					ByteOrder.LITTLE_ENDIAN);
+			numRecords = bb.getInt(4);
+			int headerLength = bb.getShort(8) & 0xffff;
+			recordLength = bb.getShort(10) & 0xffff;
+			List<Field> fields = new ArrayList<Field>();
+			int read = 32;
+			byte[] desc = new byte[32];
+			while (read + 32 < headerLength) {
+				in.readFully(desc, 0, 1);
+				read += 1;
+				if (desc[0] == 0x0d)
+					break;
+				in.readFully(desc, 1, 31);
+				read += 31;
+				int len = 0;
+				while (len < 11 && desc[len] != 0)
+					++len;
+				String name = new String(desc, 0, len, "US-ASCII").trim();
+				fields.add(new Field(name, (char) desc[11], desc[16] & 0xff,
+						desc[17] & 0xff));
+			}
+			this.fields = Collections.unmodifiableList(fields);
+			// Skip the terminator and anything else before the records.
+			long skip = headerLength - read;
+			while (skip > 0) {
+				long n = in.skip(skip);
+				if (n <= 0)
+					throw new EOFException();
+				skip -= n;
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		buf = new byte[recordLength];
+		values = new String[fields.size()];
+	}
+
+	/**
+	 * Returns the fields.
+	 *
+	 * @return
+	 */
+	public List<Field> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Returns the number of records declared in the header.
+	 *
+	 * @return
+	 */
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Advances to the next record. Returns false if there are no more.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if (record >= numRecords)
+			return false;
+		try {
+			in.readFully(buf);
+		} catch (EOFException e) {
+			return false;
+		}
+		++record;
+		deleted = buf[0] == '*';
+		int offset = 1;
+		for (int i = 0; i < values.length; ++i) {
+			Field field = fields.get(i);
+			values[i] = parse(field, offset);
+			offset += field.width;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the current record is marked as deleted.
+	 *
+	 * @return
+	 */
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * Returns the value of a field in the current record, or null.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public String getValue(int field) {
+		return values[field];
+	}
+
+	/**
+	 * Decodes a field value from the record buffer.
+	 *
+	 * @param field
+	 * @param offset
+	 * @return
+	 */
+	private String parse(Field field, int offset) {
+		int start = offset;
+		int end = Math.min(offset + field.width, buf.length);
+		// Trim spaces and nulls.
+		while (start < end && (buf[start] == ' ' || buf[start] == 0))
+			++start;
+		while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == 0))
+			--end;
+		if (start == end)
+			return null;
+		switch (field.type) {
+		case 'N':
+		case 'F':
+			// Numeric fields filled with asterisks are null.
+			if (buf[start] == '*')
+				return null;
+			return new String(buf, start, end - start, ASCII);
+		case 'D':
+			if (buf[start] == '0' && end - start == 8
+					&& "00000000".equals(new String(buf, start, 8, ASCII)))
+				return null;
+			return new String(buf, start, end - start, ASCII);
+		case 'L':
+			if (buf[start] == '?')
+				return null;
+			return new String(buf, start, end - start, ASCII);
+		default:
+			return new String(buf, start, end - start, charset);
+		}
+	}
+
+	/**
+	 * Close the reader.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
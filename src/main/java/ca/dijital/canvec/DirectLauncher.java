@@ -0,0 +1,21 @@
+package ca.dijital.canvec;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link Launcher} which starts processes from the JVM itself. On some
+ * systems this forks the JVM, which needs as much free memory as the JVM's
+ * heap.
+ */
+public class DirectLauncher implements Launcher {
+
+	public Process start(List<String> command) throws IOException {
+		Process proc = new ProcessBuilder(command).start();
+		proc.getOutputStream().close();
+		return proc;
+	}
+
+	public void close() {
+	}
+}
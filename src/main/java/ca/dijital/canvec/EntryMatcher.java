@@ -0,0 +1,176 @@
+package ca.dijital.canvec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Matches archive entry names against the patterns of a set of
+ * {@link ExtractorJob}s. All patterns are compiled once, when the matcher is
+ * constructed. Plain feature codes, like 1180009, are stored in a character
+ * trie so that a single scan of the entry name finds every literal pattern it
+ * contains. Patterns that use regular expression syntax are compiled once and
+ * tested individually.
+ *
+ * Matching has the same semantics as {@link java.util.regex.Matcher#find()}:
+ * an entry belongs to a job if the job's pattern occurs anywhere in the name.
+ */
+public class EntryMatcher {
+
+	/**
+	 * Characters which give a pattern regular expression semantics.
+	 */
+	private static final String REGEX_CHARS = "\\[](){}.*+?^$|";
+
+	private List<ExtractorJob> jobs;
+	private Node root;
+	private List<Pattern> regexPatterns;
+	private List<Integer> regexJobs;
+
+	/**
+	 * Construct an {@link EntryMatcher} for the given list of jobs.
+	 *
+	 * @param jobs
+	 */
+	public EntryMatcher(List<ExtractorJob> jobs) {
+		this.jobs = new ArrayList<ExtractorJob>(jobs);
+		root = new Node();
+		regexPatterns = new ArrayList<Pattern>();
+		regexJobs = new ArrayList<Integer>();
+		for (int i = 0; i < this.jobs.size(); ++i) {
+			String pattern = this.jobs.get(i).getPattern();
+			if (isLiteral(pattern)) {
+				root.add(pattern, 0, i);
+			} else {
+				regexPatterns.add(Pattern.compile(pattern));
+				regexJobs.add(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the pattern contains no regular expression syntax, and
+	 * can be matched as a plain string.
+	 *
+	 * @param pattern
+	 * @return
+	 */
+	static boolean isLiteral(String pattern) {
+		if (pattern == null || pattern.length() == 0)
+			return false;
+		for (int i = 0; i < pattern.length(); ++i) {
+			if (REGEX_CHARS.indexOf(pattern.charAt(i)) > -1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the list of jobs whose patterns match the entry name, in the
+	 * order the jobs were given to the constructor. The list is empty if
+	 * there are no matches.
+	 *
+	 * @param entryName
+	 * @return
+	 */
+	public List<ExtractorJob> match(String entryName) {
+		boolean[] matched = null;
+		int len = entryName.length();
+		// Walk the trie from each position in the name.
+		for (int start = 0; start < len; ++start) {
+			Node node = root;
+			for (int i = start; i < len && node != null; ++i) {
+				node = node.get(entryName.charAt(i));
+				if (node != null && node.jobs != null) {
+					if (matched == null)
+						matched = new boolean[jobs.size()];
+					for (int job : node.jobs)
+						matched[job] = true;
+				}
+			}
+		}
+		// Fall back to the regular expressions.
+		for (int i = 0; i < regexPatterns.size(); ++i) {
+			int job = regexJobs.get(i);
+			if ((matched == null || !matched[job])
+					&& regexPatterns.get(i).matcher(entryName).find()) {
+				if (matched == null)
+					matched = new boolean[jobs.size()];
+				matched[job] = true;
+			}
+		}
+		if (matched == null)
+			return Collections.emptyList();
+		List<ExtractorJob> result = new ArrayList<ExtractorJob>(2);
+		for (int i = 0; i < matched.length; ++i) {
+			if (matched[i])
+				result.add(jobs.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if the entry name matches any job.
+	 *
+	 * @param entryName
+	 * @return
+	 */
+	public boolean matches(String entryName) {
+		return match(entryName).size() > 0;
+	}
+
+	/**
+	 * A node in the literal pattern trie.
+	 */
+	private static class Node {
+
+		private Map<Character, Node> children;
+		private int[] jobs;
+
+		/**
+		 * Add the remainder of a pattern, starting at the given offset, below
+		 * this node.
+		 *
+		 * @param pattern
+		 * @param offset
+		 * @param job
+		 */
+		void add(String pattern, int offset, int job) {
+			if (offset == pattern.length()) {
+				if (jobs == null) {
+					jobs = new int[] { job };
+				} else {
+					int[] tmp = new int[jobs.length + 1];
+					System.arraycopy(jobs, 0, tmp, 0, jobs.length);
+					tmp[jobs.length] = job;
+					jobs = tmp;
+				}
+				return;
+			}
+			if (children == null)
+				children = new HashMap<Character, Node>();
+			Character c = pattern.charAt(offset);
+			Node child = children.get(c);
+			if (child == null) {
+				child = new Node();
+				children.put(c, child);
+			}
+			child.add(pattern, offset + 1, job);
+		}
+
+		/**
+		 * Returns the child for the given character, or null.
+		 *
+		 * @param c
+		 * @return
+		 */
+		Node get(char c) {
+			if (children == null)
+				return null;
+			return children.get(c);
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package ca.dijital.canvec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes {@link Shape}s as little-endian extended well-known binary (EWKB),
+ * the form PostGIS uses for geometry literals. Lines and polygons are
+ * promoted to their MULTI types and points are left alone, as shp2pgsql does
+ * by default. Shapes with Z values carry M values too, so they are written
+ * with four dimensions.
+ *
+ * An instance reuses its buffer, so it must not be shared between threads.
+ */
+public class EwkbWriter {
+
+	private static final int WKB_POINT = 1;
+	private static final int WKB_LINESTRING = 2;
+	private static final int WKB_POLYGON = 3;
+	private static final int WKB_MULTIPOINT = 4;
+	private static final int WKB_MULTILINESTRING = 5;
+	private static final int WKB_MULTIPOLYGON = 6;
+
+	private static final int Z_FLAG = 0x80000000;
+	private static final int M_FLAG = 0x40000000;
+	private static final int SRID_FLAG = 0x20000000;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private byte[] buf;
+	private int len;
+
+	/**
+	 * Construct an {@link EwkbWriter}.
+	 */
+	public EwkbWriter() {
+		buf = new byte[4096];
+	}
+
+	/**
+	 * Returns the PostGIS geometry type name for a shape type, as given to
+	 * AddGeometryColumn.
+	 *
+	 * @param shapeType
+	 * @return
+	 */
+	public static String geometryType(int shapeType) {
+		String name;
+		switch (Shape.baseType(shapeType)) {
+		case Shape.POINT:
+			name = "POINT";
+			break;
+		case Shape.MULTIPOINT:
+			name = "MULTIPOINT";
+			break;
+		case Shape.POLYLINE:
+			name = "MULTILINESTRING";
+			break;
+		case Shape.POLYGON:
+			name = "MULTIPOLYGON";
+			break;
+		default:
+			name = "GEOMETRY";
+		}
+		// Measured types without Z are named with an M suffix.
+		if (Shape.hasM(shapeType) && !Shape.hasZ(shapeType))
+			name += "M";
+		return name;
+	}
+
+	/**
+	 * Returns the number of coordinate dimensions for a shape type.
+	 *
+	 * @param shapeType
+	 * @return
+	 */
+	public static int dimensions(int shapeType) {
+		if (Shape.hasZ(shapeType))
+			return 4;
+		if (Shape.hasM(shapeType))
+			return 3;
+		return 2;
+	}
+
+	/**
+	 * Encodes a shape. The result is available from {@link #getBytes()} and
+	 * {@link #length()} until the next call.
+	 *
+	 * @param shape
+	 * @param srid
+	 */
+	public void encode(Shape shape, int srid) {
+		len = 0;
+		boolean z = shape.z != null;
+		boolean m = shape.m != null;
+		switch (Shape.baseType(shape.type)) {
+		case Shape.POINT:
+			writeHeader(WKB_POINT, z, m, srid);
+			writePoint(shape, 0, z, m);
+			break;
+		case Shape.MULTIPOINT:
+			writeHeader(WKB_MULTIPOINT, z, m, srid);
+			writeInt(shape.getNumPoints());
+			for (int i = 0; i < shape.getNumPoints(); ++i) {
+				writeHeader(WKB_POINT, z, m, 0);
+				writePoint(shape, i, z, m);
+			}
+			break;
+		case Shape.POLYLINE:
+			writeHeader(WKB_MULTILINESTRING, z, m, srid);
+			int numParts = shape.parts == null ? 0 : shape.parts.length;
+			writeInt(numParts);
+			for (int i = 0; i < numParts; ++i) {
+				writeHeader(WKB_LINESTRING, z, m, 0);
+				writeRing(shape, i, z, m);
+			}
+			break;
+		case Shape.POLYGON:
+			List<List<Integer>> polygons = assemblePolygons(shape);
+			writeHeader(WKB_MULTIPOLYGON, z, m, srid);
+			writeInt(polygons.size());
+			for (List<Integer> rings : polygons) {
+				writeHeader(WKB_POLYGON, z, m, 0);
+				writeInt(rings.size());
+				for (int ring : rings)
+					writeRing(shape, ring, z, m);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported shape type "
+					+ shape.type + ".");
+		}
+	}
+
+	/**
+	 * Returns the encoding buffer. Only the first {@link #length()} bytes are
+	 * valid.
+	 *
+	 * @return
+	 */
+	public byte[] getBytes() {
+		return buf;
+	}
+
+	/**
+	 * Returns the length of the last encoded geometry.
+	 *
+	 * @return
+	 */
+	public int length() {
+		return len;
+	}
+
+	/**
+	 * Appends the last encoded geometry to the builder as upper-case hex.
+	 *
+	 * @param str
+	 */
+	public void appendHex(StringBuilder str) {
+		str.ensureCapacity(str.length() + len * 2);
+		for (int i = 0; i < len; ++i) {
+			str.append(HEX[(buf[i] >> 4) & 0xf]);
+			str.append(HEX[buf[i] & 0xf]);
+		}
+	}
+
+	/**
+	 * Groups the rings of a polygon shape into polygons. Shapefile outer rings
+	 * are clockwise and holes are counter-clockwise. Each hole is assigned to
+	 * the first outer ring that contains it; a hole that isn't inside any
+	 * outer ring becomes a polygon of its own.
+	 *
+	 * @param shape
+	 * @return A list of polygons, each a list of ring (part) indices with the
+	 *         outer ring first.
+	 */
+	static List<List<Integer>> assemblePolygons(Shape shape) {
+		List<List<Integer>> polygons = new ArrayList<List<Integer>>();
+		List<Integer> holes = new ArrayList<Integer>();
+		int numParts = shape.parts == null ? 0 : shape.parts.length;
+		for (int i = 0; i < numParts; ++i) {
+			if (signedArea(shape, i) <= 0) {
+				List<Integer> polygon = new ArrayList<Integer>();
+				polygon.add(i);
+				polygons.add(polygon);
+			} else {
+				holes.add(i);
+			}
+		}
+		for (int hole : holes) {
+			List<Integer> owner = null;
+			int start = shape.getPartStart(hole);
+			for (List<Integer> polygon : polygons) {
+				if (contains(shape, polygon.get(0), shape.x[start],
+						shape.y[start])) {
+					owner = polygon;
+					break;
+				}
+			}
+			if (owner == null) {
+				owner = new ArrayList<Integer>();
+				polygons.add(owner);
+			}
+			owner.add(hole);
+		}
+		return polygons;
+	}
+
+	/**
+	 * Returns the signed area of a ring; negative if it is clockwise.
+	 *
+	 * @param shape
+	 * @param part
+	 * @return
+	 */
+	private static double signedArea(Shape shape, int part) {
+		int start = shape.getPartStart(part);
+		int end = shape.getPartEnd(part);
+		double area = 0;
+		for (int i = start; i < end - 1; ++i)
+			area += shape.x[i] * shape.y[i + 1] - shape.x[i + 1] * shape.y[i];
+		return area / 2;
+	}
+
+	/**
+	 * Returns true if the point is inside the ring, by ray casting.
+	 *
+	 * @param shape
+	 * @param part
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private static boolean contains(Shape shape, int part, double x, double y) {
+		int start = shape.getPartStart(part);
+		int end = shape.getPartEnd(part);
+		boolean inside = false;
+		for (int i = start, j = end - 1; i < end; j = i++) {
+			if ((shape.y[i] > y) != (shape.y[j] > y)
+					&& x < (shape.x[j] - shape.x[i]) * (y - shape.y[i])
+							/ (shape.y[j] - shape.y[i]) + shape.x[i])
+				inside = !inside;
+		}
+		return inside;
+	}
+
+	/**
+	 * Writes the byte order and type of a geometry, and its SRID if one is
+	 * given.
+	 *
+	 * @param type
+	 * @param z
+	 * @param m
+	 * @param srid
+	 *            The SRID, or 0 for a nested geometry.
+	 */
+	private void writeHeader(int type, boolean z, boolean m, int srid) {
+		ensure(9);
+		buf[len++] = 1;
+		int flags = type;
+		if (z)
+			flags |= Z_FLAG;
+		if (m)
+			flags |= M_FLAG;
+		if (srid > 0)
+			flags |= SRID_FLAG;
+		writeInt(flags);
+		if (srid > 0)
+			writeInt(srid);
+	}
+
+	/**
+	 * Writes the points of a part, preceded by their count.
+	 *
+	 * @param shape
+	 * @param part
+	 * @param z
+	 * @param m
+	 */
+	private void writeRing(Shape shape, int part, boolean z, boolean m) {
+		int start = shape.getPartStart(part);
+		int end = shape.getPartEnd(part);
+		writeInt(end - start);
+		for (int i = start; i < end; ++i)
+			writePoint(shape, i, z, m);
+	}
+
+	/**
+	 * Writes the coordinates of a single point.
+	 *
+	 * @param shape
+	 * @param i
+	 * @param z
+	 * @param m
+	 */
+	private void writePoint(Shape shape, int i, boolean z, boolean m) {
+		writeDouble(shape.x[i]);
+		writeDouble(shape.y[i]);
+		if (z)
+			writeDouble(shape.z[i]);
+		if (m)
+			writeDouble(shape.m[i]);
+	}
+
+	/**
+	 * Writes a little-endian integer.
+	 *
+	 * @param v
+	 */
+	private void writeInt(int v) {
+		ensure(4);
+		buf[len++] = (byte) v;
+		buf[len++] = (byte) (v >> 8);
+		buf[len++] = (byte) (v >> 16);
+		buf[len++] = (byte) (v >> 24);
+	}
+
+	/**
+	 * Writes a little-endian double.
+	 *
+	 * @param d
+	 */
+	private void writeDouble(double d) {
+		long v = Double.doubleToRawLongBits(d);
+		ensure(8);
+		for (int i = 0; i < 8; ++i) {
+			buf[len++] = (byte) v;
+			v >>= 8;
+		}
+	}
+
+	/**
+	 * Grows the buffer to fit another n bytes.
+	 *
+	 * @param n
+	 */
+	private void ensure(int n) {
+		if (len + n > buf.length) {
+			byte[] tmp = new byte[Math.max(buf.length * 2, len + n)];
+			System.arraycopy(buf, 0, tmp, 0, len);
+			buf = tmp;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of extracted shapefiles which is kept from one run to the next, so
+ * that entries which haven't changed aren't inflated again.
+ *
+ * Each shapefile and its companion files are stored in a directory of their
+ * own, named for a digest of the archive's path and the name, size and CRC-32
+ * of each entry. A changed entry has a new CRC, and so a new directory. The
+ * files are extracted into a directory ending in ".part", whose entries are
+ * checked against their sizes and CRCs as they are inflated, and which is
+ * only renamed into place when complete, so a crashed run can't leave a
+ * partial shapefile in the cache. A cached directory is used only if each of
+ * its files has the expected size.
+ *
+ * Each use touches a directory's modification time, from which the order of
+ * use is read when the cache is opened. Each time a shapefile is added, the
+ * least recently used directories are deleted until the cache fits within
+ * its size again; directories in use by the run are kept.
+ */
+public class ExtractionCache {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(ExtractionCache.class);
+
+	private static final String PART = ".part";
+
+	private File dir;
+	private long maxSize;
+	private AtomicInteger hits;
+	private AtomicInteger misses;
+	private int evicted;
+	private long total;
+	// The size of each directory, least recently used first.
+	private Map<String, Long> sizes;
+	private FileFilter inUse;
+
+	/**
+	 * Construct an {@link ExtractionCache} in the given directory, which is
+	 * created if necessary. Partial directories left by earlier runs are
+	 * deleted.
+	 *
+	 * @param dir
+	 * @param maxSize
+	 *            The size, in bytes, to which the cache is trimmed.
+	 * @throws IOException
+	 */
+	public ExtractionCache(File dir, long maxSize) throws IOException {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		hits = new AtomicInteger();
+		misses = new AtomicInteger();
+		sizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("The extraction cache, " + dir
+					+ ", does not exist and could not be created.");
+		final File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Failed to list the extraction cache " + dir
+					+ ".");
+		final long[] times = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; ++i) {
+			times[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return times[a] < times[b] ? -1 : times[a] == times[b] ? 0 : 1;
+			}
+		});
+		for (int i : order) {
+			File file = files[i];
+			if (file.getName().endsWith(PART)) {
+				delete(file);
+			} else {
+				long size = size(file);
+				sizes.put(file.getName(), size);
+				total += size;
+			}
+		}
+	}
+
+	/**
+	 * Sets the filter which decides whether a directory is in use, and so
+	 * mustn't be deleted when the cache is trimmed.
+	 *
+	 * @param inUse
+	 */
+	public synchronized void setInUse(FileFilter inUse) {
+		this.inUse = inUse;
+	}
+
+	/**
+	 * Returns the directory which holds a shapefile's files once they are
+	 * cached.
+	 *
+	 * @param group
+	 * @return
+	 */
+	public File getDirectory(ExtractionPlan.Group group) {
+		return new File(dir, getKey(group));
+	}
+
+	/**
+	 * Returns true if the shapefile's files are in the cache and have the
+	 * expected sizes, and marks them as recently used. A directory which
+	 * doesn't pass is deleted.
+	 *
+	 * The files should be in use by the time this is called, so that they
+	 * can't be trimmed away before they are read.
+	 *
+	 * @param group
+	 * @return
+	 */
+	public synchronized boolean lookup(ExtractionPlan.Group group) {
+		File target = getDirectory(group);
+		if (!target.isDirectory()) {
+			misses.incrementAndGet();
+			return false;
+		}
+		for (ArchiveIndex.Entry entry : group.getEntries()) {
+			File file = new File(target, entry.getName());
+			if (!file.isFile()
+					|| (entry.getSize() >= 0 && file.length() != entry
+							.getSize())) {
+				logger.warn("The cached copy of {} is damaged. Extracting it again.",
+						group.getShapeEntry());
+				remove(target.getName());
+				misses.incrementAndGet();
+				return false;
+			}
+		}
+		target.setLastModified(System.currentTimeMillis());
+		// Marks it as the most recently used.
+		if (sizes.get(target.getName()) == null) {
+			long size = size(target);
+			sizes.put(target.getName(), size);
+			total += size;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns an empty directory into which a shapefile's files are to be
+	 * extracted, before {@link #commit(ExtractionPlan.Group)} is called.
+	 *
+	 * @param group
+	 * @return
+	 * @throws IOException
+	 */
+	public File begin(ExtractionPlan.Group group) throws IOException {
+		File part = new File(dir, getKey(group) + PART);
+		delete(part);
+		if (!part.mkdirs())
+			throw new IOException("Failed to create " + part + ".");
+		return part;
+	}
+
+	/**
+	 * Moves a shapefile's extracted files into the cache, and trims the
+	 * cache.
+	 *
+	 * @param group
+	 * @throws IOException
+	 */
+	public synchronized void commit(ExtractionPlan.Group group)
+			throws IOException {
+		File part = new File(dir, getKey(group) + PART);
+		File target = getDirectory(group);
+		remove(target.getName());
+		if (!part.renameTo(target))
+			throw new IOException("Failed to move " + part + " into the cache.");
+		long size = size(target);
+		sizes.put(target.getName(), size);
+		total += size;
+		trim();
+	}
+
+	/**
+	 * Deletes the least recently used directories which aren't in use until
+	 * the cache is no larger than its maximum size.
+	 */
+	public synchronized void trim() {
+		Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+		while (total > maxSize && it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			File target = new File(dir, e.getKey());
+			if (inUse != null && inUse.accept(target))
+				continue;
+			delete(target);
+			total -= e.getValue();
+			it.remove();
+			++evicted;
+		}
+	}
+
+	/**
+	 * Trims the cache, and logs how it was used.
+	 */
+	public synchronized void close() {
+		trim();
+		logger.info("Extraction cache: " + hits + " hits, " + misses
+				+ " misses, " + evicted + " evicted, " + total + " bytes.");
+	}
+
+	/**
+	 * Returns the size of the cache, in bytes.
+	 *
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return total;
+	}
+
+	/**
+	 * Returns the key for a shapefile's files: a digest of the archive path
+	 * and each entry's name, size and CRC-32.
+	 *
+	 * @param group
+	 * @return
+	 */
+	static String getKey(ExtractionPlan.Group group) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(group.getArchive().getAbsolutePath().getBytes("UTF-8"));
+			for (ArchiveIndex.Entry entry : group.getEntries()) {
+				String str = "\n" + entry.getName() + "\t" + entry.getSize()
+						+ "\t" + entry.getCrc();
+				digest.update(str.getBytes("UTF-8"));
+			}
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest())
+				key.append(String.format("%02x", b & 0xff));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Deletes a directory from the cache.
+	 */
+	private void remove(String name) {
+		Long size = sizes.remove(name);
+		if (size != null)
+			total -= size;
+		delete(new File(dir, name));
+	}
+
+	private static long size(File file) {
+		if (!file.isDirectory())
+			return file.length();
+		long size = 0;
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				size += size(f);
+		}
+		return size;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+}
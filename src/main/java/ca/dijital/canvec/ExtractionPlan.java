@@ -0,0 +1,278 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which archive each matching shapefile will be extracted from, so
+ * that each job's files can be extracted when the job starts, rather than all
+ * at once.
+ *
+ * A shapefile is extracted together with its companion files, the entries
+ * which share its name up to the extension. If the same shapefile is found in
+ * more than one archive, the archive which comes first in the catalogue is
+ * used. Instances are safe to use from several threads at once.
+ *
+ * The plan is filled in while the archives are matched, and a job can follow
+ * it as it grows. An archive's shapefiles are final once every archive before
+ * it in the catalogue has been matched, since none of those can supply them
+ * instead; they are then handed to the jobs that follow the plan, so a job's
+ * files can be extracted before the other archives are matched.
+ */
+public class ExtractionPlan {
+
+	/**
+	 * Receives a job's shapefiles as they are planned.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called with the job's shapefiles from one archive, once they are
+		 * final. Archives are given in catalogue order. Called while the
+		 * plan is locked, so it mustn't block.
+		 *
+		 * @param groups
+		 */
+		void planned(List<Group> groups);
+
+		/**
+		 * Called once every archive has been matched, or matching has
+		 * failed.
+		 *
+		 * @param complete
+		 *            False if matching failed, and the job's shapefiles may
+		 *            be incomplete.
+		 */
+		void finished(boolean complete);
+	}
+
+	/**
+	 * Orders shapefiles by archive, and then by name.
+	 */
+	private static final Comparator<Group> ORDER = new Comparator<Group>() {
+		public int compare(Group a, Group b) {
+			if (a.order != b.order)
+				return a.order < b.order ? -1 : 1;
+			return a.shapeEntry.compareTo(b.shapeEntry);
+		}
+	};
+
+	private Map<String, Group> groups;
+	private Map<Integer, List<String>> byOrder;
+	private Set<Integer> matched;
+	private int finalOrder;
+	private boolean finished;
+	private boolean complete;
+	private Map<ExtractorJob, Listener> listeners;
+
+	/**
+	 * Construct an empty {@link ExtractionPlan}.
+	 */
+	public ExtractionPlan() {
+		groups = new HashMap<String, Group>();
+		byOrder = new HashMap<Integer, List<String>>();
+		matched = new HashSet<Integer>();
+		listeners = new HashMap<ExtractorJob, Listener>();
+	}
+
+	/**
+	 * Adds a shapefile from an archive.
+	 *
+	 * @param archive
+	 * @param order
+	 *            The position of the archive in the catalogue.
+	 * @param shapeEntry
+	 *            The name of the shapefile's entry.
+	 * @param entries
+	 *            The shapefile's entry and its companions.
+	 * @param jobs
+	 *            The jobs which need the shapefile.
+	 */
+	public synchronized void add(File archive, int order, String shapeEntry,
+			List<ArchiveIndex.Entry> entries, List<ExtractorJob> jobs) {
+		Group old = groups.get(shapeEntry);
+		if (old == null || order < old.order) {
+			groups.put(shapeEntry, new Group(archive, order, shapeEntry,
+					entries, jobs));
+			if (!byOrder.containsKey(order))
+				byOrder.put(order, new ArrayList<String>());
+			byOrder.get(order).add(shapeEntry);
+		}
+	}
+
+	/**
+	 * Records that an archive has been matched, and all of its shapefiles
+	 * added. Hands the shapefiles which have become final to the jobs that
+	 * follow the plan.
+	 *
+	 * @param order
+	 *            The position of the archive in the catalogue.
+	 */
+	public synchronized void matched(int order) {
+		matched.add(order);
+		while (matched.remove(finalOrder)) {
+			for (Map.Entry<ExtractorJob, Listener> e : listeners.entrySet()) {
+				List<Group> list = getGroups(e.getKey(), finalOrder);
+				if (!list.isEmpty())
+					e.getValue().planned(list);
+			}
+			++finalOrder;
+		}
+	}
+
+	/**
+	 * Records that matching is over, and tells the jobs that follow the plan.
+	 *
+	 * @param complete
+	 *            False if matching failed.
+	 */
+	public synchronized void finish(boolean complete) {
+		if (finished)
+			return;
+		finished = true;
+		this.complete = complete;
+		for (Listener listener : listeners.values())
+			listener.finished(complete);
+		listeners.clear();
+	}
+
+	/**
+	 * Returns true once matching is over.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Hands a job's shapefiles to the listener as they become final,
+	 * starting with those which already are, and then tells it when matching
+	 * is over.
+	 *
+	 * @param job
+	 * @param listener
+	 */
+	public synchronized void follow(ExtractorJob job, Listener listener) {
+		List<Group> list = new ArrayList<Group>();
+		for (Group group : getGroups(job)) {
+			if (!finished && group.order >= finalOrder)
+				break;
+			if (!list.isEmpty() && list.get(0).order != group.order) {
+				listener.planned(list);
+				list = new ArrayList<Group>();
+			}
+			list.add(group);
+		}
+		if (!list.isEmpty())
+			listener.planned(list);
+		if (finished)
+			listener.finished(complete);
+		else
+			listeners.put(job, listener);
+	}
+
+	/**
+	 * Returns the shapefiles needed by a job from the archive at the given
+	 * position, by name.
+	 */
+	private List<Group> getGroups(ExtractorJob job, int order) {
+		List<Group> list = new ArrayList<Group>();
+		List<String> names = byOrder.get(order);
+		if (names == null)
+			return list;
+		for (String name : names) {
+			Group group = groups.get(name);
+			// Skip those since found in an earlier archive.
+			if (group.order == order && group.jobs.contains(job))
+				list.add(group);
+		}
+		Collections.sort(list, ORDER);
+		return list;
+	}
+
+	/**
+	 * Returns the shapefiles needed by a job, in catalogue order, so that the
+	 * shapefiles from each archive are together.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public synchronized List<Group> getGroups(ExtractorJob job) {
+		List<Group> list = new ArrayList<Group>();
+		for (Group group : groups.values()) {
+			if (group.jobs.contains(job))
+				list.add(group);
+		}
+		Collections.sort(list, ORDER);
+		return list;
+	}
+
+	/**
+	 * Returns the uncompressed size, in bytes, of the shapefiles needed by a
+	 * job, by which the cost of the job is estimated.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public synchronized long getSize(ExtractorJob job) {
+		long size = 0;
+		for (Group group : groups.values()) {
+			if (group.jobs.contains(job))
+				size += group.size;
+		}
+		return size;
+	}
+
+	/**
+	 * A shapefile and its companion files, in one archive.
+	 */
+	public static class Group {
+
+		private File archive;
+		private int order;
+		private String shapeEntry;
+		private List<ArchiveIndex.Entry> entries;
+		private long size;
+		private List<ExtractorJob> jobs;
+
+		Group(File archive, int order, String shapeEntry,
+				List<ArchiveIndex.Entry> entries, List<ExtractorJob> jobs) {
+			this.archive = archive;
+			this.order = order;
+			this.shapeEntry = shapeEntry;
+			this.entries = new ArrayList<ArchiveIndex.Entry>(entries);
+			this.jobs = new ArrayList<ExtractorJob>(jobs);
+			for (ArchiveIndex.Entry entry : entries)
+				size += Math.max(0, entry.getSize());
+		}
+
+		public File getArchive() {
+			return archive;
+		}
+
+		public String getShapeEntry() {
+			return shapeEntry;
+		}
+
+		public List<ArchiveIndex.Entry> getEntries() {
+			return Collections.unmodifiableList(entries);
+		}
+
+		/**
+		 * Returns the uncompressed size of the entries, in bytes.
+		 *
+		 * @return
+		 */
+		public long getSize() {
+			return size;
+		}
+	}
+}
@@ -2,27 +2,39 @@ package ca.dijital.canvec;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,18 +50,69 @@ public class Extractor {
 	private static Logger logger = LoggerFactory.getLogger(Extractor.class);
 
 	private static final String FILE_TABLE_CACHE_FILE = "canvec_extractor_file_table.dat";
+	private static final String ARCHIVE_INDEX_FILE = "canvec_extractor_archive_index.dat";
+	private static final String EXTRACTION_CACHE_DIR = "extracted";
+	private static final String JOURNAL_FILE = "canvec_extractor_journal.txt";
+	private static final String PROGRESS_FILE = "canvec_extractor_progress.json";
+	private static final String METRICS_NAME = "ca.dijital.canvec:type=Metrics";
+
+	/**
+	 * How often, in seconds, the pools are resized when the number of workers
+	 * is adaptive.
+	 */
+	private static final long ADAPT_INTERVAL = 5;
 	private static final String DEFAULT_CHARSET = "latin1";
 
+	/**
+	 * The number of blocks cached for each open archive, and the most which
+	 * are read ahead at once.
+	 */
+	private static final int CACHE_BLOCKS = 64;
+	private static final int READ_AHEAD_BLOCKS = 16;
+
 	private String canvecDir;
 	private String tempDir;
 	private List<ExtractorJob> jobs;
 	private int numWorkers;
-	private List<ExtractorWorker> workers;
-	private List<File> tempFiles;
+	private boolean adaptiveWorkers;
+	private int minWorkers;
+	private int maxWorkers;
+	private int extractThreads;
+	private int walkThreads;
+	private ExecutorService converterPool;
+	private ExecutorService compressionPool;
+	private ScheduledExecutorService watchdog;
+	private ExecutorService extractionPool;
+	private TempSpace tempSpace;
+	private ExtractionCache extractionCache;
+	private Journal journal;
+	private volatile ExtractionPlan plan;
+	private List<ExtractorJob> queue;
+	private JobScheduler scheduler;
+	private ShapeConverter converter;
+	private Launcher launcher;
+	private StdOutMultiplexer multiplexer;
+	private Metrics metrics;
 
 	private boolean useStdOut = false;
+	private volatile boolean extractionFailed = false;
 	private boolean deleteTempFiles = true;
 	private String charset = DEFAULT_CHARSET;
+	private int readBlockSize = 65536;
+	private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+	private int gzipBlockSize = 1024 * 1024;
+	private long convertTimeout = 0;
+	private int convertRetries = 1;
+	private long simulatedLatency = 0;
+	private long tempBudget = 0;
+	private long extractCacheSize = 0;
+	private boolean useJournal = true;
+	private boolean resume = false;
+	private int shardIndex = 0;
+	private int shardCount = 0;
+	private File catalogDir;
+	private String progressFile;
+	private long progressInterval = 5;
 
 	/**
 	 * Construct a new Extractor.
@@ -57,8 +120,13 @@ public class Extractor {
 	public Extractor() {
 		tempDir = System.getProperty("java.io.tmpdir");
 		jobs = Collections.synchronizedList(new ArrayList<ExtractorJob>());
-		tempFiles = Collections.synchronizedList(new ArrayList<File>());
 		numWorkers = 5;
+		minWorkers = 1;
+		maxWorkers = 2 * Runtime.getRuntime().availableProcessors();
+		extractThreads = Runtime.getRuntime().availableProcessors();
+		walkThreads = 16;
+		converter = new ProcessShapeConverter();
+		launcher = new DirectLauncher();
 	}
 
 	/**
@@ -105,61 +173,25 @@ public class Extractor {
 	}
 
 	/**
-	 * Adds a temp file to the list. Will be used to stream output if set to use
-	 * STDOUT.
-	 * 
-	 * @param tempFile
-	 */
-	void addTempFile(File tempFile) {
-		tempFiles.add(tempFile);
-	}
-
-	/**
-	 * Called by each worker as it finishes. Checks whether there are remaining
-	 * workers. Finishes up if not.
+	 * Called by the {@link JobScheduler} as each worker finishes. If output
+	 * goes to STDOUT, hands the job's output to the multiplexer.
 	 */
 	void workerFinished(final ExtractorWorker worker) {
 		ExtractorJob job = worker.getJob();
-		File tempFile = job.getTempFile();
-		if (tempFile != null)
-			tempFiles.add(tempFile);
-		if (jobs.size() == 0)
-			writeFinalOutput();
-		logger.info("Finished.");
+		metrics.jobFinished(!worker.isFailure());
+		if (multiplexer != null)
+			multiplexer.finished(job, !worker.isFailure());
+		logger.info("Finished job {}.", job.getName());
 	}
 
 	/**
-	 * If useStdOut has been set to true, outputs all the temporary output files
-	 * to STDOUT before exiting.
+	 * Returns the multiplexer for output to STDOUT, or null if output goes to
+	 * files.
+	 * 
+	 * @return
 	 */
-	private void writeFinalOutput() {
-		if (!useStdOut)
-			return;
-		File file = null;
-		InputStream in = null;
-		while (tempFiles.size() > 0 && (file = tempFiles.remove(0)) != null) {
-			int read = 0;
-			byte[] buf = new byte[4096];
-			try {
-				in = new FileInputStream(file);
-				while ((read = in.read(buf)) > -1) {
-					System.out.write(buf, 0, read);
-				}
-			} catch (IOException e) {
-				logger.error("Failed to output a temporary file. Quitting.");
-				System.exit(1);
-			} finally {
-				try {
-					in.close();
-				} catch (IOException e1) {
-				}
-				try {
-					if (deleteTempFiles)
-						file.deleteOnExit();
-				} catch (Exception e) {
-				}
-			}
-		}
+	StdOutMultiplexer getMultiplexer() {
+		return multiplexer;
 	}
 
 	/**
@@ -173,80 +205,380 @@ public class Extractor {
 	 * 
 	 * Keep in mind that this will DROP ALL EXISTING TABLES that have the same name, so be VERY CAREFUL!
 	 * 
+	 * Returns true if every job finished, and its output was written.
+	 * 
 	 * @param useStdOut
+	 * @return
 	 */
-	public void execute(boolean useStdOut) {
+	public boolean execute(boolean useStdOut) {
 		logger.info("Starting CanVec extractor. Using STDOUT: " + useStdOut);
 		this.useStdOut = useStdOut;
 		if (jobs.size() == 0) {
 			logger.error("No jobs. Exiting.");
-			return;
+			return false;
 		}
 		logger.info("Checking jobs...");
 		for (ExtractorJob job : jobs) {
 			if (!job.isValid()) {
 				logger.error("Job {} is invalid. Stopping.", job.getName());
-				return;
+				return false;
+			}
+			// Binary data can't be mixed with the SQL on STDOUT.
+			if (useStdOut
+					&& ExtractorJob.FORMAT_BINARY.equals(job.getFormat())) {
+				logger.warn(
+						"Job {} can't write binary output to STDOUT. Using copy.",
+						job.getName());
+				job.setFormat(ExtractorJob.FORMAT_COPY);
+			}
+			if (!converter.supportsFormat(job.getFormat())) {
+				logger.error(
+						"The converter doesn't support the {} format of job {}. Stopping.",
+						job.getFormat(), job.getName());
+				return false;
 			}
 		}
-		try {
-			extractFiles();
-			initWorkers();
-			ExtractorJob job = null;
-			while (jobs.size() > 0 && (job = jobs.remove(0)) != null) {
-				if (job.getFiles().size() == 0) {
-					logger.warn("No files available for job with pattern: {}.",
-							job.getPattern());
-				} else {
-					ExtractorWorker worker = null;
-					while ((worker = getFreeWorker()) == null)
-						Thread.sleep(500);
-					worker.start(this, job, useStdOut);
-					if (worker.isFailure()) {
-						logger.info("There was a failure in a worker. Shutting down...");
-						stopAllWorkers();
-						break;
+		if (adaptiveWorkers && (minWorkers < 1 || maxWorkers < minWorkers)) {
+			logger.error("The worker bounds, {} to {}, are invalid. Stopping.",
+					minWorkers, maxWorkers);
+			return false;
+		}
+		// Each shard works in its own temporary directory, but the archive
+		// catalogue and index are shared.
+		catalogDir = new File(tempDir, "canvec");
+		if (isSharded()) {
+			if (useStdOut) {
+				logger.error("A sharded run can't write to STDOUT. Stopping.");
+				return false;
+			}
+			File shardDir = new File(tempDir, "shard" + shardIndex + "of"
+					+ shardCount);
+			if (!shardDir.exists() && !shardDir.mkdirs()) {
+				logger.error("Failed to create {}. Stopping.", shardDir);
+				return false;
+			}
+			tempDir = shardDir.getPath();
+			logger.info("Running shard {} of {}.", shardIndex, shardCount);
+		}
+		// Output to STDOUT can't be taken back, so it can't be resumed.
+		journal = null;
+		if (useJournal && !useStdOut) {
+			try {
+				File cacheDir = new File(tempDir, "canvec");
+				if (!cacheDir.exists() && !cacheDir.mkdirs())
+					throw new IOException("Failed to create " + cacheDir + ".");
+				journal = Journal.open(new File(cacheDir, JOURNAL_FILE), resume);
+			} catch (IOException e) {
+				logger.error("Failed to open the journal. Stopping.", e);
+				return false;
+			}
+		} else if (resume) {
+			logger.warn("A run without a journal can't be resumed. Starting from the beginning.");
+		}
+		// The archives are matched in the background. Each job's shapefiles
+		// are extracted when its worker starts, and handed to the worker as
+		// soon as they are on disk.
+		final List<ExtractorJob> allJobs = new ArrayList<ExtractorJob>(jobs);
+		// With adaptive workers, conversion starts with a thread per processor
+		// and is resized as it goes; enough jobs run at once to keep the
+		// largest number of threads busy.
+		int conversionThreads = numWorkers;
+		int schedulerThreads = numWorkers;
+		if (adaptiveWorkers) {
+			conversionThreads = Math.max(minWorkers, Math.min(maxWorkers,
+					Runtime.getRuntime().availableProcessors()));
+			schedulerThreads = maxWorkers;
+			logger.info("Adapting the number of workers between {} and {}.",
+					minWorkers, maxWorkers);
+		}
+		metrics = new Metrics(conversionThreads, extractThreads,
+				allJobs.size());
+		ObjectName metricsName = registerMetrics();
+		extractionFailed = false;
+		plan = new ExtractionPlan();
+		final JobScheduler scheduler = new JobScheduler(schedulerThreads,
+				new JobScheduler.Listener() {
+					public void workerFinished(ExtractorWorker worker) {
+						Extractor.this.workerFinished(worker);
+						startNextJob();
 					}
+				});
+		this.scheduler = scheduler;
+		Thread extraction = new Thread(new Runnable() {
+			public void run() {
+				boolean complete = false;
+				try {
+					planExtraction(allJobs, plan);
+					complete = true;
+				} catch (IOException e) {
+					logger.error("Failed to extract files.", e);
+					extractionFailed = true;
+					scheduler.fail();
+				} finally {
+					plan.finish(complete);
+				}
+			}
+		}, "canvec-extraction");
+		if (converter instanceof ProcessShapeConverter)
+			((ProcessShapeConverter) converter).setLauncher(launcher);
+		ThreadPoolExecutor converters = newFixedPool(conversionThreads);
+		converterPool = converters;
+		compressionPool = Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors());
+		watchdog = Executors.newSingleThreadScheduledExecutor();
+		final File progress = getProgressFile();
+		if (progressInterval > 0) {
+			watchdog.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					writeProgress(progress);
+				}
+			}, progressInterval, progressInterval, TimeUnit.SECONDS);
+		}
+		ThreadPoolExecutor extractors = newFixedPool(extractThreads);
+		extractionPool = extractors;
+		if (adaptiveWorkers) {
+			watchdog.scheduleWithFixedDelay(new ConcurrencyController(
+					converters, extractors, metrics, minWorkers, maxWorkers,
+					extractThreads), ADAPT_INTERVAL, ADAPT_INTERVAL,
+					TimeUnit.SECONDS);
+		}
+		tempSpace = new TempSpace(tempBudget, deleteTempFiles);
+		extractionCache = null;
+		if (extractCacheSize > 0) {
+			try {
+				extractionCache = new ExtractionCache(new File(new File(
+						tempDir, "canvec"), EXTRACTION_CACHE_DIR),
+						extractCacheSize);
+				// Shapefiles waiting to be converted are kept.
+				final TempSpace space = tempSpace;
+				extractionCache.setInUse(new FileFilter() {
+					public boolean accept(File dir) {
+						return space.holds(dir);
+					}
+				});
+			} catch (IOException e) {
+				logger.warn("Failed to open the extraction cache. Not using it.",
+						e);
+			}
+		}
+		// Jobs are streamed to STDOUT as they finish.
+		if (useStdOut) {
+			multiplexer = new StdOutMultiplexer(new File(tempDir),
+					deleteTempFiles, new Runnable() {
+						public void run() {
+							scheduler.fail();
+						}
+					});
+			multiplexer.start();
+		}
+		boolean success = false;
+		try {
+			extraction.start();
+			// A job is started whenever a thread is free, so that the largest
+			// can be chosen by what has been planned by then.
+			queue = new ArrayList<ExtractorJob>(jobs);
+			jobs.clear();
+			metrics.getQueuedJobGauge().addAndGet(queue.size());
+			for (int i = 0; i < schedulerThreads; ++i)
+				startNextJob();
+			success = scheduler.awaitCompletion();
+			if (success && extractionFailed) {
+				logger.info("There was a failure in extraction. Shutting down...");
+				success = false;
+			}
+			if (!success) {
+				scheduler.fail();
+				extraction.interrupt();
+			}
+			extraction.join();
+			scheduler.shutdown();
+			converterPool.shutdownNow();
+			compressionPool.shutdownNow();
+			watchdog.shutdownNow();
+			extractionPool.shutdownNow();
+			if (multiplexer != null) {
+				if (!success)
+					multiplexer.abort();
+				if (!multiplexer.close() && success) {
+					logger.error("Failed to write the output to STDOUT.");
+					success = false;
 				}
 			}
 		} catch (Exception e) {
 			logger.error("Failed to execute", e);
+			success = false;
+		} finally {
+			launcher.close();
+			tempSpace.close();
+			if (journal != null)
+				journal.close();
+			if (extractionCache != null)
+				extractionCache.close();
+			if (progressInterval > 0)
+				writeProgress(progress);
+			metrics.logSummary();
+			unregisterMetrics(metricsName);
 		}
-		logger.info("Done.");
+		if (success)
+			logger.info("Done.");
+		else
+			logger.error("The run failed.");
+		return success;
+	}
+
+	/**
+	 * Returns a pool with a fixed number of threads, which can be resized.
+	 * 
+	 * @param threads
+	 * @return
+	 */
+	private static ThreadPoolExecutor newFixedPool(int threads) {
+		return new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
 	}
 
 	/**
-	 * Stop all running workers.
+	 * Starts the queued job with the most input planned so far, so that a
+	 * long job doesn't start last and run on alone at the end. Called at the
+	 * start of the run, and whenever a job finishes.
 	 */
-	private void stopAllWorkers() {
-		synchronized (workers) {
-			for (ExtractorWorker worker : workers)
-				worker.stop();
+	private void startNextJob() {
+		ExtractorJob job;
+		synchronized (queue) {
+			if (queue.isEmpty())
+				return;
+			orderLargestFirst(queue, plan);
+			job = queue.remove(0);
 		}
+		logger.info("Starting job {} with {} MB of input planned.",
+				job.getName(), getPlannedSize(job, plan) / (1024 * 1024));
+		scheduler.submit(new ExtractorWorker(this, job, useStdOut));
 	}
 
 	/**
-	 * Returns the first free {@link ExtractorWorker}.
+	 * Sorts jobs by the size of their input, largest first. Jobs of the same
+	 * size keep their order.
 	 * 
-	 * @return
+	 * @param jobs
+	 * @param plan
 	 */
-	private ExtractorWorker getFreeWorker() {
-		synchronized (workers) {
-			for (ExtractorWorker worker : workers) {
-				if (!worker.isBusy())
-					return worker;
+	void orderLargestFirst(List<ExtractorJob> jobs, ExtractionPlan plan) {
+		final Map<ExtractorJob, Long> sizes = new HashMap<ExtractorJob, Long>();
+		for (ExtractorJob job : jobs)
+			sizes.put(job, getPlannedSize(job, plan));
+		Collections.sort(jobs, new Comparator<ExtractorJob>() {
+			public int compare(ExtractorJob a, ExtractorJob b) {
+				long sa = sizes.get(a);
+				long sb = sizes.get(b);
+				return sa > sb ? -1 : sa == sb ? 0 : 1;
 			}
+		});
+	}
+
+	/**
+	 * Returns the size of a job's input in the plan. In a sharded run, only
+	 * the shard's input is counted.
+	 * 
+	 * @param job
+	 * @param plan
+	 * @return
+	 */
+	private long getPlannedSize(ExtractorJob job, ExtractionPlan plan) {
+		if (!isSharded())
+			return plan.getSize(job);
+		long size = 0;
+		for (ExtractionPlan.Group group : plan.getGroups(job)) {
+			if (isOwn(group.getArchive()))
+				size += group.getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Publishes the run's metrics over JMX. Returns the name under which they
+	 * were registered, or null if they couldn't be.
+	 * 
+	 * @return
+	 */
+	private ObjectName registerMetrics() {
+		try {
+			ObjectName name = new ObjectName(METRICS_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(metrics, name);
+			return name;
+		} catch (Exception e) {
+			logger.warn("Failed to publish the metrics over JMX.", e);
+			return null;
+		}
+	}
+
+	private void unregisterMetrics(ObjectName name) {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+			logger.warn("Failed to withdraw the metrics from JMX.", e);
 		}
-		return null;
 	}
 
 	/**
-	 * Initialize a collection of {@link ExtractorWorker}s.
+	 * Returns the file to which the run's progress is written.
+	 * 
+	 * @return
+	 */
+	private File getProgressFile() {
+		if (progressFile != null)
+			return new File(progressFile);
+		return new File(new File(tempDir, "canvec"), PROGRESS_FILE);
+	}
+
+	/**
+	 * Writes the run's metrics to the progress file.
+	 * 
+	 * @param file
+	 */
+	private void writeProgress(File file) {
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.exists() && !dir.mkdirs())
+				throw new IOException("Failed to create " + dir + ".");
+			metrics.writeJson(file);
+		} catch (IOException e) {
+			logger.warn("Failed to write the progress file.", e);
+		}
+	}
+
+	/**
+	 * Returns the metrics of the current run.
+	 * 
+	 * @return
+	 */
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the file to which the run's metrics are written as JSON, every
+	 * progressInterval seconds. Defaults to canvec_extractor_progress.json in
+	 * the temporary directory.
+	 * 
+	 * @param progressFile
+	 */
+	public void setProgressFile(String progressFile) {
+		this.progressFile = progressFile;
+	}
+
+	/**
+	 * Sets how often, in seconds, the progress file is written. Defaults to
+	 * 5; 0 means it isn't written.
+	 * 
+	 * @param progressInterval
 	 */
-	private void initWorkers() {
-		workers = new ArrayList<ExtractorWorker>();
-		for (int i = 0; i < numWorkers; ++i)
-			workers.add(new ExtractorWorker());
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
 	}
 
 	/**
@@ -259,110 +591,819 @@ public class Extractor {
 	}
 
 	/**
-	 * Extracts the required files from the CanVec archives, and appends a
-	 * {@link File} object to each {@link ExtractorJob}'s file list.
+	 * If true, the number of conversion threads, and of extraction threads, is
+	 * adjusted during the run, by how much work gets done, rather than fixed
+	 * by the number of workers.
+	 * 
+	 * @param adaptiveWorkers
+	 */
+	public void setAdaptiveWorkers(boolean adaptiveWorkers) {
+		this.adaptiveWorkers = adaptiveWorkers;
+	}
+
+	/**
+	 * Sets the fewest conversion threads when the number of workers is
+	 * adaptive. Defaults to 1.
+	 * 
+	 * @param minWorkers
+	 */
+	public void setMinWorkers(int minWorkers) {
+		this.minWorkers = minWorkers;
+	}
+
+	/**
+	 * Sets the most conversion threads when the number of workers is
+	 * adaptive. Defaults to twice the number of processors.
+	 * 
+	 * @param maxWorkers
+	 */
+	public void setMaxWorkers(int maxWorkers) {
+		this.maxWorkers = maxWorkers;
+	}
+
+	/**
+	 * Returns the pool on which shapefiles are converted. Shared by all
+	 * workers; its size is the number of workers.
+	 * 
+	 * @return
+	 */
+	ExecutorService getConverterPool() {
+		return converterPool;
+	}
+
+	/**
+	 * Returns the {@link TempSpace} which holds the extracted shapefiles.
+	 * Workers release each shapefile when they have converted it.
+	 * 
+	 * @return
+	 */
+	TempSpace getTempSpace() {
+		return tempSpace;
+	}
+
+	/**
+	 * Sets the most disk space, in bytes, which extracted files may take up at
+	 * once. Extraction waits for space to be freed when the budget is spent.
+	 * Defaults to 0, for no limit.
+	 * 
+	 * @param tempBudget
+	 */
+	public void setTempBudget(long tempBudget) {
+		this.tempBudget = tempBudget;
+	}
+
+	/**
+	 * Sets the size, in bytes, of the cache of extracted shapefiles which is
+	 * kept between runs. Entries which haven't changed since an earlier run
+	 * are taken from the cache instead of being inflated again. Defaults to 0,
+	 * for no cache.
+	 * 
+	 * @param extractCacheSize
+	 */
+	public void setExtractCacheSize(long extractCacheSize) {
+		this.extractCacheSize = extractCacheSize;
+	}
+
+	/**
+	 * Returns the journal of the run's progress, or null if it isn't kept.
+	 * 
+	 * @return
+	 */
+	Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * If true, the run's progress is recorded in a journal in the temporary
+	 * directory, so that it can be resumed if it fails. Defaults to true. No
+	 * journal is kept when writing to STDOUT.
+	 * 
+	 * @param useJournal
+	 */
+	public void setUseJournal(boolean useJournal) {
+		this.useJournal = useJournal;
+	}
+
+	/**
+	 * If true, the run continues from the journal of an earlier run: finished
+	 * jobs are skipped, and started ones are continued after the last
+	 * shapefile which was written.
+	 * 
+	 * @param resume
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Makes this run one of several shards, each of which converts the
+	 * shapefiles from its share of the archives into part files. The parts
+	 * are joined by {@link ShardMerger#merge(ExtractorJob, int)}.
+	 * 
+	 * @param shardIndex
+	 *            The shard, from 1 to shardCount.
+	 * @param shardCount
+	 */
+	public void setShard(int shardIndex, int shardCount) {
+		if (shardCount < 1 || shardIndex < 1 || shardIndex > shardCount)
+			throw new IllegalArgumentException("Invalid shard: " + shardIndex
+					+ "/" + shardCount);
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * Returns true if this run is one of several shards.
+	 * 
+	 * @return
+	 */
+	boolean isSharded() {
+		return shardCount > 0;
+	}
+
+	/**
+	 * Returns the file to which a job's output is written: the job's output
+	 * file, or, in a sharded run, the shard's part file until it is finished.
+	 * 
+	 * @param job
+	 * @return
+	 */
+	File getOutputFile(ExtractorJob job) {
+		File outFile = new File(job.getOutFile());
+		if (!isSharded())
+			return outFile;
+		return ShardMerger.getInProgressFile(ShardMerger.getPartFile(outFile,
+				shardIndex, shardCount));
+	}
+
+	/**
+	 * Called when a job has finished successfully. In a sharded run, the
+	 * shard's part is given its final name; a shard with no files for the job
+	 * leaves an empty part.
+	 * 
+	 * @param job
+	 * @throws IOException
+	 */
+	void finishOutput(ExtractorJob job) throws IOException {
+		if (!isSharded())
+			return;
+		File file = getOutputFile(job);
+		if (!file.exists())
+			new FileOutputStream(file).close();
+		File part = ShardMerger.getPartFile(new File(job.getOutFile()),
+				shardIndex, shardCount);
+		if (part.exists() && !part.delete())
+			throw new IOException("Failed to replace " + part + ".");
+		if (!file.renameTo(part))
+			throw new IOException("Failed to rename " + file + ".");
+	}
+
+	/**
+	 * Returns the {@link ShapeConverter} used by the workers.
+	 * 
+	 * @return
+	 */
+	ShapeConverter getConverter() {
+		return converter;
+	}
+
+	/**
+	 * Sets the {@link ShapeConverter} used by the workers. Defaults to a
+	 * {@link ProcessShapeConverter}, which runs shp2pgsql.
+	 * 
+	 * @param converter
+	 */
+	public void setConverter(ShapeConverter converter) {
+		this.converter = converter;
+	}
+
+	/**
+	 * Sets the {@link Launcher} used to start shp2pgsql. Defaults to a
+	 * {@link DirectLauncher}. The launcher is closed when the run ends.
+	 * 
+	 * @param launcher
+	 */
+	public void setLauncher(Launcher launcher) {
+		this.launcher = launcher;
+	}
+
+	/**
+	 * Sets the number of threads used to scan and extract archives. Defaults
+	 * to the number of available processors.
+	 * 
+	 * @param extractThreads
+	 */
+	public void setExtractThreads(int extractThreads) {
+		this.extractThreads = extractThreads;
+	}
+
+	/**
+	 * Returns the pool on which gzipped output is compressed. Shared by all
+	 * workers; its size is the number of available processors.
+	 * 
+	 * @return
+	 */
+	ExecutorService getCompressionPool() {
+		return compressionPool;
+	}
+
+	/**
+	 * Returns the executor which times out conversions.
+	 * 
+	 * @return
+	 */
+	ScheduledExecutorService getWatchdog() {
+		return watchdog;
+	}
+
+	/**
+	 * Sets the longest time, in seconds, that the conversion of a single
+	 * shapefile may take before it is stopped and retried. Defaults to 0, for
+	 * no limit.
+	 * 
+	 * @param convertTimeout
+	 */
+	public void setConvertTimeout(long convertTimeout) {
+		this.convertTimeout = convertTimeout;
+	}
+
+	public long getConvertTimeout() {
+		return convertTimeout;
+	}
+
+	/**
+	 * Sets the number of times the conversion of a shapefile is retried if
+	 * it fails or times out. Defaults to 1.
+	 * 
+	 * @param convertRetries
+	 */
+	public void setConvertRetries(int convertRetries) {
+		this.convertRetries = convertRetries;
+	}
+
+	public int getConvertRetries() {
+		return convertRetries;
+	}
+
+	/**
+	 * Sets the compression level for gzipped output, from 1 (fastest) to 9
+	 * (smallest). Defaults to the zlib default, 6.
+	 * 
+	 * @param gzipLevel
+	 */
+	public void setGzipLevel(int gzipLevel) {
+		this.gzipLevel = gzipLevel;
+	}
+
+	public int getGzipLevel() {
+		return gzipLevel;
+	}
+
+	/**
+	 * Sets the size of the blocks which gzipped output is cut into for
+	 * compression in parallel. Defaults to 1M.
+	 * 
+	 * @param gzipBlockSize
+	 */
+	public void setGzipBlockSize(int gzipBlockSize) {
+		this.gzipBlockSize = gzipBlockSize;
+	}
+
+	public int getGzipBlockSize() {
+		return gzipBlockSize;
+	}
+
+	/**
+	 * Sets the size of the blocks in which archives are read and cached.
+	 * Larger blocks mean fewer reads, which helps on network file systems.
+	 * Defaults to 64K.
+	 * 
+	 * @param readBlockSize
+	 */
+	public void setReadBlockSize(int readBlockSize) {
+		this.readBlockSize = readBlockSize;
+	}
+
+	/**
+	 * Sets a delay, in milliseconds, which is added to every read from an
+	 * archive. This simulates a network file system on a local disk, for
+	 * measuring the effect of the block size. Defaults to 0.
+	 * 
+	 * @param simulatedLatency
+	 */
+	public void setSimulatedLatency(long simulatedLatency) {
+		this.simulatedLatency = simulatedLatency;
+	}
+
+	/**
+	 * Sets the number of directories which are listed at once when looking
+	 * for archives. Listings are mostly waiting on the file system, so this
+	 * can be much higher than the number of processors. Defaults to 16.
+	 * 
+	 * @param walkThreads
+	 */
+	public void setWalkThreads(int walkThreads) {
+		this.walkThreads = walkThreads;
+	}
+
+	/**
+	 * Plans the extraction of the files for the given jobs. Each archive is
+	 * matched against the jobs' patterns, and the matching shapefiles are
+	 * recorded in the {@link ExtractionPlan}. Nothing is extracted here; each
+	 * job's files are extracted once the job has started, as they are
+	 * planned, by {@link #extractJob(ExtractorJob, Set)}.
 	 * 
 	 * If a list of archives has been cached, the program will use the cached
 	 * list, otherwise, it will walk the directory recursively to catalogue the
 	 * files and build a new cache.
 	 * 
+	 * The archives are processed in parallel by a pool of
+	 * {@code extractThreads} threads. The entries of each archive are recorded
+	 * in an {@link ArchiveIndex}, so on later runs, archives aren't opened
+	 * just to be matched.
+	 * 
+	 * @param jobs
+	 * @param plan
+	 *            The plan to fill in. It is told as each archive is matched,
+	 *            but not when matching is over.
 	 * @throws IOException
 	 */
-	public void extractFiles() throws IOException {
+	private void planExtraction(List<ExtractorJob> jobs,
+			final ExtractionPlan plan) throws IOException {
 		// Get the list of zip files.
+		long started = System.nanoTime();
 		List<File> archives = getArchives(false);
+		metrics.getEnumerate().record(started, 0);
+		// In a sharded run, only the shard's archives are opened to be
+		// matched. The others are looked up in the index, which the shards
+		// share, since the first shard with files for a job creates its
+		// table, and a shapefile in more than one archive is taken from the
+		// first.
+		List<Integer> orders = new ArrayList<Integer>();
+		int own = 0;
+		for (int i = 0; i < archives.size(); ++i) {
+			orders.add(i);
+			if (isOwn(archives.get(i)))
+				++own;
+		}
+		metrics.setArchives(own);
+		// The index of the archives' entries, so that archives needn't be
+		// opened to be matched.
+		File indexFile = new File(catalogDir, ARCHIVE_INDEX_FILE);
+		ArchiveIndex index = ArchiveIndex.load(indexFile);
+		AtomicInteger skipped = new AtomicInteger();
 
-		logger.info("Extracting " + archives.size() + " archives to " + tempDir
-				+ ".");
-
-		// A set to keep track of files that have already been extracted.
-		Set<String> extracted = new HashSet<String>();
-		// Cache for file objects.
-		Map<String, File> fileCache = new HashMap<String, File>();
-		// Iterate over the archives. If an entry in an archive matches one of
-		// our jobs' feature IDs, we'll unzip it.
-		for (File file : archives) {
-			logger.info("Extracting " + file.getName() + ".");
-			ZipFile archive = new ZipFile(file);
-			Enumeration<? extends ZipEntry> entries = archive.entries();
-			while (entries.hasMoreElements()) {
-				ZipEntry entry = entries.nextElement();
-				String entryName = entry.getName();
-				// Iterate over jobs to find a match.
-				for (ExtractorJob job : jobs) {
-					String pattern = job.getPattern();
-					Matcher matcher = Pattern.compile(pattern).matcher(
-							entry.getName());
-					// If an entry matches the pattern, add it to the extract
-					// set.
-					if (matcher.find()) {
-						if (!fileCache.containsKey(entryName))
-							fileCache.put(entryName, new File(tempDir,
-									entryName));
-						File outFile = fileCache.get(entryName);
-						if (deleteTempFiles)
-							outFile.deleteOnExit();
-						job.addFile(outFile);
-						// If it's already extracted skip it.
-						if (!extracted.contains(entryName)) {
-							try {
-								saveZipEntry(archive, entry, outFile);
-								extracted.add(entryName);
-							} catch (IOException e) {
-								logger.error("Failed to unzip an archive.", e);
-							}
+		logger.info("Matching " + own + " archives using " + extractThreads
+				+ " threads.");
+
+		// Compile the job patterns once.
+		EntryMatcher matcher = new EntryMatcher(jobs);
+		List<Integer> unindexed = matchArchives(archives, orders, false,
+				matcher, index, plan, skipped);
+		saveIndex(index, indexFile);
+		if (!unindexed.isEmpty()) {
+			// Their shards may have indexed them by now; those which haven't
+			// been are opened here.
+			logger.info("Looking up " + unindexed.size()
+					+ " archives of other shards.");
+			index = ArchiveIndex.load(indexFile);
+			matchArchives(archives, unindexed, true, matcher, index, plan,
+					skipped);
+			saveIndex(index, indexFile);
+		}
+		logger.info("Skipped " + skipped.get()
+				+ " archives with no matching entries.");
+	}
+
+	/**
+	 * Matches the given archives on a pool of {@code extractThreads} threads,
+	 * and tells the plan as each is matched. Returns the archives which
+	 * weren't matched, because they belong to another shard and haven't been
+	 * indexed.
+	 * 
+	 * @param archives
+	 *            The catalogue.
+	 * @param orders
+	 *            The positions in the catalogue of the archives to match.
+	 * @param open
+	 *            If true, archives of other shards are opened if necessary.
+	 * @param matcher
+	 * @param index
+	 * @param plan
+	 * @param skipped
+	 *            Counts the archives with no matching entries.
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Integer> matchArchives(List<File> archives,
+			List<Integer> orders, final boolean open,
+			final EntryMatcher matcher, final ArchiveIndex index,
+			final ExtractionPlan plan, final AtomicInteger skipped)
+			throws IOException {
+		final List<Integer> unindexed = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		// Submit a task for each archive. If an entry in an archive matches
+		// one of our jobs' feature IDs, it's added to the plan.
+		ExecutorService pool = Executors.newFixedThreadPool(extractThreads);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		try {
+			for (final int order : orders) {
+				final File file = archives.get(order);
+				results.add(pool.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						long started = System.nanoTime();
+						Boolean matched = planArchive(file, order, matcher,
+								index, plan, open || isOwn(file));
+						metrics.getMatch().record(started, 0);
+						if (matched == null) {
+							unindexed.add(order);
+							return null;
 						}
+						if (!matched)
+							skipped.incrementAndGet();
+						plan.matched(order);
+						return null;
 					}
-				}
+				}));
 			}
-			archive.close();
+			for (Future<?> result : results)
+				result.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while matching archives.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Failed to match archives.", e.getCause());
+		} finally {
+			pool.shutdownNow();
 		}
+		Collections.sort(unindexed);
+		return unindexed;
 	}
 
 	/**
-	 * Save a {@link ZipEntry} to a file.
+	 * Saves the archive index. In a sharded run, the records saved by the
+	 * other shards are kept.
+	 * 
+	 * @param index
+	 * @param indexFile
+	 */
+	private void saveIndex(ArchiveIndex index, File indexFile) {
+		try {
+			if (isSharded())
+				index.saveMerged(indexFile);
+			else
+				index.save(indexFile);
+		} catch (IOException e) {
+			// The index is only an optimization.
+			logger.warn("Failed to save the archive index.", e);
+		}
+	}
+
+	/**
+	 * Returns true if the archive belongs to this run: always, unless the
+	 * run is sharded.
 	 * 
 	 * @param archive
-	 * @param entry
-	 * @param outFile
+	 * @return
+	 */
+	private boolean isOwn(File archive) {
+		return !isSharded()
+				|| ShardMerger.getShard(new File(canvecDir), archive,
+						shardCount) == shardIndex;
+	}
+
+	/**
+	 * Matches the entries of a single archive against the jobs, and adds its
+	 * matching shapefiles to the plan, each with the matching entries that
+	 * share its name. Safe to call from several threads at once.
+	 * 
+	 * If the index has a current record for the archive, the entries are
+	 * matched against it. Otherwise the archive is opened and indexed, if
+	 * that is allowed.
+	 * 
+	 * @param file
+	 *            The archive.
+	 * @param order
+	 *            The archive's position in the catalogue.
+	 * @param matcher
+	 *            The matcher for the jobs' patterns.
+	 * @param index
+	 *            The archive index.
+	 * @param plan
+	 *            The plan to add the shapefiles to.
+	 * @param open
+	 *            If false, an archive which isn't indexed isn't opened.
+	 * @return False if the archive has no matching entries, or null if it
+	 *         wasn't matched because it would have to be opened.
 	 * @throws IOException
 	 */
-	private void saveZipEntry(ZipFile archive, ZipEntry entry, File outFile)
+	private Boolean planArchive(File file, int order, EntryMatcher matcher,
+			ArchiveIndex index, ExtractionPlan plan, boolean open)
 			throws IOException {
-		if (!outFile.exists()) {
-			InputStream zin = archive.getInputStream(entry);
-			OutputStream zout = new BufferedOutputStream(new FileOutputStream(
-					outFile));
-			int read;
-			byte[] buf = new byte[4096];
-			while ((read = zin.read(buf)) > 0)
-				zout.write(buf, 0, read);
-			zout.close();
-			zin.close();
+		// The matching entries, by name.
+		Map<String, ArchiveIndex.Entry> matching = new LinkedHashMap<String, ArchiveIndex.Entry>();
+		ArchiveIndex.Archive record = index.get(file);
+		if (record != null) {
+			for (ArchiveIndex.Entry entry : record.getEntries()) {
+				if (matcher.matches(entry.getName()))
+					matching.put(entry.getName(), entry);
+			}
+		} else if (!open) {
+			return null;
+		} else {
+			// Index the archive as we go.
+			ZipArchive archive = openArchive(file);
+			try {
+				record = new ArchiveIndex.Archive(file);
+				for (ZipEntry entry : archive.getEntries()) {
+					record.addEntry(entry);
+					if (matcher.matches(entry.getName()))
+						matching.put(entry.getName(), new ArchiveIndex.Entry(
+								entry.getName(), entry.getSize(), entry
+										.getCrc()));
+				}
+				index.put(record);
+			} finally {
+				archive.close();
+			}
+		}
+		if (matching.isEmpty())
+			return false;
+		// Group the entries by the shapefile they belong to.
+		Map<String, List<ArchiveIndex.Entry>> companions = new HashMap<String, List<ArchiveIndex.Entry>>();
+		for (ArchiveIndex.Entry entry : matching.values()) {
+			String base = getBaseName(entry.getName());
+			if (!companions.containsKey(base))
+				companions.put(base, new ArrayList<ArchiveIndex.Entry>());
+			companions.get(base).add(entry);
+		}
+		for (String name : matching.keySet()) {
+			if (!name.toLowerCase().endsWith(".shp"))
+				continue;
+			List<ExtractorJob> matched = matcher.match(name);
+			if (matched.isEmpty())
+				continue;
+			plan.add(file, order, name, companions.get(getBaseName(name)),
+					matched);
 		}
+		return true;
 	}
 
 	/**
-	 * Returns the contents of a text file as a list of {@link Strings}.
+	 * Returns an entry name without its extension.
 	 * 
-	 * @param cacheFile
+	 * @param name
 	 * @return
+	 */
+	private static String getBaseName(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot == -1 ? name : name.substring(0, dot);
+	}
+
+	/**
+	 * Starts extracting a job's shapefiles as they are planned. The
+	 * shapefiles from each archive are extracted by a task on the extraction
+	 * pool and offered to the job as each one is ready, so a job needn't wait
+	 * for every archive to be matched. Each is numbered in plan order, by
+	 * archive and then by name, which is the order in which the worker
+	 * appends their output. Once matching is over, the number of shapefiles
+	 * is set on the job, and it is sealed when every task is done, or failed
+	 * if a shapefile can't be extracted.
+	 * 
+	 * Called by the job's worker when it starts, so that only the files of
+	 * running jobs take up temporary space.
+	 * 
+	 * @param job
+	 * @param converted
+	 *            The names of shapefiles which were converted by an earlier
+	 *            run, and are skipped.
+	 */
+	void extractJob(final ExtractorJob job, final Set<String> converted) {
+		final File canvecRoot = new File(canvecDir);
+		// The tasks still to finish, and one for the planning.
+		final AtomicInteger remaining = new AtomicInteger(1);
+		plan.follow(job, new ExtractionPlan.Listener() {
+
+			private boolean rejected;
+
+			public void planned(List<ExtractionPlan.Group> groups) {
+				final List<ExtractionPlan.Group> batch = new ArrayList<ExtractionPlan.Group>();
+				for (ExtractionPlan.Group group : groups) {
+					if (!isOwn(group.getArchive()))
+						continue;
+					if (!converted.contains(new File(group.getShapeEntry())
+							.getName()))
+						batch.add(group);
+				}
+				if (batch.isEmpty() || rejected)
+					return;
+				final int first = job.planShapeFiles(batch.size());
+				remaining.incrementAndGet();
+				Runnable task = new Runnable() {
+					public void run() {
+						metrics.getExtractionQueueGauge().decrementAndGet();
+						try {
+							extractGroups(job, batch, first);
+						} catch (IOException e) {
+							logger.error("Failed to unzip an archive.", e);
+							job.fail(e);
+						} catch (InterruptedException e) {
+							job.fail(new IOException(
+									"Interrupted while extracting."));
+						} finally {
+							if (remaining.decrementAndGet() == 0)
+								job.seal();
+						}
+					}
+				};
+				metrics.getExtractionQueueGauge().incrementAndGet();
+				try {
+					extractionPool.execute(task);
+				} catch (RejectedExecutionException e) {
+					metrics.getExtractionQueueGauge().decrementAndGet();
+					remaining.decrementAndGet();
+					// The run is being shut down.
+					rejected = true;
+					job.fail(new IOException("Extraction has stopped."));
+				}
+			}
+
+			public void finished(boolean complete) {
+				if (!complete)
+					job.fail(new IOException("The archives couldn't be matched."));
+				if (isSharded()) {
+					// The first and last shards with files for the job.
+					int firstShard = 0;
+					int lastShard = 0;
+					for (ExtractionPlan.Group group : plan.getGroups(job)) {
+						int shard = ShardMerger.getShard(canvecRoot,
+								group.getArchive(), shardCount);
+						if (firstShard == 0 || shard < firstShard)
+							firstShard = shard;
+						lastShard = Math.max(lastShard, shard);
+					}
+					job.setCreateTable(firstShard == shardIndex);
+					job.setCreateIndex(lastShard == shardIndex);
+				}
+				job.setShapeFileCount(job.getPlannedShapeFileCount());
+				if (remaining.decrementAndGet() == 0)
+					job.seal();
+			}
+		});
+	}
+
+	/**
+	 * Extracts a job's shapefiles from one archive, and offers each to the
+	 * job as soon as it and its companion files are on disk. A shapefile
+	 * which another job has already extracted is shared. Each shapefile is
+	 * held in the {@link TempSpace} until its worker releases it. With a
+	 * budget, the job's shapefiles take their space in order, since the
+	 * worker can't append a shapefile's output, and free the space of those
+	 * after it, until the shapefile has been extracted.
+	 * 
+	 * @param job
+	 * @param groups
+	 *            The shapefiles, all from the same archive.
+	 * @param first
+	 *            The number of the first shapefile in the job.
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private List<String> getLines(File cacheFile) throws IOException {
-		List<String> lines = new ArrayList<String>();
-		BufferedReader in = new BufferedReader(new FileReader(cacheFile));
-		String line = null;
-		while ((line = in.readLine()) != null)
-			lines.add(line);
-		in.close();
-		return lines;
+	private void extractGroups(ExtractorJob job,
+			List<ExtractionPlan.Group> groups, int first) throws IOException,
+			InterruptedException {
+		File file = groups.get(0).getArchive();
+		boolean cached = extractionCache != null;
+		ZipArchive archive = null;
+		try {
+			for (int i = 0; i < groups.size(); ++i) {
+				ExtractionPlan.Group group = groups.get(i);
+				int index = first + i;
+				File target = cached ? extractionCache.getDirectory(group)
+						: new File(tempDir);
+				File shapeFile = new File(target, group.getShapeEntry());
+				List<File> files = new ArrayList<File>();
+				for (ArchiveIndex.Entry entry : group.getEntries())
+					files.add(new File(target, entry.getName()));
+				// Cached files outlive the run, so they aren't deleted when
+				// released, but they count against the budget while they are
+				// held, and the cache keeps them.
+				long started = System.nanoTime();
+				boolean acquired;
+				if (tempBudget > 0)
+					job.awaitTurn(index);
+				try {
+					acquired = tempSpace.acquire(shapeFile,
+							cached ? Collections.<File> emptyList() : files,
+							group.getSize());
+				} finally {
+					job.endTurn(index);
+				}
+				metrics.getTempWait().record(started, 0);
+				if (acquired) {
+					boolean done = false;
+					try {
+						if (!cached || !extractionCache.lookup(group)) {
+							started = System.nanoTime();
+							if (archive == null) {
+								logger.info("Extracting " + file.getName() + ".");
+								archive = openArchive(file);
+							}
+							File dir = cached ? extractionCache.begin(group)
+									: target;
+							for (ArchiveIndex.Entry e : group.getEntries()) {
+								ZipEntry entry = archive.getEntry(e.getName());
+								if (entry == null)
+									throw new IOException("The entry "
+											+ e.getName() + " is missing from "
+											+ file.getName() + ".");
+								saveZipEntry(archive, entry, new File(dir,
+										e.getName()));
+							}
+							if (cached)
+								extractionCache.commit(group);
+							metrics.getExtract().record(started,
+									group.getSize());
+						}
+						done = true;
+					} finally {
+						if (done)
+							tempSpace.ready(shapeFile);
+						else
+							tempSpace.failed(shapeFile);
+					}
+				}
+				metrics.getPendingShapeFileGauge().incrementAndGet();
+				job.offerShapeFile(shapeFile, index);
+			}
+		} finally {
+			if (archive != null)
+				archive.close();
+		}
+	}
+
+	/**
+	 * Opens an archive through a block cache, and through a simulated
+	 * network delay if one is configured.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private ZipArchive openArchive(File file) throws IOException {
+		SeekableSource source = new FileSource(file);
+		if (simulatedLatency > 0)
+			source = new LatencySource(source, simulatedLatency);
+		source = new CachingSource(source, readBlockSize, CACHE_BLOCKS,
+				READ_AHEAD_BLOCKS);
+		return new ZipArchive(source, file.getName());
+	}
+
+	/**
+	 * Save a {@link ZipEntry} to a file. The entry is written to a ".part"
+	 * file, which is renamed once the entry's size and CRC have been checked,
+	 * so a failed extraction never leaves a partial file under the entry's
+	 * name.
+	 * 
+	 * @param archive
+	 * @param entry
+	 * @param outFile
+	 * @throws IOException
+	 */
+	static void saveZipEntry(ZipArchive archive, ZipEntry entry, File outFile)
+			throws IOException {
+		File part = new File(outFile.getPath() + ".part");
+		InputStream zin = archive.getInputStream(entry);
+		boolean done = false;
+		try {
+			OutputStream zout = new BufferedOutputStream(new FileOutputStream(
+					part));
+			try {
+				int read;
+				byte[] buf = new byte[65536];
+				while ((read = zin.read(buf)) > -1)
+					zout.write(buf, 0, read);
+			} finally {
+				zout.close();
+			}
+			if (outFile.exists() && !outFile.delete())
+				throw new IOException("Failed to replace " + outFile + ".");
+			if (!part.renameTo(outFile))
+				throw new IOException("Failed to rename " + part + ".");
+			done = true;
+		} finally {
+			zin.close();
+			if (!done)
+				part.delete();
+		}
 	}
 
 	/**
 	 * Returns a list of {@link File}s corresponding to Zip files in the CanVec
-	 * folder. If {@code discardCache} is false, attempts to read from a cached
-	 * list of files.
+	 * folder. The list is kept in an {@link ArchiveCatalog}; unless
+	 * {@code discardCache} is true, only the directories which have changed
+	 * since the last run are listed again.
 	 * 
 	 * @param discardCache
 	 * @return
@@ -375,49 +1416,21 @@ public class Extractor {
 			throw new IOException("The temp dir has not been configured.");
 		if (canvecDir == null)
 			throw new IOException("The canvec dir has not been configured.");
-		List<File> archives = null;
 		// Create the cache file, then try to create its parent, if it doesn't
 		// exist.
-		File cacheDir = new File(tempDir, "canvec");
-		if (!cacheDir.exists() && !cacheDir.mkdirs())
-			throw new IOException("The temporary directory, " + tempDir
-					+ "/canvec, does not exist and could not be created.");
-		File cacheFile = new File(cacheDir, FILE_TABLE_CACHE_FILE);
-		if (!discardCache && (cacheFile.exists() || cacheFile.canRead())) {
-			archives = new ArrayList<File>();
-			for (String line : getLines(cacheFile))
-				archives.add(new File(line));
-		} else {
-			archives = findArchives(new File(canvecDir));
-			BufferedWriter out = new BufferedWriter(new FileWriter(cacheFile));
-			for (File file : archives)
-				out.write(file.getAbsolutePath() + "\n");
-			out.close();
-		}
+		if (!catalogDir.exists() && !catalogDir.mkdirs())
+			throw new IOException("The temporary directory, " + catalogDir
+					+ ", does not exist and could not be created.");
+		File cacheFile = new File(catalogDir, FILE_TABLE_CACHE_FILE);
+		ArchiveCatalog catalog = discardCache ? new ArchiveCatalog()
+				: ArchiveCatalog.load(cacheFile);
+		List<File> archives = catalog.refresh(new File(canvecDir),
+				walkThreads);
+		if (catalog.getListedCount() > 0)
+			catalog.save(cacheFile);
 		return archives;
 	}
 
-	/**
-	 * Recursively searches a path for Zip files.
-	 * 
-	 * @param path
-	 * @return
-	 */
-	private static List<File> findArchives(File path) {
-		List<File> files = new ArrayList<File>();
-		if (path.isDirectory()) {
-			for (File sub : path.listFiles()) {
-				if (sub.isDirectory()) {
-					List<File> subFiles = findArchives(sub);
-					files.addAll(subFiles);
-				} else if (sub.getName().toLowerCase().endsWith(".zip")) {
-					files.add(sub);
-				}
-			}
-		}
-		return files;
-	}
-
 	/**
 	 * Parse the jobs file and construct a list of {@link ExtractorJob}s.
 	 * 
@@ -461,6 +1474,8 @@ public class Extractor {
 						logger.error("A value was given for the SRID, but it was invalid. Using the default.");
 					}
 				}
+				if (parts.length > 5)
+					job.setFormat(parts[5].trim().toLowerCase());
 				jobs.add(job);
 				logger.info("Loaded job: " + job.toString());
 			}
@@ -480,7 +1495,7 @@ public class Extractor {
 	public static void main(String[] args) {
 		// If there are no args, just quit with a message.
 		if (args.length == 0) {
-			logger.error("Usage: java -jar canvec_extractor.jar <configuration> [stdout]");
+			logger.error("Usage: java -jar canvec_extractor.jar <configuration> [-] [--resume] [--shard i/n | --merge n]");
 			System.exit(1);
 		}
 		// Check the jobs file. Exit with a message if it's unreadable.
@@ -489,12 +1504,49 @@ public class Extractor {
 			logger.error("The given configuration file does not exist or cannot be read.");
 			System.exit(1);
 		}
-		// If there's a second parameter, and it's "-", stream the output to
-		// stdout,
-		// regardless of the output files specified in the jobs file.
+		// If there's a "-" parameter, stream the output to stdout, regardless
+		// of the output files specified in the jobs file. If there's a
+		// --resume parameter, continue from the journal of the last run.
+		// With --shard i/n, only convert the i-th of n shares of the archives;
+		// with --merge n, join the parts written by n shards.
 		boolean useStdOut = false;
-		if (args.length > 1 && "-".equals(args[1]))
-			useStdOut = true;
+		boolean resume = false;
+		int shardIndex = 0;
+		int shardCount = 0;
+		int mergeCount = 0;
+		for (int i = 1; i < args.length; ++i) {
+			if ("-".equals(args[i])) {
+				useStdOut = true;
+			} else if ("--resume".equals(args[i])) {
+				resume = true;
+			} else if ("--shard".equals(args[i]) && i + 1 < args.length) {
+				try {
+					String[] parts = args[++i].split("/");
+					shardIndex = Integer.parseInt(parts[0]);
+					shardCount = Integer.parseInt(parts[1]);
+					if (shardCount < 1 || shardIndex < 1
+							|| shardIndex > shardCount)
+						throw new IllegalArgumentException();
+				} catch (Exception e) {
+					logger.error("The shard must be given as i/n, from 1/n to n/n: {}.",
+							args[i]);
+					System.exit(1);
+				}
+			} else if ("--merge".equals(args[i]) && i + 1 < args.length) {
+				try {
+					mergeCount = Integer.parseInt(args[++i]);
+					if (mergeCount < 1)
+						throw new IllegalArgumentException();
+				} catch (Exception e) {
+					logger.error("The number of shards to merge is invalid: {}.",
+							args[i]);
+					System.exit(1);
+				}
+			} else {
+				logger.error("Unrecognized argument: {}.", args[i]);
+				System.exit(1);
+			}
+		}
 		// Parse the jobs file; build the jobs list and config map.
 		Map<String, String> config = new HashMap<String, String>();
 		List<ExtractorJob> jobs = null;
@@ -509,8 +1561,22 @@ public class Extractor {
 			logger.error("No jobs to process. Quitting.");
 			System.exit(0);
 		}
+		// Join the shards' parts, and stop.
+		if (mergeCount > 0) {
+			try {
+				for (ExtractorJob job : jobs)
+					ShardMerger.merge(job, mergeCount);
+			} catch (IOException e) {
+				logger.error("Failed to merge the shards.", e);
+				System.exit(1);
+			}
+			return;
+		}
 		// Build and configure the extractor.
 		Extractor extractor = new Extractor();
+		extractor.setResume(resume);
+		if (shardCount > 0)
+			extractor.setShard(shardIndex, shardCount);
 		// Set the global props from the jobs file.
 		for (String key : config.keySet()) {
 			if ("canvecDir".equals(key)) {
@@ -519,11 +1585,147 @@ public class Extractor {
 				extractor.setTempDir(config.get(key));
 			} else if ("numWorkers".equals(key)) {
 				try {
-					extractor.setNumWorkers(Integer.parseInt(config.get(key)));
+					if ("auto".equals(config.get(key)))
+						extractor.setAdaptiveWorkers(true);
+					else
+						extractor.setNumWorkers(Integer.parseInt(config
+								.get(key)));
 				} catch (Exception e) {
 					logger.error("The value for numWorkers was invalid.", e);
 					System.exit(1);
 				}
+			} else if ("minWorkers".equals(key)) {
+				try {
+					extractor.setMinWorkers(Integer.parseInt(config.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for minWorkers was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("maxWorkers".equals(key)) {
+				try {
+					extractor.setMaxWorkers(Integer.parseInt(config.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for maxWorkers was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("extractThreads".equals(key)) {
+				try {
+					extractor.setExtractThreads(Integer.parseInt(config
+							.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for extractThreads was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("walkThreads".equals(key)) {
+				try {
+					extractor
+							.setWalkThreads(Integer.parseInt(config.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for walkThreads was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("convertTimeout".equals(key)) {
+				try {
+					extractor.setConvertTimeout(Long.parseLong(config.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for convertTimeout was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("convertRetries".equals(key)) {
+				try {
+					extractor.setConvertRetries(Integer.parseInt(config
+							.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for convertRetries was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("tempBudget".equals(key)) {
+				try {
+					extractor.setTempBudget(Long.parseLong(config.get(key))
+							* 1024 * 1024);
+				} catch (Exception e) {
+					logger.error("The value for tempBudget was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("extractCacheSize".equals(key)) {
+				try {
+					extractor.setExtractCacheSize(Long.parseLong(config
+							.get(key)) * 1024 * 1024);
+				} catch (Exception e) {
+					logger.error("The value for extractCacheSize was invalid.",
+							e);
+					System.exit(1);
+				}
+			} else if ("gzipLevel".equals(key)) {
+				try {
+					int level = Integer.parseInt(config.get(key));
+					if (level < 1 || level > 9)
+						throw new IllegalArgumentException(
+								"The level must be from 1 to 9.");
+					extractor.setGzipLevel(level);
+				} catch (Exception e) {
+					logger.error("The value for gzipLevel was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("gzipBlockSize".equals(key)) {
+				try {
+					extractor.setGzipBlockSize(Integer.parseInt(config
+							.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for gzipBlockSize was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("readBlockSize".equals(key)) {
+				try {
+					extractor.setReadBlockSize(Integer.parseInt(config
+							.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for readBlockSize was invalid.", e);
+					System.exit(1);
+				}
+			} else if ("simulatedLatency".equals(key)) {
+				try {
+					extractor.setSimulatedLatency(Long.parseLong(config
+							.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for simulatedLatency was invalid.",
+							e);
+					System.exit(1);
+				}
+			} else if ("converter".equals(key)) {
+				String value = config.get(key);
+				if ("native".equals(value)) {
+					extractor.setConverter(new NativeShapeConverter());
+				} else if ("shp2pgsql".equals(value)) {
+					extractor.setConverter(new ProcessShapeConverter());
+				} else {
+					logger.error("The value for converter was invalid: {}.",
+							value);
+					System.exit(1);
+				}
+			} else if ("launcher".equals(key)) {
+				String value = config.get(key);
+				if ("helper".equals(value)) {
+					extractor.setLauncher(new HelperLauncher());
+				} else if ("direct".equals(value)) {
+					extractor.setLauncher(new DirectLauncher());
+				} else {
+					logger.error("The value for launcher was invalid: {}.",
+							value);
+					System.exit(1);
+				}
+			} else if ("journal".equals(key)) {
+				extractor.setUseJournal("true".equals(config.get(key)));
+			} else if ("progressFile".equals(key)) {
+				extractor.setProgressFile(config.get(key));
+			} else if ("progressInterval".equals(key)) {
+				try {
+					extractor.setProgressInterval(Long.parseLong(config
+							.get(key)));
+				} catch (Exception e) {
+					logger.error("The value for progressInterval was invalid.", e);
+					System.exit(1);
+				}
 			} else if ("deleteTempFiles".equals(key)) {
 				extractor.setDeleteTempFiles("true".equals(config.get(key)));
 			} else if ("charset".equals(key)) {
@@ -536,7 +1738,8 @@ public class Extractor {
 		// Add the jobs.
 		for (ExtractorJob job : jobs)
 			extractor.addJob(job);
-		extractor.execute(useStdOut);
+		if (!extractor.execute(useStdOut))
+			System.exit(1);
 	}
 
 	public String getCharset() {
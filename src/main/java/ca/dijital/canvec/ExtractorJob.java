@@ -1,8 +1,10 @@
 package ca.dijital.canvec;
 
 import java.io.File;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * {@link ExtractorJob} contains configuration for CanVec extraction tasks. A
@@ -14,21 +16,52 @@ public class ExtractorJob {
 
 	public static final int DEFAULT_SRID = 4326;
 
+	/**
+	 * Output format: INSERT statements, as written by shp2pgsql.
+	 */
+	public static final String FORMAT_INSERT = "insert";
+
+	/**
+	 * Output format: COPY ... FROM stdin, in text format.
+	 */
+	public static final String FORMAT_COPY = "copy";
+
+	/**
+	 * Output format: a binary (PGCOPY) data file, with a script containing
+	 * the table DDL which loads it.
+	 */
+	public static final String FORMAT_BINARY = "binary";
+
 	private String schemaName;
 	private String tableName;
 	private String pattern;
 	private String outFile;
 	private String name;
-	private Set<File> files;
+	private LinkedList<File> pendingShapeFiles;
+	private Map<File, Integer> offeredShapeFiles;
+	private int plannedShapeFiles;
+	private int extractTurn;
+	private boolean sealed;
+	private boolean changed;
+	private IOException failure;
+	private volatile int shapeFileCount;
+	private volatile boolean createTable;
+	private volatile boolean createIndex;
 	private File tempFile;
 	private int srid;
+	private String format;
 
 	/**
 	 * Construct an {@link ExtractorJob}.
 	 */
 	public ExtractorJob() {
 		srid = DEFAULT_SRID;
-		files = new HashSet<File>();
+		format = FORMAT_INSERT;
+		pendingShapeFiles = new LinkedList<File>();
+		offeredShapeFiles = new HashMap<File, Integer>();
+		shapeFileCount = -1;
+		createTable = true;
+		createIndex = true;
 		this.name = "job_" + Long.toString(System.currentTimeMillis(), 16);
 	}
 
@@ -69,40 +102,208 @@ public class ExtractorJob {
 	}
 
 	/**
-	 * Get the list of files related to this job. The returned list is a copy.
+	 * Numbers the next shapefiles planned for the job, in the order in which
+	 * their output is appended. Returns the number of the first.
 	 * 
+	 * @param count
+	 *            The number of shapefiles.
 	 * @return
 	 */
-	public Set<File> getFiles() {
-		Set<File> ret = new HashSet<File>();
-		ret.addAll(files);
-		return ret;
+	public synchronized int planShapeFiles(int count) {
+		int first = plannedShapeFiles;
+		plannedShapeFiles += count;
+		wake();
+		return first;
 	}
 
 	/**
-	 * Get the list of shapefiles related to this job. The returned list is a
-	 * copy.
+	 * Returns the number of shapefiles planned so far.
 	 * 
 	 * @return
 	 */
-	public Set<File> getShapeFiles() {
-		Set<File> shp = new HashSet<File>();
-		if (files != null) {
-			for (File file : files) {
-				if (file.getName().toLowerCase().endsWith(".shp"))
-					shp.add(file);
-			}
+	public synchronized int getPlannedShapeFileCount() {
+		return plannedShapeFiles;
+	}
+
+	/**
+	 * Waits until the shapefiles numbered before the given one have been
+	 * given their temporary space, so that space is handed out in the order
+	 * in which the output is appended, and an earlier shapefile never waits
+	 * for space held by a later one.
+	 * 
+	 * @param index
+	 * @throws IOException
+	 *             If the job's input couldn't be extracted.
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitTurn(int index) throws IOException,
+			InterruptedException {
+		while (extractTurn < index && failure == null)
+			wait();
+		if (failure != null)
+			throw new IOException("Failed to extract the files for job "
+					+ name + ".", failure);
+	}
+
+	/**
+	 * Lets the next shapefile have its temporary space.
+	 * 
+	 * @param index
+	 */
+	public synchronized void endTurn(int index) {
+		extractTurn = Math.max(extractTurn, index + 1);
+		notifyAll();
+	}
+
+	/**
+	 * Queues a shapefile for conversion. Called once the shapefile and its
+	 * companion files have been extracted. A file that has already been
+	 * offered is ignored.
+	 * 
+	 * @param file
+	 * @param index
+	 *            The shapefile's number, from {@link #planShapeFiles(int)}.
+	 */
+	public synchronized void offerShapeFile(File file, int index) {
+		if (sealed)
+			throw new IllegalStateException("The job " + name
+					+ " is sealed; no more files can be added.");
+		if (!offeredShapeFiles.containsKey(file)) {
+			offeredShapeFiles.put(file, index);
+			pendingShapeFiles.add(file);
+			wake();
 		}
-		return shp;
 	}
 
 	/**
-	 * Add a file to this job.
+	 * Returns the number of a shapefile which has been offered.
 	 * 
 	 * @param file
+	 * @return
+	 */
+	public synchronized int getShapeFileIndex(File file) {
+		return offeredShapeFiles.get(file);
+	}
+
+	/**
+	 * Marks the end of the job's input. After this is called, no more
+	 * shapefiles will be offered, and {@link #pollShapeFile()} returning null
+	 * means that all of them have been taken.
+	 */
+	public synchronized void seal() {
+		sealed = true;
+		wake();
+	}
+
+	/**
+	 * Marks the job as failed because its input couldn't be extracted.
+	 * {@link #pollShapeFile()} throws an exception from then on; shapefiles
+	 * which are still offered are ignored.
+	 * 
+	 * @param failure
+	 */
+	public synchronized void fail(IOException failure) {
+		if (this.failure == null)
+			this.failure = failure;
+		wake();
+	}
+
+	/**
+	 * Sets the number of shapefiles which will be offered to the job, once
+	 * all of them have been planned.
+	 * 
+	 * @param shapeFileCount
+	 */
+	public synchronized void setShapeFileCount(int shapeFileCount) {
+		this.shapeFileCount = shapeFileCount;
+		wake();
+	}
+
+	/**
+	 * Returns the number of shapefiles which will be offered to the job, or
+	 * -1 if it isn't known.
+	 * 
+	 * @return
+	 */
+	public int getShapeFileCount() {
+		return shapeFileCount;
+	}
+
+	/**
+	 * Sets whether this part of the job creates the table. When a run is
+	 * split into shards, only the first shard with files for the job does.
+	 * Defaults to true.
+	 * 
+	 * @param createTable
 	 */
-	public void addFile(File file) {
-		files.add(file);
+	public void setCreateTable(boolean createTable) {
+		this.createTable = createTable;
+	}
+
+	public boolean isCreateTable() {
+		return createTable;
+	}
+
+	/**
+	 * Sets whether this part of the job creates the index. When a run is
+	 * split into shards, only the last shard with files for the job does.
+	 * Defaults to true.
+	 * 
+	 * @param createIndex
+	 */
+	public void setCreateIndex(boolean createIndex) {
+		this.createIndex = createIndex;
+	}
+
+	public boolean isCreateIndex() {
+		return createIndex;
+	}
+
+	/**
+	 * Returns true if the job's input is complete.
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * Returns the next shapefile which is ready for conversion, or null if
+	 * there is none yet.
+	 * 
+	 * @return
+	 * @throws IOException
+	 *             If the job's input couldn't be extracted.
+	 */
+	public synchronized File pollShapeFile() throws IOException {
+		if (failure != null)
+			throw new IOException("Failed to extract the files for job "
+					+ name + ".", failure);
+		return pendingShapeFiles.poll();
+	}
+
+	/**
+	 * Waits until something happens to the job: a shapefile is offered, the
+	 * job is sealed or fails, its number of shapefiles is set, or
+	 * {@link #wake()} is called. Returns at once if something has happened
+	 * since the last wait.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitChange() throws InterruptedException {
+		while (!changed)
+			wait();
+		changed = false;
+	}
+
+	/**
+	 * Wakes the thread in {@link #awaitChange()}, so that it can look at
+	 * something other than the job's input, such as a finished conversion.
+	 */
+	public synchronized void wake() {
+		changed = true;
+		notifyAll();
 	}
 
 	/**
@@ -159,7 +360,9 @@ public class ExtractorJob {
 		return outFile != null && outFile.length() > 0 && pattern != null
 				&& pattern.length() > 0 && name != null && name.length() > 0
 				&& schemaName != null && schemaName.length() > 0
-				&& tableName != null && tableName.length() > 0;
+				&& tableName != null && tableName.length() > 0
+				&& (FORMAT_INSERT.equals(format) || FORMAT_COPY.equals(format) || FORMAT_BINARY
+						.equals(format));
 	}
 
 	/**
@@ -167,13 +370,14 @@ public class ExtractorJob {
 	 */
 	public String toString() {
 		return "[ExtractorJob: pattern: " + pattern + "; table name: "
-				+ tableName + "; output file: " + outFile + "]";
+				+ tableName + "; output file: " + outFile + "; format: "
+				+ format + "]";
 	}
 
 	/**
 	 * Sets the temporary file for this job. If the extractor is set to output
-	 * to STDOUT, the output must be streamed in order, so it must be stored in
-	 * temporary files until the end. This method handles the file for this job.
+	 * to STDOUT and another job is writing to it, the output is stored in a
+	 * temporary file until STDOUT is free.
 	 * 
 	 * @param tempFile
 	 *            The temporary file for this job.
@@ -212,4 +416,37 @@ public class ExtractorJob {
 		return srid;
 	}
 
+	/**
+	 * Sets the output format; one of {@link #FORMAT_INSERT},
+	 * {@link #FORMAT_COPY} or {@link #FORMAT_BINARY}.
+	 * 
+	 * @param format
+	 */
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
+	/**
+	 * Returns the output format.
+	 * 
+	 * @return
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Returns the file which receives the script that loads a binary
+	 * output file: the output file name, without any .gz extension, followed
+	 * by .sql.
+	 * 
+	 * @return
+	 */
+	public File getScriptFile() {
+		String fileName = outFile;
+		if (fileName.endsWith(".gz"))
+			fileName = fileName.substring(0, fileName.length() - 3);
+		return new File(fileName + ".sql");
+	}
+
 }
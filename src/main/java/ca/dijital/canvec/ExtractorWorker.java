@@ -2,20 +2,32 @@ package ca.dijital.canvec;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Set;
-import java.util.zip.GZIPOutputStream;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Performs the work of an ExtractorJob in a separate thread by invoking the
- * command-line utility.
+ * Performs the work of an ExtractorJob by converting its shapefiles with the
+ * extractor's {@link ShapeConverter}. Workers are run on the threads of a
+ * {@link JobScheduler}.
  * 
  * @author Rob Skelly <rob@dijital.ca>
  */
@@ -26,223 +38,538 @@ public class ExtractorWorker implements Runnable {
 
 	private Thread thread;
 	private ExtractorJob job;
-	private boolean running;
-	private boolean busy;
-	private boolean failed;
+	private volatile boolean running;
+	private volatile boolean failed;
 	private boolean useStdOut;
+	private FileOutputStream fileOut;
+	private int appended;
 
 	private Extractor extractor;
 
 	/**
-	 * Starts the worker with the given job. If the worker is in use, an
-	 * exception is thrown. If the stdOutParameter is true, outputs all SQL to
-	 * STDOUT.
+	 * Construct a worker for the given job. If the useStdOut parameter is
+	 * true, outputs all SQL to STDOUT. The worker is run by a
+	 * {@link JobScheduler}.
 	 * 
+	 * @param extractor
 	 * @param job
 	 * @param useStdOut
 	 */
-	public void start(final Extractor extractor, final ExtractorJob job,
-			boolean useStdOut) throws Exception {
-		if (!running) {
-			busy = true;
-			running = true;
-			failed = false;
-			this.extractor = extractor;
-			this.useStdOut = useStdOut;
-			this.job = job;
-			this.thread = new Thread(this);
-			this.thread.start();
-		} else {
-			throw new Exception("This worker is not free.");
-		}
+	public ExtractorWorker(Extractor extractor, ExtractorJob job,
+			boolean useStdOut) {
+		this.extractor = extractor;
+		this.job = job;
+		this.useStdOut = useStdOut;
+		running = true;
 	}
 
 	/**
-	 * Stops the worker.
+	 * Stops the worker. Does not wait for it to finish.
 	 */
-	public void stop() {
+	public synchronized void stop() {
 		if (running) {
 			running = false;
-			try {
-				thread.join();
-			} catch (InterruptedException e) {
-				logger.error("Error stopping worker.", e);
-			} finally {
-				job = null;
-				busy = false;
-			}
+			// Wake the worker if it is waiting for files.
+			if (thread != null)
+				thread.interrupt();
 		}
 	}
 
 	/**
-	 * Returns true if the worker is running.
+	 * Returns true if the job failed.
 	 * 
 	 * @return
 	 */
-	public boolean isBusy() {
-		return busy;
+	public boolean isFailure() {
+		return failed;
 	}
 
 	/**
-	 * Returns true if the job failed.
+	 * Opens the output stream for the job. If useStdOut is true, the output
+	 * goes to STDOUT, or to a temporary file if another job is using it. In the
+	 * binary format, the COPY header is written first.
+	 * 
+	 * If the job is being resumed, its output file is cut to the last length
+	 * in the journal and appended to.
 	 * 
+	 * @param state
+	 *            The job's state from the journal, or null.
 	 * @return
+	 * @throws IOException
 	 */
-	public boolean isFailure() {
-		return failed;
+	private OutputStream openOutput(Journal.State state) throws IOException {
+		// STDOUT is shared with the other jobs.
+		if (useStdOut)
+			return extractor.getMultiplexer().open(job);
+		boolean binary = ExtractorJob.FORMAT_BINARY.equals(job.getFormat());
+		boolean compress = false;
+		// Create output file.
+		if (job.getOutFile().endsWith(".gz"))
+			compress = true;
+		File outFile = extractor.getOutputFile(job);
+		if (state != null) {
+			RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+			try {
+				raf.setLength(state.getLength());
+			} finally {
+				raf.close();
+			}
+		}
+		// Create a file output, and GZIP it if necessary.
+		fileOut = new FileOutputStream(outFile, state != null);
+		OutputStream out = new BufferedOutputStream(fileOut);
+		// If compression is desired, wrap the output in a gzip stream. Blocks
+		// are compressed in parallel; allow two per processor in memory.
+		if (compress)
+			out = new ParallelGzipOutputStream(out,
+					extractor.getCompressionPool(), extractor.getGzipLevel(),
+					extractor.getGzipBlockSize(), 2 * Runtime.getRuntime()
+							.availableProcessors());
+		// A shard's part has no header; it's added when the parts are joined.
+		if (binary && state == null && !extractor.isSharded())
+			PgCopy.writeHeader(out);
+		return out;
+	}
+
+	/**
+	 * Writes everything written so far to the output file, and syncs it, so
+	 * that the output could be cut at this point. Returns the length of the
+	 * file.
+	 * 
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	private long sync(OutputStream out) throws IOException {
+		if (out instanceof ParallelGzipOutputStream)
+			((ParallelGzipOutputStream) out).finishMember();
+		else
+			out.flush();
+		fileOut.getChannel().force(false);
+		return fileOut.getChannel().position();
 	}
 
+	/**
+	 * Starts the extraction of the job's shapefiles, and converts them as they
+	 * become available. The number of shapefiles is known once every archive
+	 * has been matched; until then, the latest shapefile planned is held back,
+	 * since it may be the last, which creates the index.
+	 * 
+	 * Each file is converted to its own segment on the extractor's converter
+	 * pool, so a job's files are converted in parallel, in whatever order they
+	 * are extracted. The segments are appended to the output in the order of
+	 * the plan, by archive and then by name, so the output is the same from
+	 * run to run; the plan's first shapefile drops and creates the table and
+	 * its last creates the index.
+	 * 
+	 * If the extractor keeps a journal, each appended segment is recorded in
+	 * it. A job which the journal shows as finished is skipped, and one which
+	 * was started is resumed after its last recorded segment.
+	 */
 	@Override
 	public void run() {
-		while (running) {
-			Set<File> shapeFiles = job.getShapeFiles();
-			Iterator<File> files = shapeFiles.iterator();
-			boolean compress = false;
-			String charset = extractor.getCharset();
-			// Create output file.
-			String fileName = job.getOutFile();
-			if (fileName.endsWith(".gz"))
-				compress = true;
-			File outFile = new File(fileName);
-			OutputStream out = null;
-			try {
-				// If useStdOut is true, we'll need a temporary file.
-				if (useStdOut) {
-					outFile = File.createTempFile("canvec_", ".tmp", new File(
-							extractor.getTempDir()));
-					compress = false;
-					job.setTempFile(outFile);
-				}
-				// Create a file output, and GZIP it if necessary.
-				out = new BufferedOutputStream(new FileOutputStream(outFile));
-				// If compression is desired, wrap the output in a gzip stream.
-				if (compress)
-					out = new GZIPOutputStream(out);
-			} catch (IOException e) {
-				logger.error("Failed to open output file {} in job {}.",
-						job.getOutFile(), job.getName(), e);
-				failed = true;
-				break;
+		synchronized (this) {
+			thread = Thread.currentThread();
+		}
+		Metrics metrics = extractor.getMetrics();
+		metrics.getQueuedJobGauge().decrementAndGet();
+		metrics.getActiveWorkerGauge().incrementAndGet();
+		long started = System.nanoTime();
+		// Segments and their shapefiles, by the shapefiles' numbers.
+		TreeMap<Integer, Future<File>> segments = new TreeMap<Integer, Future<File>>();
+		TreeMap<Integer, File> shapeFiles = new TreeMap<Integer, File>();
+		appended = 0;
+		// Shapefiles received, but not yet submitted, since whether they are
+		// first or last isn't known.
+		LinkedList<File> held = new LinkedList<File>();
+		Journal journal = extractor.getJournal();
+		OutputStream out = null;
+		boolean skipped = false;
+		try {
+			Journal.State state = journal == null ? null : journal
+					.getState(job);
+			if (state != null && state.isDone()) {
+				logger.info("Job {} was finished by an earlier run. Skipping it.",
+						job.getName());
+				skipped = true;
+				return;
+			}
+			if (state != null
+					&& extractor.getOutputFile(job).length() < state.getLength()) {
+				logger.warn("The output of job {} is shorter than the journal records. Starting it again.",
+						job.getName());
+				state = null;
+			}
+			Set<String> converted = Collections.emptySet();
+			if (state != null) {
+				converted = state.getShapeFiles();
+				out = openOutput(state);
+				logger.info("Resuming job {} after {} shapefiles.",
+						job.getName(), converted.size());
 			}
+			extractor.extractJob(job, converted);
 			int i = 0;
-			int end = shapeFiles.size() - 1;
-			while (running && files.hasNext()) {
-				File file = files.next();
-				if (file.getName().toLowerCase().endsWith("shp")) {
-					logger.info("Processing file {}.", file.getName());
-
-					// Build shp2pgsql command.
-					StringBuffer command = new StringBuffer("shp2pgsql ");
-					if (i == 0) {
-						command.append("-d ");
-					} else {
-						command.append("-a ");
-					}
-					// If it's the last item, create an index.
-					if (i == end)
-						command.append("-I ");
-					// Set the charset.
-					command.append("-W ").append(charset).append(" ");
-					// Set the SRID
-					command.append("-s ").append(job.getSrid()).append(" ");
-					// Set the ouput file name.
-					command.append(file.getAbsolutePath()).append(" ");
-					// Set the schema/table name.
-					command.append(job.getSchemaName()).append(".")
-							.append(job.getTableName());
-
-					String commandStr = command.toString();
-
-					logger.info("shp2pgsql command: " + commandStr);
-
-					try {
-						// Start a process for the command and get the input
-						// stream.
-						Process proc = Runtime.getRuntime().exec(commandStr);
-						InputStream in = proc.getInputStream();
-						// Write the shp2pgsql output to the output stream.
-						byte[] buf = new byte[1024];
-						int read = 0;
-						int accum = 0;
-						int maxAccum = 1024 * 1024;
-						while (running && (read = in.read(buf)) > -1) {
-							out.write(buf, 0, read);
-							// If we've accumulated more than 1M of data, flush
-							// it.
-							accum += read;
-							if (accum > maxAccum)
-								out.flush();
-						}
-						in.close();
-
-						// Wait for the process to finish, and report any
-						// problems.
-						int retval = proc.waitFor();
-						if (retval != 0) {
-							String err = stringFromStream(proc.getErrorStream());
-							logger.warn(
-									"Return value from shp2pgsql was {}; {}",
-									retval, err);
-						}
-						logger.info("File complete", file.getName());
-					} catch (IOException e) {
-						logger.error("Failed while processing job {}.",
-								job.getName(), e);
-						failed = true;
+			while (running) {
+				boolean sealed = job.isSealed();
+				File next = job.pollShapeFile();
+				if (next == null) {
+					if (sealed)
 						break;
-					} catch (InterruptedException e) {
-						logger.error("Failed while processing job {}.",
-								job.getName(), e);
-						failed = true;
-						break;
-					}
-					++i;
+					// Finished segments are appended while waiting, since
+					// they count against the temporary space from which the
+					// next shapefile is extracted.
+					long waited = System.nanoTime();
+					job.awaitChange();
+					metrics.getInputWait().record(waited, 0);
+					i = submit(held, i, converted.isEmpty(), segments,
+							shapeFiles);
+					appendDone(segments, shapeFiles, out);
+					continue;
 				}
+				metrics.getPendingShapeFileGauge().decrementAndGet();
+				if (out == null) {
+					out = openOutput(null);
+					if (journal != null)
+						journal.started(job, sync(out));
+				}
+				held.add(next);
+				i = submit(held, i, converted.isEmpty(), segments, shapeFiles);
+				appendDone(segments, shapeFiles, out);
 			}
+			// The job is sealed, so its number of shapefiles is known.
+			if (running)
+				i = submit(held, i, converted.isEmpty(), segments, shapeFiles);
+			while (running && !segments.isEmpty())
+				appendNext(segments, shapeFiles, out);
+			if (running && out != null && !extractor.isSharded()
+					&& ExtractorJob.FORMAT_BINARY.equals(job.getFormat()))
+				PgCopy.writeTrailer(out);
+			if (i == 0 && converted.isEmpty() && running
+					&& !extractor.isSharded())
+				logger.warn("No files available for job with pattern: {}.",
+						job.getPattern());
+		} catch (IOException e) {
+			logger.error("Failed while processing job {}.", job.getName(), e);
+			failed = true;
+		} catch (ExecutionException e) {
+			logger.error("Failed while processing job {}.", job.getName(),
+					e.getCause());
+			failed = true;
+		} catch (InterruptedException e) {
+			if (running) {
+				logger.error("Failed while processing job {}.",
+						job.getName(), e);
+				failed = true;
+			}
+		} finally {
+			// Abandon any segments that weren't appended.
+			for (Future<File> segment : segments.values())
+				discardSegment(segment);
+			for (File shapeFile : held)
+				extractor.getTempSpace().release(shapeFile);
 			try {
-				// If gzipping, finish the archive.
-				if (!useStdOut && compress)
-					((GZIPOutputStream) out).finish();
-
-				// Close the stream.
-				out.close();
+				// Close the stream. This finishes the archive if gzipping.
+				if (out != null)
+					out.close();
+				if (running && !failed && !skipped) {
+					long length = extractor.getOutputFile(job).length();
+					extractor.finishOutput(job);
+					if (journal != null && out != null)
+						journal.finished(job, length);
+				}
 			} catch (IOException e) {
 				logger.error("Failed to close outputstream in job {}.",
 						job.getName());
 				failed = true;
 			} finally {
-				running = false;
-				busy = false;
-				extractor.workerFinished(this);
+				metrics.getActiveWorkerGauge().decrementAndGet();
+				metrics.getWorker().record(started, 0);
+				synchronized (this) {
+					running = false;
+					thread = null;
+					// Don't leak a stop request to the pool's next task.
+					Thread.interrupted();
+				}
 			}
 		}
 	}
 
 	/**
-	 * Returns the {@link ExtractorJob} being serviced by this worker.
+	 * Submits held shapefiles for conversion, as long as their flags are
+	 * known. Until the job's number of shapefiles is known, the latest one
+	 * planned is held, since it could be the last of the job, and in a
+	 * sharded run the first is held, since it isn't known whether the job's
+	 * table is created in this shard. Returns the number submitted so far.
 	 * 
+	 * @param held
+	 * @param i
+	 *            The number submitted so far.
+	 * @param fresh
+	 *            True unless the job is being resumed.
+	 * @param segments
+	 * @param shapeFiles
 	 * @return
+	 * @throws IOException
 	 */
-	public ExtractorJob getJob() {
-		return job;
+	private int submit(LinkedList<File> held, int i, boolean fresh,
+			TreeMap<Integer, Future<File>> segments,
+			TreeMap<Integer, File> shapeFiles) throws IOException {
+		for (Iterator<File> it = held.iterator(); it.hasNext();) {
+			File next = it.next();
+			int index = job.getShapeFileIndex(next);
+			int count = job.getShapeFileCount();
+			if (count < 0
+					&& (index == job.getPlannedShapeFileCount() - 1 || (index == 0 && extractor
+							.isSharded())))
+				continue;
+			it.remove();
+			boolean first = index == 0 && fresh && job.isCreateTable();
+			if (first && ExtractorJob.FORMAT_BINARY.equals(job.getFormat()))
+				writeScript(next);
+			// The worker is woken when the segment is done, to append it.
+			FutureTask<File> segment = new FutureTask<File>(new Segment(next,
+					first, index == count - 1 && job.isCreateIndex(),
+					extractor.getCharset())) {
+				protected void done() {
+					job.wake();
+				}
+			};
+			extractor.getMetrics().getConversionQueueGauge().incrementAndGet();
+			extractor.getConverterPool().execute(segment);
+			segments.put(index, segment);
+			shapeFiles.put(index, next);
+			++i;
+		}
+		return i;
 	}
 
 	/**
-	 * Reads a {@link String} from an {@link InputStream}.
+	 * Writes the script which loads the job's binary output, using the
+	 * columns of the given shapefile.
 	 * 
-	 * @param in
-	 * @return
+	 * @param shapeFile
+	 * @throws IOException
+	 */
+	private void writeScript(File shapeFile) throws IOException {
+		OutputStream out = new FileOutputStream(job.getScriptFile());
+		try {
+			NativeShapeConverter.writeBinaryScript(shapeFile, job,
+					extractor.getCharset(), new File(job.getOutFile()), out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Appends the segments which are done, in order, up to the first which
+	 * isn't, or which hasn't been submitted.
+	 * 
+	 * @param segments
+	 * @param shapeFiles
+	 * @param out
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private void appendDone(TreeMap<Integer, Future<File>> segments,
+			TreeMap<Integer, File> shapeFiles, OutputStream out)
+			throws IOException, ExecutionException, InterruptedException {
+		while (running && !segments.isEmpty()
+				&& segments.firstKey() == appended
+				&& segments.firstEntry().getValue().isDone())
+			appendNext(segments, shapeFiles, out);
+	}
+
+	/**
+	 * Appends the next segment in order, waiting for it if necessary, and
+	 * records it in the journal.
+	 * 
+	 * @param segments
+	 * @param shapeFiles
+	 *            The segments' shapefiles.
+	 * @param out
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private void appendNext(TreeMap<Integer, Future<File>> segments,
+			TreeMap<Integer, File> shapeFiles, OutputStream out)
+			throws IOException, ExecutionException, InterruptedException {
+		if (segments.firstKey() != appended)
+			throw new IOException("Shapefile " + appended + " of job "
+					+ job.getName() + " is missing.");
+		Metrics metrics = extractor.getMetrics();
+		long started = System.nanoTime();
+		File segment = segments.remove(appended).get();
+		metrics.getConvertWait().record(started, 0);
+		started = System.nanoTime();
+		long length = segment.length();
+		try {
+			appendSegment(segment, out);
+		} finally {
+			extractor.getTempSpace().release(segment);
+		}
+		File shapeFile = shapeFiles.remove(appended++);
+		Journal journal = extractor.getJournal();
+		if (journal != null)
+			journal.converted(job, shapeFile, sync(out));
+		metrics.getWrite().record(started, length);
+	}
+
+	/**
+	 * Copies a finished segment to the output and deletes it.
+	 * 
+	 * @param segment
+	 * @param out
+	 * @throws IOException
 	 */
-	private String stringFromStream(InputStream in) {
-		StringBuffer str = new StringBuffer();
-		int read = 0;
-		byte[] buf = new byte[1024];
+	private void appendSegment(File segment, OutputStream out)
+			throws IOException {
+		InputStream in = new FileInputStream(segment);
 		try {
-			while ((read = in.read(buf)) > -1) {
-				str.append(new String(buf, 0, read));
+			byte[] buf = new byte[65536];
+			int read = 0;
+			while ((read = in.read(buf)) > -1)
+				out.write(buf, 0, read);
+		} finally {
+			in.close();
+			segment.delete();
+		}
+	}
+
+	/**
+	 * Cancels a segment, and deletes its file if it had already finished.
+	 * 
+	 * @param segment
+	 */
+	private void discardSegment(Future<File> segment) {
+		if (!segment.cancel(true)) {
+			try {
+				File file = segment.get();
+				file.delete();
+				extractor.getTempSpace().release(file);
+			} catch (Exception e) {
+				// The segment failed; there is no file.
 			}
-		} catch (IOException e) {
 		}
-		return str.toString();
+	}
+
+	/**
+	 * Converts a single shapefile into a temporary segment file.
+	 */
+	private class Segment implements Callable<File> {
+
+		private File shapeFile;
+		private boolean first;
+		private boolean last;
+		private String charset;
+
+		/**
+		 * Construct a {@link Segment}.
+		 * 
+		 * @param shapeFile
+		 * @param first
+		 * @param last
+		 * @param charset
+		 */
+		Segment(File shapeFile, boolean first, boolean last, String charset) {
+			this.shapeFile = shapeFile;
+			this.first = first;
+			this.last = last;
+			this.charset = charset;
+		}
+
+		/**
+		 * Converts the file, retrying if the conversion fails or times out,
+		 * up to the extractor's retry limit. The shapefile is released when
+		 * it is done with, so its space can be reused; the segment is held
+		 * in its place until it has been appended.
+		 */
+		public File call() throws IOException, InterruptedException {
+			extractor.getMetrics().getConversionQueueGauge().decrementAndGet();
+			int retries = extractor.getConvertRetries();
+			try {
+				for (int attempt = 0;; ++attempt) {
+					try {
+						return convert();
+					} catch (IOException e) {
+						if (attempt >= retries)
+							throw e;
+						logger.warn("Retrying " + shapeFile.getName() + ": "
+								+ e.getMessage());
+					}
+				}
+			} finally {
+				extractor.getTempSpace().release(shapeFile);
+			}
+		}
+
+		/**
+		 * Converts the file once. If it takes longer than the extractor's
+		 * timeout, the conversion is interrupted and an IOException thrown.
+		 * 
+		 * @return
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		private File convert() throws IOException, InterruptedException {
+			File segment = File.createTempFile("canvec_seg_", ".tmp",
+					new File(extractor.getTempDir()));
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					segment));
+			boolean done = false;
+			int flags = 0;
+			if (first)
+				flags |= ShapeConverter.DROP_CREATE;
+			if (last)
+				flags |= ShapeConverter.CREATE_INDEX;
+			final AtomicBoolean timedOut = new AtomicBoolean();
+			ScheduledFuture<?> watchdog = null;
+			long timeout = extractor.getConvertTimeout();
+			if (timeout > 0) {
+				final Thread thread = Thread.currentThread();
+				watchdog = extractor.getWatchdog().schedule(new Runnable() {
+					public void run() {
+						timedOut.set(true);
+						thread.interrupt();
+					}
+				}, timeout, TimeUnit.SECONDS);
+			}
+			long started = System.nanoTime();
+			try {
+				extractor.getConverter().convert(shapeFile, job, charset,
+						flags, out);
+				out.flush();
+				extractor.getMetrics().getConvert().record(started,
+						segment.length());
+				extractor.getTempSpace().hold(segment, segment.length());
+				done = true;
+			} catch (InterruptedException e) {
+				if (!timedOut.get())
+					throw e;
+				throw new IOException("The conversion of "
+						+ shapeFile.getName() + " timed out after " + timeout
+						+ "s.");
+			} finally {
+				if (watchdog != null && !watchdog.cancel(false)
+						&& timedOut.get()) {
+					// Clear the watchdog's interrupt.
+					Thread.interrupted();
+				}
+				out.close();
+				if (!done)
+					segment.delete();
+			}
+			return segment;
+		}
+	}
+
+	/**
+	 * Returns the {@link ExtractorJob} being serviced by this worker.
+	 * 
+	 * @return
+	 */
+	public ExtractorJob getJob() {
+		return job;
 	}
 }
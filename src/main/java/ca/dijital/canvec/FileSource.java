@@ -0,0 +1,50 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SeekableSource} over a local, or locally mounted, file.
+ */
+public class FileSource implements SeekableSource {
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	/**
+	 * Opens a file for reading.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public FileSource(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		channel = this.file.getChannel();
+	}
+
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	public int read(long position, byte[] buf, int off, int len)
+			throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+		// Positional reads don't move the channel, so they can be made from
+		// several threads.
+		int total = 0;
+		while (bb.hasRemaining()) {
+			int read = channel.read(bb, position + total);
+			if (read < 0)
+				break;
+			total += read;
+		}
+		return total == 0 && len > 0 ? -1 : total;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,279 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Launcher} which has a {@link SpawnHelper} start processes for it.
+ * The helper is a second, small JVM started once, the first time a process
+ * is needed; after that, starting a process costs a connection to the helper
+ * rather than a fork of this JVM, whatever the size of its heap.
+ *
+ * The processes returned behave like local ones: their output and error
+ * streams can be read, {@link Process#waitFor()} returns their exit value,
+ * and {@link Process#destroy()} stops them.
+ */
+public class HelperLauncher implements Launcher {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(HelperLauncher.class);
+
+	/**
+	 * The heap given to the helper's JVM.
+	 */
+	private static final String HELPER_HEAP = "-Xmx16m";
+
+	/**
+	 * The size of the buffers between the helper's connection and the
+	 * readers of a process's streams.
+	 */
+	private static final int PIPE_SIZE = 262144;
+
+	private Process helper;
+	private int port;
+	private String secret;
+
+	public synchronized Process start(List<String> command)
+			throws IOException {
+		if (helper == null)
+			startHelper();
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+		boolean started = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(secret);
+			out.writeInt(command.size());
+			for (String arg : command)
+				out.writeUTF(arg);
+			out.flush();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream(), 65536));
+			int type = in.read();
+			if (type == SpawnHelper.FAILED)
+				throw new IOException("Cannot run " + command.get(0) + ": "
+						+ in.readUTF());
+			if (type != SpawnHelper.STARTED)
+				throw new IOException("The spawn helper didn't answer.");
+			HelperProcess proc = new HelperProcess(socket, in);
+			started = true;
+			return proc;
+		} finally {
+			if (!started)
+				socket.close();
+		}
+	}
+
+	/**
+	 * Stops the helper. Processes it started which are still running are
+	 * destroyed.
+	 */
+	public synchronized void close() {
+		if (helper == null)
+			return;
+		try {
+			helper.getOutputStream().close();
+		} catch (IOException e) {
+		}
+		helper.destroy();
+		helper = null;
+	}
+
+	/**
+	 * Starts the helper's JVM and reads the port and secret it prints. Its
+	 * output after that is logged, so that the pipe never fills and blocks
+	 * it.
+	 * 
+	 * @throws IOException
+	 */
+	private void startHelper() throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.add(HELPER_HEAP);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(SpawnHelper.class.getName());
+		Process proc = new ProcessBuilder(command).redirectErrorStream(true)
+				.start();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				proc.getInputStream(), "UTF-8"));
+		String line = reader.readLine();
+		String[] parts = line == null ? new String[0] : line.split(" ");
+		try {
+			if (parts.length != 2)
+				throw new IOException("The spawn helper failed to start: "
+						+ line);
+			port = Integer.parseInt(parts[0]);
+		} catch (NumberFormatException e) {
+			proc.destroy();
+			throw new IOException("The spawn helper failed to start: " + line);
+		} catch (IOException e) {
+			proc.destroy();
+			throw e;
+		}
+		secret = parts[1];
+		helper = proc;
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				try {
+					String line;
+					while ((line = reader.readLine()) != null)
+						logger.info("Spawn helper: {}", line);
+				} catch (IOException e) {
+					// The helper has been stopped.
+				}
+			}
+		}, "canvec-spawn-helper");
+		drain.setDaemon(true);
+		drain.start();
+		logger.info("Started the spawn helper on port {}.", port);
+	}
+
+	/**
+	 * A process running in the helper. A thread reads the frames from the
+	 * helper and feeds the process's streams.
+	 */
+	private static class HelperProcess extends Process {
+
+		private Socket socket;
+		private DataInputStream in;
+		private PipedInputStream stdout;
+		private PipedInputStream stderr;
+		private PipedOutputStream stdoutSink;
+		private PipedOutputStream stderrSink;
+		private CountDownLatch exited;
+		private volatile int exitValue = -1;
+
+		HelperProcess(Socket socket, DataInputStream in) throws IOException {
+			this.socket = socket;
+			this.in = in;
+			stdout = new PipedInputStream(PIPE_SIZE);
+			stderr = new PipedInputStream(PIPE_SIZE);
+			stdoutSink = new PipedOutputStream(stdout);
+			stderrSink = new PipedOutputStream(stderr);
+			exited = new CountDownLatch(1);
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					readFrames();
+				}
+			}, "canvec-spawn");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Reads frames until the exit frame, or until the connection is lost,
+		 * in which case the process counts as failed.
+		 */
+		private void readFrames() {
+			byte[] buf = new byte[65536];
+			try {
+				while (true) {
+					int type = in.read();
+					if (type == SpawnHelper.EXIT) {
+						exitValue = in.readInt();
+						break;
+					} else if (type == SpawnHelper.STDOUT
+							|| type == SpawnHelper.STDERR) {
+						OutputStream sink = type == SpawnHelper.STDOUT ? stdoutSink
+								: stderrSink;
+						int len = in.readInt();
+						while (len > 0) {
+							int read = in.read(buf, 0, Math.min(len, buf.length));
+							if (read < 0)
+								throw new IOException("Connection closed.");
+							write(sink, buf, read);
+							len -= read;
+						}
+					} else {
+						break;
+					}
+				}
+			} catch (IOException e) {
+			} finally {
+				closeQuietly(stdoutSink);
+				closeQuietly(stderrSink);
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+				exited.countDown();
+			}
+		}
+
+		/**
+		 * Writes to a stream whose reader may have gone; its output is then
+		 * discarded, as a local process's would be.
+		 */
+		private static void write(OutputStream sink, byte[] buf, int len) {
+			try {
+				sink.write(buf, 0, len);
+			} catch (IOException e) {
+			}
+		}
+
+		private static void closeQuietly(OutputStream out) {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			// The process's input is always closed.
+			return new ByteArrayOutputStream();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return stdout;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return stderr;
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			exited.await();
+			return exitValue;
+		}
+
+		@Override
+		public int exitValue() {
+			if (exited.getCount() > 0)
+				throw new IllegalThreadStateException("The process is running.");
+			return exitValue;
+		}
+
+		@Override
+		public void destroy() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package ca.dijital.canvec;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@link ExtractorWorker}s on a fixed pool of threads. Workers are queued
+ * and picked up as soon as a thread is free. When a worker finishes, the
+ * {@link Listener} is notified; if the worker failed, or threw an exception,
+ * every other worker is stopped and the queue is discarded.
+ */
+public class JobScheduler {
+
+	private static Logger logger = LoggerFactory.getLogger(JobScheduler.class);
+
+	/**
+	 * Receives notification when a worker finishes.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the worker's thread when it finishes, whether or not it
+		 * was successful.
+		 *
+		 * @param worker
+		 */
+		void workerFinished(ExtractorWorker worker);
+	}
+
+	private ThreadPoolExecutor executor;
+	private Listener listener;
+	private Set<ExtractorWorker> active;
+	private int pending;
+	private volatile boolean failure;
+
+	/**
+	 * Construct a {@link JobScheduler} with the given number of threads.
+	 *
+	 * @param numWorkers
+	 * @param listener
+	 */
+	public JobScheduler(int numWorkers, Listener listener) {
+		this.listener = listener;
+		active = new HashSet<ExtractorWorker>();
+		executor = new ThreadPoolExecutor(numWorkers, numWorkers, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						return new Thread(r, "canvec-worker-" + (++count));
+					}
+				});
+	}
+
+	/**
+	 * Queue a worker to run. Ignored if the scheduler has failed.
+	 *
+	 * @param worker
+	 */
+	public void submit(final ExtractorWorker worker) {
+		synchronized (this) {
+			if (failure)
+				return;
+			++pending;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				synchronized (JobScheduler.this) {
+					if (failure) {
+						finished();
+						return;
+					}
+					active.add(worker);
+				}
+				boolean threw = true;
+				try {
+					worker.run();
+					threw = false;
+				} finally {
+					synchronized (JobScheduler.this) {
+						active.remove(worker);
+					}
+					try {
+						listener.workerFinished(worker);
+					} catch (RuntimeException e) {
+						logger.error("Failed to notify listener.", e);
+					}
+					if (threw || worker.isFailure())
+						fail();
+					synchronized (JobScheduler.this) {
+						finished();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decrements the pending count and wakes any waiting threads. Must be
+	 * called while holding the lock.
+	 */
+	private void finished() {
+		--pending;
+		notifyAll();
+	}
+
+	/**
+	 * Marks the run as failed and stops all running workers. Queued workers
+	 * will not be started.
+	 */
+	public void fail() {
+		synchronized (this) {
+			if (failure)
+				return;
+			failure = true;
+			for (ExtractorWorker worker : active)
+				worker.stop();
+			notifyAll();
+		}
+		logger.info("There was a failure. Shutting down...");
+	}
+
+	/**
+	 * Returns true if a worker has failed, or {@link #fail()} was called.
+	 *
+	 * @return
+	 */
+	public boolean isFailure() {
+		return failure;
+	}
+
+	/**
+	 * Waits until every submitted worker has finished, or until a failure
+	 * occurs. Returns true if all workers finished without failure.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitCompletion() throws InterruptedException {
+		while (pending > 0 && !failure)
+			wait();
+		return !failure;
+	}
+
+	/**
+	 * Stops the pool. Running workers are stopped and their threads are
+	 * waited for.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			for (ExtractorWorker worker : active)
+				worker.stop();
+		}
+		executor.shutdown();
+		while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+			logger.info("Waiting for workers to stop...");
+	}
+}
@@ -0,0 +1,243 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A record of the progress of a run, from which a failed run can be resumed.
+ * Each job's output is written as a series of segments, one per shapefile;
+ * after each segment is appended and the output synced, the shapefile and the
+ * length of the output are recorded. A resumed job truncates its output to
+ * the last recorded length and converts only the shapefiles which aren't
+ * recorded.
+ *
+ * The journal is a text file, to which each line is appended and synced:
+ *
+ * <pre>
+ * J	outFile	identity	length		the job's output was started
+ * S	outFile	shapefile	length		a shapefile's segment was appended
+ * D	outFile	length					the job was finished
+ * </pre>
+ *
+ * The identity is made of the job's pattern, table, format and SRID; if it
+ * has changed, the job is started again. A line left incomplete by a crash is
+ * ignored.
+ */
+public class Journal {
+
+	private static Logger logger = LoggerFactory.getLogger(Journal.class);
+
+	private File file;
+	private FileOutputStream out;
+	private Map<String, State> states;
+
+	private Journal(File file) {
+		this.file = file;
+		states = new HashMap<String, State>();
+	}
+
+	/**
+	 * Opens the journal. If resume is true, the existing journal is read and
+	 * added to; otherwise it is started again.
+	 *
+	 * @param file
+	 * @param resume
+	 * @return
+	 * @throws IOException
+	 */
+	public static Journal open(File file, boolean resume) throws IOException {
+		Journal journal = new Journal(file);
+		if (resume && file.exists())
+			journal.read();
+		journal.out = new FileOutputStream(file, resume);
+		return journal;
+	}
+
+	/**
+	 * Reads the journal's records. A last line without a newline was torn by
+	 * a crash; it is ignored and cut from the file.
+	 *
+	 * @throws IOException
+	 */
+	private void read() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			int end = bytes.length;
+			while (end > 0 && bytes[end - 1] != '\n')
+				--end;
+			if (end < bytes.length)
+				raf.setLength(end);
+			for (String line : new String(bytes, 0, end, "UTF-8").split("\n")) {
+				if (line.length() > 0)
+					readLine(line);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void readLine(String line) {
+		String[] parts = line.split("\t");
+		try {
+			if ("J".equals(parts[0]) && parts.length == 4) {
+				states.put(parts[1],
+						new State(parts[2], Long.parseLong(parts[3])));
+			} else if ("S".equals(parts[0]) && parts.length == 4) {
+				State state = states.get(parts[1]);
+				if (state != null) {
+					state.shapeFiles.add(parts[2]);
+					state.length = Long.parseLong(parts[3]);
+				}
+			} else if ("D".equals(parts[0]) && parts.length == 3) {
+				State state = states.get(parts[1]);
+				if (state != null) {
+					state.length = Long.parseLong(parts[2]);
+					state.done = true;
+				}
+			} else {
+				logger.warn("Ignoring a damaged line in the journal: {}", line);
+			}
+		} catch (NumberFormatException e) {
+			logger.warn("Ignoring a damaged line in the journal: {}", line);
+		}
+	}
+
+	/**
+	 * Returns the recorded progress of a job, or null if it has none, or if
+	 * the job has changed since it was recorded.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public synchronized State getState(ExtractorJob job) {
+		State state = states.get(getKey(job));
+		if (state == null)
+			return null;
+		if (!state.identity.equals(getIdentity(job))) {
+			logger.warn("Job {} has changed since it was recorded. Starting it again.",
+					job.getOutFile());
+			return null;
+		}
+		return state;
+	}
+
+	/**
+	 * Records that a job's output has been started, and that its header, if
+	 * any, ends at the given length.
+	 *
+	 * @param job
+	 * @param length
+	 * @throws IOException
+	 */
+	public void started(ExtractorJob job, long length) throws IOException {
+		write("J\t" + getKey(job) + "\t" + getIdentity(job) + "\t" + length);
+	}
+
+	/**
+	 * Records that the segment for a shapefile has been appended to a job's
+	 * output, which is now of the given length.
+	 *
+	 * @param job
+	 * @param shapeFile
+	 * @param length
+	 * @throws IOException
+	 */
+	public void converted(ExtractorJob job, File shapeFile, long length)
+			throws IOException {
+		write("S\t" + getKey(job) + "\t" + shapeFile.getName() + "\t" + length);
+	}
+
+	/**
+	 * Records that a job has finished, with output of the given length.
+	 *
+	 * @param job
+	 * @param length
+	 * @throws IOException
+	 */
+	public void finished(ExtractorJob job, long length) throws IOException {
+		write("D\t" + getKey(job) + "\t" + length);
+	}
+
+	/**
+	 * Closes the journal.
+	 */
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close the journal.", e);
+		}
+	}
+
+	private synchronized void write(String line) throws IOException {
+		out.write((line + "\n").getBytes("UTF-8"));
+		out.getChannel().force(false);
+	}
+
+	private static String getKey(ExtractorJob job) {
+		return new File(job.getOutFile()).getAbsolutePath();
+	}
+
+	private static String getIdentity(ExtractorJob job) {
+		return job.getPattern() + "|" + job.getSchemaName() + "."
+				+ job.getTableName() + "|" + job.getFormat() + "|"
+				+ job.getSrid();
+	}
+
+	/**
+	 * The recorded progress of a job.
+	 */
+	public static class State {
+
+		private String identity;
+		private long length;
+		private boolean done;
+		private Set<String> shapeFiles;
+
+		State(String identity, long length) {
+			this.identity = identity;
+			this.length = length;
+			shapeFiles = new HashSet<String>();
+		}
+
+		/**
+		 * Returns the length of the output at the last record.
+		 *
+		 * @return
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Returns true if the job finished.
+		 *
+		 * @return
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Returns the names of the shapefiles whose segments are in the
+		 * output.
+		 *
+		 * @return
+		 */
+		public Set<String> getShapeFiles() {
+			return Collections.unmodifiableSet(shapeFiles);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package ca.dijital.canvec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SeekableSource} which adds a fixed delay to every read of another
+ * source. It simulates a network mount, where each read is a round trip, so
+ * that the effect of caching and read-ahead can be measured on a local disk.
+ * It also counts the reads made.
+ */
+public class LatencySource implements SeekableSource {
+
+	private SeekableSource source;
+	private long latency;
+	private AtomicLong reads;
+
+	/**
+	 * Construct a {@link LatencySource}.
+	 *
+	 * @param source
+	 * @param latency
+	 *            The delay added to each read, in milliseconds.
+	 */
+	public LatencySource(SeekableSource source, long latency) {
+		this.source = source;
+		this.latency = latency;
+		reads = new AtomicLong();
+	}
+
+	public long size() throws IOException {
+		return source.size();
+	}
+
+	public int read(long position, byte[] buf, int off, int len)
+			throws IOException {
+		reads.incrementAndGet();
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading.");
+			}
+		}
+		return source.read(position, buf, off, len);
+	}
+
+	/**
+	 * Returns the number of reads made.
+	 *
+	 * @return
+	 */
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	public void close() throws IOException {
+		source.close();
+	}
+}
@@ -0,0 +1,26 @@
+package ca.dijital.canvec;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Starts external processes, such as shp2pgsql.
+ */
+public interface Launcher {
+
+	/**
+	 * Starts a process. The process's input is closed.
+	 *
+	 * @param command
+	 *            The program and its arguments.
+	 * @return
+	 * @throws IOException
+	 */
+	public Process start(List<String> command) throws IOException;
+
+	/**
+	 * Releases any resources held by the launcher. Processes which are still
+	 * running may be stopped.
+	 */
+	public void close();
+}
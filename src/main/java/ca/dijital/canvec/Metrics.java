@@ -0,0 +1,489 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts where a run's time goes. Each phase of the run has a {@link Timer},
+ * which adds up the time spent in it by every thread, how often it was
+ * entered, and the bytes it handled:
+ *
+ * <pre>
+ * enumerate	listing the archives
+ * match		matching the archives' entries to the jobs
+ * tempWait		waiting for the temporary space budget
+ * extract		inflating shapefiles to disk
+ * inputWait	workers waiting for their next shapefile to be extracted
+ * convert		converting shapefiles
+ * convertWait	workers waiting for a conversion to finish
+ * write		appending converted segments to the outputs
+ * worker		the workers' whole run time
+ * </pre>
+ *
+ * There are also gauges of the queues between the phases. The metrics can be
+ * read over JMX, are written periodically to a JSON file, and are summarized
+ * in the log at the end of the run. Instances are safe to use from several
+ * threads at once.
+ */
+public class Metrics implements MetricsMBean {
+
+	private static Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+	/**
+	 * The time spent in a phase of the run.
+	 */
+	public static class Timer {
+
+		private String name;
+		private AtomicLong count;
+		private AtomicLong nanos;
+		private AtomicLong bytes;
+
+		Timer(String name) {
+			this.name = name;
+			count = new AtomicLong();
+			nanos = new AtomicLong();
+			bytes = new AtomicLong();
+		}
+
+		/**
+		 * Records one pass through the phase, from the given
+		 * {@link System#nanoTime()} until now.
+		 *
+		 * @param start
+		 * @param bytes
+		 *            The bytes handled.
+		 */
+		public void record(long start, long bytes) {
+			count.incrementAndGet();
+			nanos.addAndGet(System.nanoTime() - start);
+			this.bytes.addAndGet(bytes);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * Returns the time spent in the phase, summed over threads.
+		 *
+		 * @return
+		 */
+		public double getSeconds() {
+			return nanos.get() / 1e9;
+		}
+	}
+
+	private long start;
+	private int conversionThreads;
+	private int extractionThreads;
+	private long slotNanos;
+	private long slotsChanged;
+	private int jobsTotal;
+	private AtomicInteger jobsFinished;
+	private AtomicInteger jobsFailed;
+	private AtomicLong archives;
+	private AtomicLong activeWorkers;
+	private AtomicLong queuedJobs;
+	private AtomicLong extractionQueue;
+	private AtomicLong conversionQueue;
+	private AtomicLong pendingShapeFiles;
+	private Map<String, Timer> timers;
+
+	private Timer enumerate;
+	private Timer match;
+	private Timer tempWait;
+	private Timer extract;
+	private Timer inputWait;
+	private Timer convert;
+	private Timer convertWait;
+	private Timer write;
+	private Timer worker;
+
+	/**
+	 * Construct a {@link Metrics}, for a run which starts now.
+	 *
+	 * @param conversionThreads
+	 *            The number of conversion threads, by which utilisation is
+	 *            measured.
+	 * @param extractionThreads
+	 * @param jobsTotal
+	 */
+	public Metrics(int conversionThreads, int extractionThreads, int jobsTotal) {
+		start = System.nanoTime();
+		slotsChanged = start;
+		this.conversionThreads = conversionThreads;
+		this.extractionThreads = extractionThreads;
+		this.jobsTotal = jobsTotal;
+		jobsFinished = new AtomicInteger();
+		jobsFailed = new AtomicInteger();
+		archives = new AtomicLong();
+		activeWorkers = new AtomicLong();
+		queuedJobs = new AtomicLong();
+		extractionQueue = new AtomicLong();
+		conversionQueue = new AtomicLong();
+		pendingShapeFiles = new AtomicLong();
+		timers = new LinkedHashMap<String, Timer>();
+		enumerate = addTimer("enumerate");
+		match = addTimer("match");
+		tempWait = addTimer("tempWait");
+		extract = addTimer("extract");
+		inputWait = addTimer("inputWait");
+		convert = addTimer("convert");
+		convertWait = addTimer("convertWait");
+		write = addTimer("write");
+		worker = addTimer("worker");
+	}
+
+	private Timer addTimer(String name) {
+		Timer timer = new Timer(name);
+		timers.put(name, timer);
+		return timer;
+	}
+
+	public Timer getEnumerate() {
+		return enumerate;
+	}
+
+	public Timer getMatch() {
+		return match;
+	}
+
+	public Timer getTempWait() {
+		return tempWait;
+	}
+
+	public Timer getExtract() {
+		return extract;
+	}
+
+	public Timer getInputWait() {
+		return inputWait;
+	}
+
+	public Timer getConvert() {
+		return convert;
+	}
+
+	public Timer getConvertWait() {
+		return convertWait;
+	}
+
+	public Timer getWrite() {
+		return write;
+	}
+
+	public Timer getWorker() {
+		return worker;
+	}
+
+	/**
+	 * Records that a job has finished.
+	 *
+	 * @param success
+	 */
+	public void jobFinished(boolean success) {
+		if (success)
+			jobsFinished.incrementAndGet();
+		else
+			jobsFailed.incrementAndGet();
+	}
+
+	/**
+	 * Records a change in the number of conversion threads.
+	 *
+	 * @param conversionThreads
+	 */
+	public synchronized void setConversionThreads(int conversionThreads) {
+		long now = System.nanoTime();
+		slotNanos += (now - slotsChanged) * this.conversionThreads;
+		slotsChanged = now;
+		this.conversionThreads = conversionThreads;
+	}
+
+	public synchronized int getConversionThreads() {
+		return conversionThreads;
+	}
+
+	/**
+	 * Records a change in the number of extraction threads.
+	 *
+	 * @param extractionThreads
+	 */
+	public synchronized void setExtractionThreads(int extractionThreads) {
+		this.extractionThreads = extractionThreads;
+	}
+
+	public synchronized int getExtractionThreads() {
+		return extractionThreads;
+	}
+
+	public void setArchives(long archives) {
+		this.archives.set(archives);
+	}
+
+	/**
+	 * Returns the gauge of running workers.
+	 *
+	 * @return
+	 */
+	public AtomicLong getActiveWorkerGauge() {
+		return activeWorkers;
+	}
+
+	/**
+	 * Returns the gauge of jobs waiting for a worker.
+	 *
+	 * @return
+	 */
+	public AtomicLong getQueuedJobGauge() {
+		return queuedJobs;
+	}
+
+	/**
+	 * Returns the gauge of archives waiting to be extracted.
+	 *
+	 * @return
+	 */
+	public AtomicLong getExtractionQueueGauge() {
+		return extractionQueue;
+	}
+
+	/**
+	 * Returns the gauge of shapefiles waiting to be converted.
+	 *
+	 * @return
+	 */
+	public AtomicLong getConversionQueueGauge() {
+		return conversionQueue;
+	}
+
+	/**
+	 * Returns the gauge of extracted shapefiles which their workers haven't
+	 * taken yet.
+	 *
+	 * @return
+	 */
+	public AtomicLong getPendingShapeFileGauge() {
+		return pendingShapeFiles;
+	}
+
+	public double getElapsedSeconds() {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	public int getJobsTotal() {
+		return jobsTotal;
+	}
+
+	public int getJobsFinished() {
+		return jobsFinished.get();
+	}
+
+	public int getJobsFailed() {
+		return jobsFailed.get();
+	}
+
+	public long getArchives() {
+		return archives.get();
+	}
+
+	public long getActiveWorkers() {
+		return activeWorkers.get();
+	}
+
+	public long getQueuedJobs() {
+		return queuedJobs.get();
+	}
+
+	public long getExtractionQueue() {
+		return extractionQueue.get();
+	}
+
+	public long getConversionQueue() {
+		return conversionQueue.get();
+	}
+
+	public long getPendingShapeFiles() {
+		return pendingShapeFiles.get();
+	}
+
+	public long getShapeFilesExtracted() {
+		return extract.getCount();
+	}
+
+	public long getBytesExtracted() {
+		return extract.getBytes();
+	}
+
+	public double getExtractSeconds() {
+		return extract.getSeconds();
+	}
+
+	public long getShapeFilesConverted() {
+		return convert.getCount();
+	}
+
+	public long getBytesConverted() {
+		return convert.getBytes();
+	}
+
+	public double getConvertSeconds() {
+		return convert.getSeconds();
+	}
+
+	public long getBytesWritten() {
+		return write.getBytes();
+	}
+
+	public double getWriteSeconds() {
+		return write.getSeconds();
+	}
+
+	public double getShapeFilesPerSecond() {
+		double elapsed = getElapsedSeconds();
+		return elapsed > 0 ? convert.getCount() / elapsed : 0;
+	}
+
+	/**
+	 * Returns the share of the conversion threads' time, since the run
+	 * started, which was spent converting.
+	 *
+	 * @return
+	 */
+	public double getWorkerUtilisation() {
+		double total;
+		synchronized (this) {
+			total = (slotNanos + (System.nanoTime() - slotsChanged)
+					* conversionThreads) / 1e9;
+		}
+		if (total <= 0)
+			return 0;
+		return Math.min(1, convert.getSeconds() / total);
+	}
+
+	/**
+	 * Returns the metrics as a JSON object.
+	 *
+	 * @return
+	 */
+	public String toJson() {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"time\": \"").append(format.format(new Date()))
+				.append("\",\n");
+		json.append("  \"elapsedSeconds\": ").append(round(getElapsedSeconds()))
+				.append(",\n");
+		json.append("  \"jobs\": {\"total\": ").append(getJobsTotal())
+				.append(", \"finished\": ").append(getJobsFinished())
+				.append(", \"failed\": ").append(getJobsFailed())
+				.append(", \"active\": ").append(getActiveWorkers())
+				.append(", \"queued\": ").append(getQueuedJobs())
+				.append("},\n");
+		json.append("  \"archives\": ").append(getArchives()).append(",\n");
+		json.append("  \"threads\": {\"conversion\": ")
+				.append(getConversionThreads()).append(", \"extraction\": ")
+				.append(getExtractionThreads()).append("},\n");
+		json.append("  \"queues\": {\"extraction\": ")
+				.append(getExtractionQueue()).append(", \"conversion\": ")
+				.append(getConversionQueue()).append(", \"shapeFiles\": ")
+				.append(getPendingShapeFiles()).append("},\n");
+		json.append("  \"shapeFilesPerSecond\": ")
+				.append(round(getShapeFilesPerSecond())).append(",\n");
+		json.append("  \"workerUtilisation\": ")
+				.append(round(getWorkerUtilisation())).append(",\n");
+		json.append("  \"phases\": {");
+		boolean first = true;
+		for (Timer timer : timers.values()) {
+			json.append(first ? "\n" : ",\n");
+			first = false;
+			json.append("    \"").append(timer.getName())
+					.append("\": {\"count\": ").append(timer.getCount())
+					.append(", \"seconds\": ").append(round(timer.getSeconds()))
+					.append(", \"bytes\": ").append(timer.getBytes())
+					.append("}");
+		}
+		json.append("\n  }\n}\n");
+		return json.toString();
+	}
+
+	/**
+	 * Writes the metrics as JSON to a file. The file is replaced in one step,
+	 * so a reader never sees it half written.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeJson(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(toJson().getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// Windows won't rename over an existing file.
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Failed to rename " + tmp + ".");
+		}
+	}
+
+	/**
+	 * Logs a summary of the run: what it did, how fast, and where the time
+	 * went.
+	 */
+	public void logSummary() {
+		double elapsed = getElapsedSeconds();
+		logger.info(String.format(Locale.ROOT,
+				"Finished %d of %d jobs (%d failed) in %.1fs.",
+				getJobsFinished(), getJobsTotal(), getJobsFailed(), elapsed));
+		logger.info(String.format(Locale.ROOT,
+				"Extracted %d shapefiles (%.1f MB) from %d archives; converted %d (%.1f files/s); wrote %.1f MB (%.1f MB/s).",
+				extract.getCount(), extract.getBytes() / 1e6, getArchives(),
+				convert.getCount(), getShapeFilesPerSecond(),
+				write.getBytes() / 1e6, elapsed > 0 ? write.getBytes() / 1e6
+						/ elapsed : 0));
+		logger.info(String.format(Locale.ROOT,
+				"The conversion threads were busy %.0f%% of the time.",
+				getWorkerUtilisation() * 100));
+		logger.info("Time by phase, summed over threads:");
+		for (Timer timer : timers.values()) {
+			double rate = timer.getSeconds() > 0 ? timer.getBytes() / 1e6
+					/ timer.getSeconds() : 0;
+			logger.info(String.format(Locale.ROOT,
+					"  %-12s %9.1fs %8d times %10.1f MB %8.1f MB/s",
+					timer.getName(), timer.getSeconds(), timer.getCount(),
+					timer.getBytes() / 1e6, rate));
+		}
+	}
+
+	private static String round(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+}
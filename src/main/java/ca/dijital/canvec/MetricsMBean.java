@@ -0,0 +1,53 @@
+package ca.dijital.canvec;
+
+/**
+ * The management interface of {@link Metrics}, published over JMX as
+ * ca.dijital.canvec:type=Metrics while a run is going. Times are in seconds;
+ * phase times are summed over the threads which spent them.
+ */
+public interface MetricsMBean {
+
+	public double getElapsedSeconds();
+
+	public int getJobsTotal();
+
+	public int getJobsFinished();
+
+	public int getJobsFailed();
+
+	public long getArchives();
+
+	public long getActiveWorkers();
+
+	public int getConversionThreads();
+
+	public int getExtractionThreads();
+
+	public long getQueuedJobs();
+
+	public long getExtractionQueue();
+
+	public long getConversionQueue();
+
+	public long getPendingShapeFiles();
+
+	public long getShapeFilesExtracted();
+
+	public long getBytesExtracted();
+
+	public double getExtractSeconds();
+
+	public long getShapeFilesConverted();
+
+	public long getBytesConverted();
+
+	public double getConvertSeconds();
+
+	public long getBytesWritten();
+
+	public double getWriteSeconds();
+
+	public double getShapeFilesPerSecond();
+
+	public double getWorkerUtilisation();
+}
@@ -0,0 +1,448 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ShapeConverter} which reads the shapefile in the JVM and writes the
+ * same SQL that shp2pgsql would. No process is started, so the conversion
+ * doesn't depend on the size of the JVM's heap, and output is streamed through
+ * a single buffer.
+ *
+ * Attribute types are chosen the way shapelib and shp2pgsql choose them:
+ * character fields become varchar, integer fields int2 or int4 by their
+ * width, and fields with decimals, or which are too wide for an integer,
+ * float8, or numeric if they are wider or more precise than a double.
+ * Geometries are written as hex EWKB with the job's SRID.
+ *
+ * Besides INSERT statements, the converter can write the data as COPY text,
+ * or as binary COPY tuples, according to the job's format.
+ */
+public class NativeShapeConverter implements ShapeConverter {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(NativeShapeConverter.class);
+
+	/**
+	 * Column names which clash with system columns or the primary key, and
+	 * which shp2pgsql prefixes with underscores.
+	 */
+	private static final Set<String> RESERVED = new HashSet<String>(
+			Arrays.asList("gid", "tableoid", "cmax", "xmax", "cmin",
+					"primary", "oid", "ctid"));
+
+	/**
+	 * Output is flushed, and interruption checked, every this many records.
+	 */
+	private static final int CHECK_INTERVAL = 1000;
+
+	public boolean supportsFormat(String format) {
+		return true;
+	}
+
+	public void convert(File file, ExtractorJob job, String charset,
+			int flags, OutputStream out) throws IOException,
+			InterruptedException {
+		logger.info("Processing file {}.", file.getName());
+		ShapeFileReader shp = new ShapeFileReader(file);
+		DbfReader dbf = null;
+		try {
+			dbf = new DbfReader(ShapeFileReader.sibling(file, "dbf"), charset);
+			List<String> columns = columnNames(dbf.getFields());
+			String format = job.getFormat();
+			// Binary output is data only; the DDL goes in the job's script.
+			if (ExtractorJob.FORMAT_BINARY.equals(format)) {
+				DataOutputStream data = new DataOutputStream(
+						new BufferedOutputStream(out, 65536));
+				writeBinaryRows(job, shp, dbf, data);
+				data.flush();
+				return;
+			}
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+					"UTF-8"), 65536);
+			writer.write(PostgisSql.settings());
+			if ((flags & DROP_CREATE) != 0)
+				writer.write(PostgisSql.dropTable(job));
+			writer.write("BEGIN;\n");
+			if ((flags & DROP_CREATE) != 0)
+				writer.write(createTable(job, dbf.getFields(), columns,
+						shp.getShapeType()));
+			if (ExtractorJob.FORMAT_COPY.equals(format)) {
+				writer.write(copyStatement(job, columns, "stdin"));
+				writeCopyRows(job, shp, dbf, columns, writer);
+				writer.write("\\.\n");
+			} else {
+				writeInserts(job, shp, dbf, columns, writer);
+			}
+			if ((flags & CREATE_INDEX) != 0)
+				writer.write(PostgisSql.createIndex(job));
+			writer.write(PostgisSql.commit(job));
+			writer.flush();
+		} finally {
+			shp.close();
+			if (dbf != null)
+				dbf.close();
+		}
+		logger.info("File {} complete.", file.getName());
+	}
+
+	/**
+	 * Writes the script which creates the job's table and loads a binary COPY
+	 * file into it with psql's \\copy command. The table's columns are taken
+	 * from the given shapefile.
+	 * 
+	 * @param file
+	 *            A shapefile belonging to the job.
+	 * @param job
+	 * @param charset
+	 * @param dataFile
+	 *            The binary COPY file.
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void writeBinaryScript(File file, ExtractorJob job, String charset,
+			File dataFile, OutputStream out) throws IOException {
+		ShapeFileReader shp = new ShapeFileReader(file);
+		DbfReader dbf = null;
+		try {
+			dbf = new DbfReader(ShapeFileReader.sibling(file, "dbf"), charset);
+			List<String> columns = columnNames(dbf.getFields());
+			String path = dataFile.getAbsolutePath().replace("'", "''");
+			String source;
+			if (path.endsWith(".gz"))
+				source = "PROGRAM 'gzip -dc " + path + "'";
+			else
+				source = "'" + path + "'";
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+					"UTF-8"));
+			writer.write(PostgisSql.settings());
+			writer.write(PostgisSql.dropTable(job));
+			writer.write("BEGIN;\n");
+			writer.write(createTable(job, dbf.getFields(), columns,
+					shp.getShapeType()));
+			// \\copy must be on one line.
+			writer.write("\\"
+					+ copyStatement(job, columns, source).replace(";\n", "")
+					+ " WITH (FORMAT binary)\n");
+			writer.write(PostgisSql.createIndex(job));
+			writer.write(PostgisSql.commit(job));
+			writer.flush();
+		} finally {
+			shp.close();
+			if (dbf != null)
+				dbf.close();
+		}
+	}
+
+	/**
+	 * Returns the COPY statement for the job's table and the given columns.
+	 * 
+	 * @param job
+	 * @param columns
+	 * @param source
+	 * @return
+	 */
+	private static String copyStatement(ExtractorJob job,
+			List<String> columns, String source) {
+		StringBuilder sql = new StringBuilder("COPY ");
+		sql.append(PostgisSql.table(job)).append(" (");
+		for (String column : columns)
+			sql.append(PostgisSql.quoteIdentifier(column)).append(',');
+		sql.append(PostgisSql.GEOMETRY_COLUMN).append(") FROM ")
+				.append(source).append(";\n");
+		return sql.toString();
+	}
+
+	/**
+	 * Writes a line of COPY text data for each record.
+	 * 
+	 * @param job
+	 * @param shp
+	 * @param dbf
+	 * @param columns
+	 * @param writer
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void writeCopyRows(ExtractorJob job, ShapeFileReader shp,
+			DbfReader dbf, List<String> columns, Writer writer)
+			throws IOException, InterruptedException {
+		EwkbWriter ewkb = new EwkbWriter();
+		StringBuilder row = new StringBuilder(1024);
+		int srid = job.getSrid();
+		int count = 0;
+		Shape shape;
+		while ((shape = nextShape(shp, dbf, columns.size())) != null) {
+			row.setLength(0);
+			for (int i = 0; i < columns.size(); ++i) {
+				PgCopy.appendText(row, dbf.getValue(i));
+				row.append('\t');
+			}
+			if (shape.isNull()) {
+				row.append("\\N");
+			} else {
+				ewkb.encode(shape, srid);
+				ewkb.appendHex(row);
+			}
+			row.append('\n');
+			writer.append(row);
+			checkInterrupted(++count);
+		}
+	}
+
+	/**
+	 * Writes a binary COPY tuple for each record.
+	 * 
+	 * @param job
+	 * @param shp
+	 * @param dbf
+	 * @param out
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void writeBinaryRows(ExtractorJob job, ShapeFileReader shp,
+			DbfReader dbf, DataOutputStream out) throws IOException,
+			InterruptedException {
+		List<DbfReader.Field> fields = dbf.getFields();
+		String[] types = new String[fields.size()];
+		for (int i = 0; i < types.length; ++i)
+			types[i] = columnType(fields.get(i));
+		EwkbWriter ewkb = new EwkbWriter();
+		int srid = job.getSrid();
+		int count = 0;
+		Shape shape;
+		while ((shape = nextShape(shp, dbf, types.length)) != null) {
+			out.writeShort(types.length + 1);
+			for (int i = 0; i < types.length; ++i) {
+				String value = dbf.getValue(i);
+				String type = types[i];
+				try {
+					if (value == null)
+						PgCopy.writeNull(out);
+					else if ("int2".equals(type))
+						PgCopy.writeInt2(out, value);
+					else if ("int4".equals(type))
+						PgCopy.writeInt4(out, value);
+					else if ("float8".equals(type))
+						PgCopy.writeFloat8(out, value);
+					else if ("numeric".equals(type))
+						PgCopy.writeNumeric(out, value);
+					else if ("date".equals(type))
+						PgCopy.writeDate(out, value);
+					else if ("boolean".equals(type))
+						PgCopy.writeBoolean(out, value);
+					else {
+						byte[] bytes = value.getBytes("UTF-8");
+						PgCopy.writeBytes(out, bytes, 0, bytes.length);
+					}
+				} catch (IOException e) {
+					throw new IOException("Failed to encode field "
+							+ fields.get(i).getName() + ".", e);
+				}
+			}
+			if (shape.isNull()) {
+				PgCopy.writeNull(out);
+			} else {
+				ewkb.encode(shape, srid);
+				PgCopy.writeBytes(out, ewkb.getBytes(), 0, ewkb.length());
+			}
+			checkInterrupted(++count);
+		}
+	}
+
+	/**
+	 * Advances both readers to the next record which hasn't been deleted, and
+	 * returns its shape. Returns null when there are no more records.
+	 * 
+	 * @param shp
+	 * @param dbf
+	 * @param numColumns
+	 * @return
+	 * @throws IOException
+	 */
+	private static Shape nextShape(ShapeFileReader shp, DbfReader dbf,
+			int numColumns) throws IOException {
+		Shape shape;
+		while ((shape = shp.next()) != null) {
+			boolean hasRecord = dbf.next();
+			if (!hasRecord && numColumns > 0) {
+				logger.warn("The attribute file has fewer records than the shapefile.");
+				return null;
+			}
+			if (!hasRecord || !dbf.isDeleted())
+				return shape;
+		}
+		return null;
+	}
+
+	/**
+	 * Throws an exception if the thread has been interrupted. Only checks
+	 * every {@link #CHECK_INTERVAL} records.
+	 * 
+	 * @param count
+	 * @throws InterruptedException
+	 */
+	private static void checkInterrupted(int count)
+			throws InterruptedException {
+		if (count % CHECK_INTERVAL == 0
+				&& Thread.currentThread().isInterrupted())
+			throw new InterruptedException("The conversion was stopped.");
+	}
+
+	/**
+	 * Writes an INSERT statement for each record.
+	 * 
+	 * @param job
+	 * @param shp
+	 * @param dbf
+	 * @param columns
+	 * @param writer
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void writeInserts(ExtractorJob job, ShapeFileReader shp,
+			DbfReader dbf, List<String> columns, Writer writer)
+			throws IOException, InterruptedException {
+		StringBuilder prefix = new StringBuilder("INSERT INTO ");
+		prefix.append(PostgisSql.table(job)).append(" (");
+		for (String column : columns)
+			prefix.append(PostgisSql.quoteIdentifier(column)).append(',');
+		prefix.append(PostgisSql.GEOMETRY_COLUMN).append(") VALUES (");
+		String insert = prefix.toString();
+
+		EwkbWriter ewkb = new EwkbWriter();
+		StringBuilder row = new StringBuilder(1024);
+		int srid = job.getSrid();
+		int count = 0;
+		Shape shape;
+		while ((shape = nextShape(shp, dbf, columns.size())) != null) {
+			row.setLength(0);
+			row.append(insert);
+			for (int i = 0; i < columns.size(); ++i) {
+				String value = dbf.getValue(i);
+				if (value == null)
+					row.append("NULL");
+				else
+					appendLiteral(row, value);
+				row.append(',');
+			}
+			if (shape.isNull()) {
+				row.append("NULL");
+			} else {
+				ewkb.encode(shape, srid);
+				row.append('\'');
+				ewkb.appendHex(row);
+				row.append('\'');
+			}
+			row.append(");\n");
+			writer.append(row);
+			checkInterrupted(++count);
+		}
+	}
+
+	/**
+	 * Appends a quoted string literal.
+	 *
+	 * @param row
+	 * @param value
+	 */
+	private static void appendLiteral(StringBuilder row, String value) {
+		row.append('\'');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '\'')
+				row.append('\'');
+			row.append(c);
+		}
+		row.append('\'');
+	}
+
+	/**
+	 * Returns the statements which create the table and add the geometry
+	 * column.
+	 *
+	 * @param job
+	 * @param fields
+	 * @param columns
+	 * @param shapeType
+	 * @return
+	 */
+	static String createTable(ExtractorJob job, List<DbfReader.Field> fields,
+			List<String> columns, int shapeType) {
+		StringBuilder sql = new StringBuilder("CREATE TABLE ");
+		String table = PostgisSql.table(job);
+		sql.append(table).append(" (gid serial");
+		for (int i = 0; i < fields.size(); ++i) {
+			sql.append(",\n").append(PostgisSql.quoteIdentifier(columns.get(i)))
+					.append(' ').append(columnType(fields.get(i)));
+		}
+		sql.append(");\n");
+		sql.append("ALTER TABLE ").append(table)
+				.append(" ADD PRIMARY KEY (gid);\n");
+		sql.append(PostgisSql.addGeometryColumn(job,
+				EwkbWriter.geometryType(shapeType),
+				EwkbWriter.dimensions(shapeType)));
+		return sql.toString();
+	}
+
+	/**
+	 * Returns the PostgreSQL type for a dBase field.
+	 *
+	 * @param field
+	 * @return
+	 */
+	static String columnType(DbfReader.Field field) {
+		switch (field.getType()) {
+		case 'N':
+		case 'F':
+			// Shapelib treats wide or fractional numbers as doubles.
+			if (field.getDecimals() > 0 || field.getWidth() >= 10)
+				return field.getWidth() > 18 || field.getDecimals() > 15 ? "numeric"
+						: "float8";
+			return field.getWidth() < 5 ? "int2" : "int4";
+		case 'D':
+			return "date";
+		case 'L':
+			return "boolean";
+		default:
+			return "varchar(" + field.getWidth() + ")";
+		}
+	}
+
+	/**
+	 * Returns the column names for the fields: lower case, with reserved and
+	 * duplicate names made unique.
+	 *
+	 * @param fields
+	 * @return
+	 */
+	static List<String> columnNames(List<DbfReader.Field> fields) {
+		List<String> names = new ArrayList<String>();
+		Set<String> used = new HashSet<String>();
+		for (DbfReader.Field field : fields) {
+			String name = field.getName().toLowerCase();
+			if (RESERVED.contains(name))
+				name = "__" + name;
+			String unique = name;
+			for (int i = 1; used.contains(unique); ++i)
+				unique = name + "__" + i;
+			used.add(unique);
+			names.add(unique);
+		}
+		return names;
+	}
+}
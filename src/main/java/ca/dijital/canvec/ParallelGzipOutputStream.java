@@ -0,0 +1,216 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream which compresses blocks of its input in parallel, in
+ * the manner of pigz. The input is cut into fixed-size blocks, each block is
+ * compressed on a thread pool as a complete gzip member, and the members are
+ * written in order. A file of concatenated members is valid gzip, which
+ * gunzip and other readers decompress as one stream.
+ *
+ * Each block is compressed without the history of the one before, so the
+ * output is slightly larger than a single-threaded stream's; with blocks of
+ * a megabyte or so the difference is small.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+			0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private OutputStream out;
+	private ExecutorService pool;
+	private int level;
+	private int maxPending;
+	private byte[] block;
+	private int count;
+	private LinkedList<Future<byte[]>> pending;
+	private boolean submitted;
+	private boolean closed;
+
+	/**
+	 * Construct a {@link ParallelGzipOutputStream}.
+	 *
+	 * @param out
+	 *            The stream for the compressed data.
+	 * @param pool
+	 *            The pool on which blocks are compressed.
+	 * @param level
+	 *            The compression level, 1 to 9, or -1 for the default.
+	 * @param blockSize
+	 *            The size of each block of input, in bytes.
+	 * @param maxPending
+	 *            The most blocks in memory at once; writes wait for the oldest
+	 *            block to finish when the limit is reached.
+	 */
+	public ParallelGzipOutputStream(OutputStream out, ExecutorService pool,
+			int level, int blockSize, int maxPending) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9))
+			throw new IllegalArgumentException("Invalid compression level: "
+					+ level);
+		if (blockSize < 1 || maxPending < 1)
+			throw new IllegalArgumentException(
+					"The block size and pending count must be positive.");
+		this.out = out;
+		this.pool = pool;
+		this.level = level;
+		this.maxPending = maxPending;
+		block = new byte[blockSize];
+		pending = new LinkedList<Future<byte[]>>();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		block[count++] = (byte) b;
+		if (count == block.length)
+			submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, block.length - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == block.length)
+				submitBlock();
+		}
+	}
+
+	/**
+	 * Writes the blocks which have been compressed so far. The current,
+	 * partial block is not cut short, since that would cost compression.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty() && pending.getFirst().isDone())
+			writeFirst();
+		out.flush();
+	}
+
+	/**
+	 * Compresses the current block, even if it isn't full, and writes every
+	 * block, so that the output so far is complete gzip. The output can then
+	 * be cut at this point and appended to later.
+	 *
+	 * @throws IOException
+	 */
+	public void finishMember() throws IOException {
+		if (count > 0)
+			submitBlock();
+		while (!pending.isEmpty())
+			writeFirst();
+		out.flush();
+	}
+
+	/**
+	 * Compresses the last block, writes every block and closes the
+	 * underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			// Empty input still needs one member to be valid gzip.
+			if (count > 0 || !submitted)
+				submitBlock();
+			while (!pending.isEmpty())
+				writeFirst();
+		} finally {
+			for (Future<byte[]> future : pending)
+				future.cancel(true);
+			pending.clear();
+			out.close();
+		}
+	}
+
+	/**
+	 * Queues the current block for compression, and writes the blocks which
+	 * are done.
+	 *
+	 * @throws IOException
+	 */
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = count;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return compress(data, length, level);
+			}
+		}));
+		block = new byte[data.length];
+		count = 0;
+		submitted = true;
+		while (pending.size() >= maxPending
+				|| (!pending.isEmpty() && pending.getFirst().isDone()))
+			writeFirst();
+	}
+
+	/**
+	 * Waits for the oldest block and writes it.
+	 *
+	 * @throws IOException
+	 */
+	private void writeFirst() throws IOException {
+		try {
+			out.write(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing.");
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress a block.", e.getCause());
+		}
+	}
+
+	/**
+	 * Compresses a block as a complete gzip member.
+	 *
+	 * @param data
+	 * @param length
+	 * @param level
+	 * @return
+	 */
+	static byte[] compress(byte[] data, int length, int level) {
+		ByteArrayOutputStream member = new ByteArrayOutputStream(
+				length / 2 + 64);
+		member.write(HEADER, 0, HEADER.length);
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			byte[] buf = new byte[65536];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				member.write(buf, 0, n);
+			}
+		} finally {
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeIntLE(member, (int) crc.getValue());
+		writeIntLE(member, length);
+		return member.toByteArray();
+	}
+
+	private static void writeIntLE(ByteArrayOutputStream out, int v) {
+		out.write(v);
+		out.write(v >> 8);
+		out.write(v >> 16);
+		out.write(v >> 24);
+	}
+}
@@ -0,0 +1,293 @@
+package ca.dijital.canvec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Writes PostgreSQL COPY data, in the text and binary (PGCOPY) formats.
+ */
+public class PgCopy {
+
+	/**
+	 * The signature which starts a binary COPY file.
+	 */
+	private static final byte[] SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y',
+			'\n', (byte) 0xff, '\r', '\n', 0 };
+
+	private static final int NUMERIC_POS = 0x0000;
+	private static final int NUMERIC_NEG = 0x4000;
+
+	/**
+	 * Days between 1970-01-01 and the PostgreSQL epoch, 2000-01-01.
+	 */
+	private static final int POSTGRES_EPOCH_DAYS = 10957;
+
+	/**
+	 * Writes the binary COPY header: the signature, the flags and an empty
+	 * header extension.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void writeHeader(OutputStream out) throws IOException {
+		out.write(SIGNATURE);
+		out.write(new byte[8]);
+	}
+
+	/**
+	 * Writes the binary COPY trailer.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void writeTrailer(OutputStream out) throws IOException {
+		out.write(0xff);
+		out.write(0xff);
+	}
+
+	/**
+	 * Appends a value in COPY text format, escaping backslashes and control
+	 * characters. A null value is written as \N.
+	 *
+	 * @param str
+	 * @param value
+	 */
+	public static void appendText(StringBuilder str, String value) {
+		if (value == null) {
+			str.append("\\N");
+			return;
+		}
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				str.append("\\\\");
+				break;
+			case '\t':
+				str.append("\\t");
+				break;
+			case '\n':
+				str.append("\\n");
+				break;
+			case '\r':
+				str.append("\\r");
+				break;
+			default:
+				str.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes a null field in binary format.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void writeNull(DataOutputStream out) throws IOException {
+		out.writeInt(-1);
+	}
+
+	/**
+	 * Writes a field's bytes in binary format.
+	 *
+	 * @param out
+	 * @param value
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public static void writeBytes(DataOutputStream out, byte[] value,
+			int off, int len) throws IOException {
+		out.writeInt(len);
+		out.write(value, off, len);
+	}
+
+	/**
+	 * Writes an int2 field in binary format.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeInt2(DataOutputStream out, String value)
+			throws IOException {
+		short v;
+		try {
+			v = Short.parseShort(value.startsWith("+") ? value.substring(1)
+					: value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid integer: " + value);
+		}
+		out.writeInt(2);
+		out.writeShort(v);
+	}
+
+	/**
+	 * Writes an int4 field in binary format.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeInt4(DataOutputStream out, String value)
+			throws IOException {
+		int v;
+		try {
+			v = Integer.parseInt(value.startsWith("+") ? value.substring(1)
+					: value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid integer: " + value);
+		}
+		out.writeInt(4);
+		out.writeInt(v);
+	}
+
+	/**
+	 * Writes a float8 field in binary format.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeFloat8(DataOutputStream out, String value)
+			throws IOException {
+		double v;
+		try {
+			v = Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid number: " + value);
+		}
+		out.writeInt(8);
+		out.writeDouble(v);
+	}
+
+	/**
+	 * Writes a boolean field in binary format. Accepts the dBase logical
+	 * values T, Y, F and N, in either case.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeBoolean(DataOutputStream out, String value)
+			throws IOException {
+		char c = Character.toUpperCase(value.charAt(0));
+		boolean v;
+		if (c == 'T' || c == 'Y' || c == '1')
+			v = true;
+		else if (c == 'F' || c == 'N' || c == '0')
+			v = false;
+		else
+			throw new IOException("Invalid logical value: " + value);
+		out.writeInt(1);
+		out.writeByte(v ? 1 : 0);
+	}
+
+	/**
+	 * Writes a date field, given as YYYYMMDD, in binary format.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeDate(DataOutputStream out, String value)
+			throws IOException {
+		int y, m, d;
+		try {
+			if (value.length() != 8)
+				throw new NumberFormatException();
+			y = Integer.parseInt(value.substring(0, 4));
+			m = Integer.parseInt(value.substring(4, 6));
+			d = Integer.parseInt(value.substring(6, 8));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid date: " + value);
+		}
+		out.writeInt(4);
+		out.writeInt(daysFromCivil(y, m, d) - POSTGRES_EPOCH_DAYS);
+	}
+
+	/**
+	 * Returns the number of days from 1970-01-01 to the given date in the
+	 * proleptic Gregorian calendar.
+	 *
+	 * @param y
+	 * @param m
+	 * @param d
+	 * @return
+	 */
+	static int daysFromCivil(int y, int m, int d) {
+		y -= m <= 2 ? 1 : 0;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	/**
+	 * Writes a numeric field in binary format: a header of four int16s
+	 * (number of digits, weight, sign and display scale) followed by the
+	 * base-10000 digits.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeNumeric(DataOutputStream out, String value)
+			throws IOException {
+		BigDecimal v;
+		try {
+			v = new BigDecimal(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid number: " + value);
+		}
+		int sign = v.signum() < 0 ? NUMERIC_NEG : NUMERIC_POS;
+		int dscale = Math.max(v.scale(), 0);
+		BigInteger unscaled = v.abs().unscaledValue();
+		int scale = v.scale();
+		if (scale < 0) {
+			unscaled = unscaled.multiply(BigInteger.TEN.pow(-scale));
+			scale = 0;
+		}
+		// Align the fraction to a multiple of four decimal digits.
+		int pad = (4 - scale % 4) % 4;
+		unscaled = unscaled.multiply(BigInteger.TEN.pow(pad));
+		int fracGroups = (scale + pad) / 4;
+		String digits = unscaled.toString();
+		if (unscaled.signum() == 0)
+			digits = "";
+		// Split into groups of four, from the right.
+		int groups = (digits.length() + 3) / 4;
+		short[] base = new short[groups];
+		int end = digits.length();
+		for (int i = groups - 1; i >= 0; --i) {
+			int start = Math.max(0, end - 4);
+			base[i] = Short.parseShort(digits.substring(start, end));
+			end = start;
+		}
+		int weight = groups - fracGroups - 1;
+		// Strip leading and trailing zero groups.
+		int first = 0;
+		while (first < groups && base[first] == 0) {
+			++first;
+			--weight;
+		}
+		int last = groups;
+		while (last > first && base[last - 1] == 0)
+			--last;
+		int ndigits = last - first;
+		if (ndigits == 0)
+			weight = 0;
+		out.writeInt(8 + ndigits * 2);
+		out.writeShort(ndigits);
+		out.writeShort(weight);
+		out.writeShort(sign);
+		out.writeShort(dscale);
+		for (int i = first; i < last; ++i)
+			out.writeShort(base[i]);
+	}
+}
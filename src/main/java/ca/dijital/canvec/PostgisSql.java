@@ -0,0 +1,105 @@
+package ca.dijital.canvec;
+
+/**
+ * Helpers for writing the SQL statements that shp2pgsql emits. Statements are
+ * returned with a trailing newline.
+ */
+public class PostgisSql {
+
+	/**
+	 * The name of the geometry column created by shp2pgsql.
+	 */
+	public static final String GEOMETRY_COLUMN = "geom";
+
+	/**
+	 * Quotes an identifier.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static String quoteIdentifier(String name) {
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Quotes a string literal. Assumes standard_conforming_strings is on.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static String quoteLiteral(String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	/**
+	 * Returns the quoted, schema-qualified name of the job's table.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public static String table(ExtractorJob job) {
+		return quoteIdentifier(job.getSchemaName()) + "."
+				+ quoteIdentifier(job.getTableName());
+	}
+
+	/**
+	 * Returns the session settings which start every conversion.
+	 *
+	 * @return
+	 */
+	public static String settings() {
+		return "SET CLIENT_ENCODING TO UTF8;\n"
+				+ "SET STANDARD_CONFORMING_STRINGS TO ON;\n";
+	}
+
+	/**
+	 * Returns the statements which drop the job's table.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public static String dropTable(ExtractorJob job) {
+		return "SELECT DropGeometryColumn("
+				+ quoteLiteral(job.getSchemaName()) + ","
+				+ quoteLiteral(job.getTableName()) + ","
+				+ quoteLiteral(GEOMETRY_COLUMN) + ");\n" + "DROP TABLE "
+				+ table(job) + ";\n";
+	}
+
+	/**
+	 * Returns the statement which adds the geometry column.
+	 *
+	 * @param job
+	 * @param geometryType
+	 * @param dimensions
+	 * @return
+	 */
+	public static String addGeometryColumn(ExtractorJob job,
+			String geometryType, int dimensions) {
+		return "SELECT AddGeometryColumn(" + quoteLiteral(job.getSchemaName())
+				+ "," + quoteLiteral(job.getTableName()) + ","
+				+ quoteLiteral(GEOMETRY_COLUMN) + ",'" + job.getSrid() + "',"
+				+ quoteLiteral(geometryType) + "," + dimensions + ");\n";
+	}
+
+	/**
+	 * Returns the statement which creates the spatial index.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public static String createIndex(ExtractorJob job) {
+		return "CREATE INDEX ON " + table(job) + " USING GIST ("
+				+ quoteIdentifier(GEOMETRY_COLUMN) + ");\n";
+	}
+
+	/**
+	 * Returns the statements which end every conversion.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public static String commit(ExtractorJob job) {
+		return "COMMIT;\n" + "ANALYZE " + table(job) + ";\n";
+	}
+}
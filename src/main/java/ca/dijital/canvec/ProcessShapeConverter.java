@@ -0,0 +1,190 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ShapeConverter} which runs the shp2pgsql command-line utility. The
+ * utility must be on the PATH.
+ *
+ * The utility's output and error streams are read by their own threads, and
+ * the calling thread waits for the process; if it is interrupted, the
+ * process is destroyed. A non-zero exit is logged as a warning, with what
+ * the utility wrote to its error stream, and its output is kept.
+ */
+public class ProcessShapeConverter implements ShapeConverter {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(ProcessShapeConverter.class);
+
+	/**
+	 * The most of shp2pgsql's error output which is kept for messages.
+	 */
+	private static final int MAX_STDERR = 16384;
+
+	/**
+	 * Threads which copy the output of running processes.
+	 */
+	private static final ExecutorService DRAINERS = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "canvec-drain");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private Launcher launcher = new DirectLauncher();
+
+	/**
+	 * Sets the {@link Launcher} which starts shp2pgsql.
+	 * 
+	 * @param launcher
+	 */
+	public void setLauncher(Launcher launcher) {
+		this.launcher = launcher;
+	}
+
+	public boolean supportsFormat(String format) {
+		// shp2pgsql only writes SQL.
+		return !ExtractorJob.FORMAT_BINARY.equals(format);
+	}
+
+	public void convert(File file, ExtractorJob job, String charset,
+			int flags, OutputStream out) throws IOException,
+			InterruptedException {
+		logger.info("Processing file {}.", file.getName());
+
+		// Build shp2pgsql command.
+		List<String> command = new ArrayList<String>();
+		command.add("shp2pgsql");
+		if ((flags & DROP_CREATE) != 0) {
+			command.add("-d");
+		} else {
+			command.add("-a");
+		}
+		// If it's the last item, create an index.
+		if ((flags & CREATE_INDEX) != 0)
+			command.add("-I");
+		// Use COPY rather than INSERT statements.
+		if (ExtractorJob.FORMAT_COPY.equals(job.getFormat()))
+			command.add("-D");
+		// Set the charset.
+		command.add("-W");
+		command.add(charset);
+		// Set the SRID
+		command.add("-s");
+		command.add(String.valueOf(job.getSrid()));
+		// Set the ouput file name.
+		command.add(file.getAbsolutePath());
+		// Set the schema/table name.
+		command.add(job.getSchemaName() + "." + job.getTableName());
+
+		logger.info("shp2pgsql command: " + command);
+
+		// Start a process for the command. Both of its streams are drained
+		// at once, so it can't block on a full pipe, and this thread only
+		// waits, so it can be interrupted.
+		Process proc = launcher.start(command);
+		Future<?> stdout = DRAINERS.submit(new Drain(proc, proc
+				.getInputStream(), out));
+		ByteArrayOutputStream errors = new BoundedOutputStream(MAX_STDERR);
+		Future<?> stderr = DRAINERS.submit(new Drain(proc, proc
+				.getErrorStream(), errors));
+		boolean done = false;
+		try {
+			int retval = proc.waitFor();
+			stdout.get();
+			stderr.get();
+			done = true;
+			String err = errors.toString().trim();
+			if (retval != 0)
+				logger.warn("Return value from shp2pgsql was {}; {}", retval,
+						err);
+			else if (err.length() > 0)
+				logger.debug("shp2pgsql: {}", err);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to read from shp2pgsql.",
+					e.getCause());
+		} finally {
+			// Don't leave the process behind if we were stopped.
+			if (!done) {
+				proc.destroy();
+				stdout.cancel(true);
+				stderr.cancel(true);
+			}
+		}
+		logger.info("File {} complete.", file.getName());
+	}
+
+	/**
+	 * Copies a process stream to an output stream. If the copy fails, the
+	 * process is destroyed, since it would otherwise block on the full pipe.
+	 */
+	private static class Drain implements Callable<Object> {
+
+		private Process proc;
+		private InputStream in;
+		private OutputStream out;
+
+		Drain(Process proc, InputStream in, OutputStream out) {
+			this.proc = proc;
+			this.in = in;
+			this.out = out;
+		}
+
+		public Object call() throws IOException {
+			boolean done = false;
+			try {
+				byte[] buf = new byte[65536];
+				int read = 0;
+				while ((read = in.read(buf)) > -1)
+					out.write(buf, 0, read);
+				out.flush();
+				done = true;
+			} finally {
+				in.close();
+				if (!done)
+					proc.destroy();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Keeps the first bytes written to it and discards the rest.
+	 */
+	private static class BoundedOutputStream extends ByteArrayOutputStream {
+
+		private int limit;
+
+		BoundedOutputStream(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			super.write(b, off, Math.max(0, Math.min(len, limit - count)));
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			if (count < limit)
+				super.write(b);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package ca.dijital.canvec;
+
+import java.io.IOException;
+
+/**
+ * A source of bytes which can be read at any position, such as an archive on
+ * a local disk or a mounted bucket. The archive reader uses sources so that
+ * caching, read-ahead and other storage behaviour can be layered between it
+ * and the file system.
+ *
+ * Implementations must allow reads from several threads at once.
+ */
+public interface SeekableSource {
+
+	/**
+	 * Returns the size of the source in bytes.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public long size() throws IOException;
+
+	/**
+	 * Reads up to len bytes at the given position. Returns the number of bytes
+	 * read, which is only less than len at the end of the source, or -1 if the
+	 * position is at or past the end.
+	 *
+	 * @param position
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 * @throws IOException
+	 */
+	public int read(long position, byte[] buf, int off, int len)
+			throws IOException;
+
+	/**
+	 * Releases the source.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,150 @@
+package ca.dijital.canvec;
+
+/**
+ * A single geometry record read from a shapefile. Coordinates are stored in
+ * parallel arrays; the z and m arrays are null if the shape type does not
+ * have them. For polylines and polygons, {@code parts} holds the index of the
+ * first point of each part.
+ */
+public class Shape {
+
+	public static final int NULL = 0;
+	public static final int POINT = 1;
+	public static final int POLYLINE = 3;
+	public static final int POLYGON = 5;
+	public static final int MULTIPOINT = 8;
+	public static final int POINTZ = 11;
+	public static final int POLYLINEZ = 13;
+	public static final int POLYGONZ = 15;
+	public static final int MULTIPOINTZ = 18;
+	public static final int POINTM = 21;
+	public static final int POLYLINEM = 23;
+	public static final int POLYGONM = 25;
+	public static final int MULTIPOINTM = 28;
+
+	/**
+	 * Measures less than this value mean "no data".
+	 */
+	public static final double NO_DATA = -1e38;
+
+	int type;
+	int[] parts;
+	double[] x;
+	double[] y;
+	double[] z;
+	double[] m;
+
+	/**
+	 * Returns the shape type.
+	 *
+	 * @return
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns true if this is a null shape.
+	 *
+	 * @return
+	 */
+	public boolean isNull() {
+		return type == NULL;
+	}
+
+	/**
+	 * Returns the number of points.
+	 *
+	 * @return
+	 */
+	public int getNumPoints() {
+		return x == null ? 0 : x.length;
+	}
+
+	/**
+	 * Returns the number of parts. Points and multipoints have one part.
+	 *
+	 * @return
+	 */
+	public int getNumParts() {
+		return parts == null ? 1 : parts.length;
+	}
+
+	/**
+	 * Returns the index of the first point of the given part.
+	 *
+	 * @param part
+	 * @return
+	 */
+	public int getPartStart(int part) {
+		return parts == null ? 0 : parts[part];
+	}
+
+	/**
+	 * Returns the index after the last point of the given part.
+	 *
+	 * @param part
+	 * @return
+	 */
+	public int getPartEnd(int part) {
+		if (parts == null || part == parts.length - 1)
+			return getNumPoints();
+		return parts[part + 1];
+	}
+
+	/**
+	 * Returns the base type of a shape type, ignoring Z and M; one of
+	 * {@link #NULL}, {@link #POINT}, {@link #POLYLINE}, {@link #POLYGON} or
+	 * {@link #MULTIPOINT}. Returns -1 for unsupported types.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static int baseType(int type) {
+		switch (type) {
+		case NULL:
+			return NULL;
+		case POINT:
+		case POINTZ:
+		case POINTM:
+			return POINT;
+		case POLYLINE:
+		case POLYLINEZ:
+		case POLYLINEM:
+			return POLYLINE;
+		case POLYGON:
+		case POLYGONZ:
+		case POLYGONM:
+			return POLYGON;
+		case MULTIPOINT:
+		case MULTIPOINTZ:
+		case MULTIPOINTM:
+			return MULTIPOINT;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns true if the shape type has Z values.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static boolean hasZ(int type) {
+		return type == POINTZ || type == POLYLINEZ || type == POLYGONZ
+				|| type == MULTIPOINTZ;
+	}
+
+	/**
+	 * Returns true if the shape type has M values. Z types always carry M
+	 * values, though they may be missing from the file.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static boolean hasM(int type) {
+		return hasZ(type) || type == POINTM || type == POLYLINEM
+				|| type == POLYGONM || type == MULTIPOINTM;
+	}
+}
@@ -0,0 +1,62 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts a single shapefile into SQL for loading into PostGIS. The output
+ * of each conversion is self-contained; the flags decide whether the table is
+ * dropped and created before the data is loaded, and whether the spatial
+ * index is created after.
+ *
+ * Implementations must be safe to use from several threads at once, and
+ * should stop promptly if the calling thread is interrupted.
+ */
+public interface ShapeConverter {
+
+	/**
+	 * Drop and create the table before loading the data (shp2pgsql -d). If
+	 * not given, the data is appended to an existing table (shp2pgsql -a).
+	 */
+	public static final int DROP_CREATE = 1;
+
+	/**
+	 * Create a spatial index on the geometry column after loading the data
+	 * (shp2pgsql -I).
+	 */
+	public static final int CREATE_INDEX = 2;
+
+	/**
+	 * Returns true if the converter can write the given output format; one of
+	 * the ExtractorJob.FORMAT_ constants.
+	 *
+	 * @param format
+	 * @return
+	 */
+	public boolean supportsFormat(String format);
+
+	/**
+	 * Convert the shapefile and write the output to the output stream. The
+	 * stream is not closed. In the insert and copy formats the output is SQL;
+	 * in the binary format it is a sequence of binary COPY tuples, without the
+	 * header or trailer.
+	 *
+	 * @param shapeFile
+	 *            The .shp file. Its .shx and .dbf files must be in the same
+	 *            directory.
+	 * @param job
+	 *            The job, which supplies the schema, table, SRID and format.
+	 * @param charset
+	 *            The character set of the attribute data.
+	 * @param flags
+	 *            A combination of {@link #DROP_CREATE} and
+	 *            {@link #CREATE_INDEX}. Ignored in the binary format.
+	 * @param out
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void convert(File shapeFile, ExtractorJob job, String charset,
+			int flags, OutputStream out) throws IOException,
+			InterruptedException;
+}
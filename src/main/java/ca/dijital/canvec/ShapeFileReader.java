@@ -0,0 +1,246 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the geometry records of a shapefile. The record offsets are taken
+ * from the .shx index when it exists; the .shp file is read front to back
+ * through a buffered stream.
+ */
+public class ShapeFileReader {
+
+	private static final int FILE_CODE = 9994;
+	private static final int HEADER_LENGTH = 100;
+
+	private DataInputStream in;
+	private int shapeType;
+	private int[] offsets;
+	private int record;
+	private long position;
+	private byte[] buf;
+
+	/**
+	 * Opens a shapefile. The .shx file is found by replacing the extension of
+	 * the .shp file.
+	 *
+	 * @param shpFile
+	 * @throws IOException
+	 */
+	public ShapeFileReader(File shpFile) throws IOException {
+		File shxFile = sibling(shpFile, "shx");
+		if (shxFile.exists())
+			offsets = readIndex(shxFile);
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				shpFile), 65536));
+		try {
+			byte[] header = new byte[HEADER_LENGTH];
+			in.readFully(header);
+			ByteBuffer bb = ByteBuffer.wrap(header);
+			if (bb.getInt(0) != FILE_CODE)
+				throw new IOException(shpFile.getName()
+						+ " is not a shapefile.");
+			shapeType = bb.order(ByteOrder.LITTLE_ENDIAN).getInt(32);
+			if (Shape.baseType(shapeType) < 0)
+				throw new IOException("Unsupported shape type " + shapeType
+						+ " in " + shpFile.getName() + ".");
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		position = HEADER_LENGTH;
+		buf = new byte[1024];
+	}
+
+	/**
+	 * Returns the file with the same base name as the given file and the
+	 * given extension. Prefers a lower-case extension, but falls back to an
+	 * upper-case one if that's what exists.
+	 *
+	 * @param file
+	 * @param ext
+	 * @return
+	 */
+	static File sibling(File file, String ext) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot < 0 ? name : name.substring(0, dot);
+		File lower = new File(file.getParentFile(), base + "." + ext);
+		if (lower.exists())
+			return lower;
+		File upper = new File(file.getParentFile(), base + "."
+				+ ext.toUpperCase());
+		if (upper.exists())
+			return upper;
+		return lower;
+	}
+
+	/**
+	 * Reads the record offsets, in bytes, from the index file.
+	 *
+	 * @param shxFile
+	 * @return
+	 * @throws IOException
+	 */
+	private static int[] readIndex(File shxFile) throws IOException {
+		DataInputStream shx = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(shxFile)));
+		try {
+			shx.readInt();
+			shx.skipBytes(20);
+			long length = shx.readInt() * 2L;
+			shx.skipBytes(HEADER_LENGTH - 28);
+			int count = (int) ((length - HEADER_LENGTH) / 8);
+			int[] offsets = new int[Math.max(count, 0)];
+			for (int i = 0; i < offsets.length; ++i) {
+				offsets[i] = shx.readInt() * 2;
+				shx.readInt();
+			}
+			return offsets;
+		} finally {
+			shx.close();
+		}
+	}
+
+	/**
+	 * Returns the shape type declared in the file header.
+	 *
+	 * @return
+	 */
+	public int getShapeType() {
+		return shapeType;
+	}
+
+	/**
+	 * Returns the next shape, or null if there are no more.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public Shape next() throws IOException {
+		if (offsets != null) {
+			if (record >= offsets.length)
+				return null;
+			long offset = offsets[record];
+			if (offset < position)
+				throw new IOException("Shapefile records are out of order.");
+			skipFully(offset - position);
+		}
+		int length;
+		try {
+			in.readInt();
+			length = in.readInt() * 2;
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < 4)
+			throw new IOException("Invalid shapefile record length: "
+					+ length);
+		if (buf.length < length)
+			buf = new byte[Math.max(length, buf.length * 2)];
+		in.readFully(buf, 0, length);
+		position += 8 + length;
+		++record;
+		return parse(ByteBuffer.wrap(buf, 0, length).order(
+				ByteOrder.LITTLE_ENDIAN));
+	}
+
+	/**
+	 * Skips the given number of bytes.
+	 *
+	 * @param n
+	 * @throws IOException
+	 */
+	private void skipFully(long n) throws IOException {
+		long left = n;
+		while (left > 0) {
+			long skipped = in.skip(left);
+			if (skipped <= 0)
+				throw new EOFException();
+			left -= skipped;
+		}
+		position += n;
+	}
+
+	/**
+	 * Parses a record's content.
+	 *
+	 * @param bb
+	 * @return
+	 * @throws IOException
+	 */
+	private Shape parse(ByteBuffer bb) throws IOException {
+		Shape shape = new Shape();
+		shape.type = bb.getInt();
+		int base = Shape.baseType(shape.type);
+		if (base == Shape.NULL)
+			return shape;
+		if (base < 0)
+			throw new IOException("Unsupported shape type " + shape.type
+					+ ".");
+		boolean z = Shape.hasZ(shape.type);
+		boolean m = Shape.hasM(shape.type);
+		if (base == Shape.POINT) {
+			shape.x = new double[] { bb.getDouble() };
+			shape.y = new double[] { bb.getDouble() };
+			if (z)
+				shape.z = new double[] { bb.getDouble() };
+			if (m)
+				shape.m = new double[] { bb.remaining() >= 8 ? bb
+						.getDouble() : Shape.NO_DATA };
+			return shape;
+		}
+		// Skip the bounding box.
+		bb.position(bb.position() + 32);
+		int numParts = 0;
+		if (base != Shape.MULTIPOINT)
+			numParts = bb.getInt();
+		int numPoints = bb.getInt();
+		if (base != Shape.MULTIPOINT) {
+			shape.parts = new int[numParts];
+			for (int i = 0; i < numParts; ++i)
+				shape.parts[i] = bb.getInt();
+		}
+		shape.x = new double[numPoints];
+		shape.y = new double[numPoints];
+		for (int i = 0; i < numPoints; ++i) {
+			shape.x[i] = bb.getDouble();
+			shape.y[i] = bb.getDouble();
+		}
+		if (z) {
+			bb.position(bb.position() + 16);
+			shape.z = new double[numPoints];
+			for (int i = 0; i < numPoints; ++i)
+				shape.z[i] = bb.getDouble();
+		}
+		if (m) {
+			shape.m = new double[numPoints];
+			// The measures are optional.
+			if (bb.remaining() >= 16 + numPoints * 8) {
+				bb.position(bb.position() + 16);
+				for (int i = 0; i < numPoints; ++i)
+					shape.m[i] = bb.getDouble();
+			} else {
+				for (int i = 0; i < numPoints; ++i)
+					shape.m[i] = Shape.NO_DATA;
+			}
+		}
+		return shape;
+	}
+
+	/**
+	 * Close the reader.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
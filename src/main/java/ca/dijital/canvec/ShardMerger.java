@@ -0,0 +1,151 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits a run across several processes, or machines, and puts the results
+ * back together.
+ *
+ * Each archive belongs to one of the shards, by a checksum of its path
+ * relative to the CanVec directory, so every process assigns archives the
+ * same way without talking to the others. Each shard writes its part of a
+ * job's output to a part file next to the output. Only the first shard with
+ * files for a job creates the table, and only the last creates the index, so
+ * the parts, joined in shard order, are the same as the output of a single
+ * run. Binary parts are written without the COPY header and trailer, which
+ * are added when they are joined.
+ *
+ * A part is written under a temporary name, and renamed when its shard has
+ * finished the job. A shard with no files for a job writes an empty part, so
+ * that a missing part always means the shard hasn't finished.
+ */
+public class ShardMerger {
+
+	private static Logger logger = LoggerFactory.getLogger(ShardMerger.class);
+
+	private static final String IN_PROGRESS = ".tmp";
+
+	/**
+	 * Returns the file to which a shard writes its part of an output.
+	 *
+	 * @param outFile
+	 * @param index
+	 *            The shard, from 1 to count.
+	 * @param count
+	 * @return
+	 */
+	public static File getPartFile(File outFile, int index, int count) {
+		return new File(outFile.getPath() + ".shard" + index + "of" + count);
+	}
+
+	/**
+	 * Returns the name under which a part is written until it is finished.
+	 *
+	 * @param partFile
+	 * @return
+	 */
+	public static File getInProgressFile(File partFile) {
+		return new File(partFile.getPath() + IN_PROGRESS);
+	}
+
+	/**
+	 * Returns the shard, from 1 to count, to which an archive belongs.
+	 *
+	 * @param canvecDir
+	 * @param archive
+	 * @param count
+	 * @return
+	 */
+	public static int getShard(File canvecDir, File archive, int count) {
+		String root = canvecDir.getAbsolutePath();
+		String path = archive.getAbsolutePath();
+		if (path.startsWith(root))
+			path = path.substring(root.length());
+		path = path.replace(File.separatorChar, '/');
+		while (path.startsWith("/"))
+			path = path.substring(1);
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(path.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return (int) (crc.getValue() % count) + 1;
+	}
+
+	/**
+	 * Joins the parts of a job's output, in shard order, into the output,
+	 * and deletes them. Fails if any part is missing, since its shard hasn't
+	 * finished.
+	 *
+	 * @param job
+	 * @param count
+	 * @throws IOException
+	 */
+	public static void merge(ExtractorJob job, int count) throws IOException {
+		File outFile = new File(job.getOutFile());
+		File[] parts = new File[count];
+		for (int i = 0; i < count; ++i) {
+			parts[i] = getPartFile(outFile, i + 1, count);
+			if (!parts[i].isFile())
+				throw new IOException("Shard " + (i + 1) + " of " + count
+						+ " hasn't finished " + outFile + ".");
+		}
+		boolean binary = ExtractorJob.FORMAT_BINARY.equals(job.getFormat());
+		boolean compress = outFile.getName().endsWith(".gz");
+		FileOutputStream out = new FileOutputStream(outFile);
+		try {
+			if (binary) {
+				ByteArrayOutputStream header = new ByteArrayOutputStream();
+				PgCopy.writeHeader(header);
+				write(out, header, compress);
+			}
+			FileChannel channel = out.getChannel();
+			for (File part : parts) {
+				FileChannel in = new FileInputStream(part).getChannel();
+				try {
+					long pos = 0;
+					long size = in.size();
+					while (pos < size)
+						pos += in.transferTo(pos, size - pos, channel);
+				} finally {
+					in.close();
+				}
+			}
+			if (binary) {
+				ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+				PgCopy.writeTrailer(trailer);
+				write(out, trailer, compress);
+			}
+		} finally {
+			out.close();
+		}
+		for (File part : parts) {
+			if (!part.delete())
+				logger.warn("Failed to delete {}.", part);
+		}
+		logger.info("Merged {} parts into {}.", count, outFile);
+	}
+
+	/**
+	 * Writes some bytes, as a gzip member if the output is compressed.
+	 */
+	private static void write(FileOutputStream out, ByteArrayOutputStream data,
+			boolean compress) throws IOException {
+		byte[] bytes = data.toByteArray();
+		if (compress)
+			bytes = ParallelGzipOutputStream.compress(bytes, bytes.length,
+					Deflater.DEFAULT_COMPRESSION);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,224 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small program which starts processes on behalf of the extractor. It is
+ * run in its own JVM, with a small heap, so that starting a process from it
+ * doesn't need the memory of the extractor's heap, as forking the extractor
+ * itself can.
+ *
+ * On start, the helper listens on a loopback port and prints the port and a
+ * secret to its output. Each request is a connection which sends the secret,
+ * the number of arguments and the arguments, as written by
+ * {@link DataOutputStream#writeUTF(String)}. The helper answers with a
+ * series of frames, each a type byte and, for data, a length and the bytes:
+ *
+ * <pre>
+ * STARTED
+ * FAILED	string message
+ * STDOUT	int length, bytes
+ * STDERR	int length, bytes
+ * EXIT	int exitValue
+ * </pre>
+ *
+ * Closing the connection early destroys the process. The helper exits when
+ * its input is closed, so it doesn't outlive the extractor.
+ */
+public class SpawnHelper {
+
+	static final int STARTED = 0;
+	static final int FAILED = 1;
+	static final int STDOUT = 2;
+	static final int STDERR = 3;
+	static final int EXIT = 4;
+
+	private ServerSocket server;
+	private String secret;
+
+	/**
+	 * Construct a {@link SpawnHelper} listening on an ephemeral loopback port.
+	 * 
+	 * @throws IOException
+	 */
+	SpawnHelper() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder str = new StringBuilder();
+		for (byte b : bytes)
+			str.append(String.format("%02x", b & 0xff));
+		secret = str.toString();
+	}
+
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	String getSecret() {
+		return secret;
+	}
+
+	/**
+	 * Accepts requests until the socket is closed.
+	 */
+	void serve() {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					handle(socket);
+				}
+			}, "spawn-request");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Runs one requested process, relaying its output and exit value.
+	 * 
+	 * @param socket
+	 */
+	private void handle(final Socket socket) {
+		Process proc = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream(), 65536));
+			if (!secret.equals(in.readUTF()))
+				return;
+			int count = in.readInt();
+			List<String> command = new ArrayList<String>();
+			for (int i = 0; i < count; ++i)
+				command.add(in.readUTF());
+			try {
+				proc = new ProcessBuilder(command).start();
+				proc.getOutputStream().close();
+			} catch (IOException e) {
+				out.writeByte(FAILED);
+				out.writeUTF(String.valueOf(e.getMessage()));
+				out.flush();
+				return;
+			}
+			out.writeByte(STARTED);
+			out.flush();
+			// The client closes the connection to stop the process.
+			final Process p = proc;
+			Thread watch = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (socket.getInputStream().read() > -1)
+							;
+					} catch (IOException e) {
+					}
+					p.destroy();
+				}
+			}, "spawn-watch");
+			watch.setDaemon(true);
+			watch.start();
+			Thread err = relay(proc.getErrorStream(), STDERR, out);
+			relay(proc.getInputStream(), STDOUT, out).join();
+			err.join();
+			int retval = proc.waitFor();
+			synchronized (out) {
+				out.writeByte(EXIT);
+				out.writeInt(retval);
+				out.flush();
+			}
+			proc = null;
+		} catch (IOException e) {
+		} catch (InterruptedException e) {
+		} finally {
+			if (proc != null)
+				proc.destroy();
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Starts a thread which copies a process stream to the connection as
+	 * frames of the given type.
+	 * 
+	 * @param in
+	 * @param type
+	 * @param out
+	 * @return
+	 */
+	private static Thread relay(final InputStream in, final int type,
+			final DataOutputStream out) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				byte[] buf = new byte[65536];
+				int read = 0;
+				try {
+					while ((read = in.read(buf)) > -1) {
+						synchronized (out) {
+							out.writeByte(type);
+							out.writeInt(read);
+							out.write(buf, 0, read);
+							out.flush();
+						}
+					}
+				} catch (IOException e) {
+				} finally {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}, "spawn-relay");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	public static void main(String[] args) throws IOException {
+		final SpawnHelper helper = new SpawnHelper();
+		System.out.println(helper.getPort() + " " + helper.getSecret());
+		System.out.flush();
+		// Exit when the extractor closes our input, or dies.
+		Thread watch = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (System.in.read() > -1)
+						;
+				} catch (IOException e) {
+				}
+				helper.close();
+			}
+		}, "spawn-stdin");
+		watch.setDaemon(true);
+		watch.start();
+		helper.serve();
+		System.exit(0);
+	}
+}
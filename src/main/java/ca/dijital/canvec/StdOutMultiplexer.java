@@ -0,0 +1,214 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the output of several jobs to STDOUT as they run, without mixing
+ * them. The first job to start writes straight to STDOUT while it is being
+ * converted. Jobs which start while STDOUT is taken write to temporary
+ * files, which are streamed, in the order the jobs finish, once STDOUT is
+ * free, and deleted as soon as they have been written. The next job to start
+ * after that has STDOUT to itself again.
+ *
+ * A loader reading from STDOUT, like psql, can then work while the remaining
+ * jobs are converted, and only the jobs waiting for their turn use temporary
+ * disk.
+ */
+public class StdOutMultiplexer {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(StdOutMultiplexer.class);
+
+	private StdOutWriter writer;
+	private OutputStream stdout;
+	private File tempDir;
+	private boolean deleteTempFiles;
+	private Runnable onFailure;
+
+	private ExtractorJob live;
+	private boolean writing;
+	private boolean closed;
+	private boolean aborted;
+	private volatile boolean failed;
+	private LinkedList<File> queue;
+	private Thread thread;
+
+	/**
+	 * Construct a {@link StdOutMultiplexer} which writes to STDOUT.
+	 *
+	 * @param tempDir
+	 *            The directory for temporary files.
+	 * @param deleteTempFiles
+	 *            If false, temporary files are kept after they have been
+	 *            written.
+	 * @param onFailure
+	 *            Run if writing to STDOUT fails.
+	 */
+	public StdOutMultiplexer(File tempDir, boolean deleteTempFiles,
+			Runnable onFailure) {
+		this(new StdOutWriter(), new FileOutputStream(FileDescriptor.out),
+				tempDir, deleteTempFiles, onFailure);
+	}
+
+	/**
+	 * Construct a {@link StdOutMultiplexer} which writes to the given stream
+	 * and writer, which must share a destination.
+	 *
+	 * @param writer
+	 * @param stdout
+	 * @param tempDir
+	 * @param deleteTempFiles
+	 * @param onFailure
+	 */
+	StdOutMultiplexer(StdOutWriter writer, OutputStream stdout, File tempDir,
+			boolean deleteTempFiles, Runnable onFailure) {
+		this.writer = writer;
+		this.stdout = stdout;
+		this.tempDir = tempDir;
+		this.deleteTempFiles = deleteTempFiles;
+		this.onFailure = onFailure;
+		queue = new LinkedList<File>();
+	}
+
+	/**
+	 * Starts the thread which writes finished jobs.
+	 */
+	public synchronized void start() {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				writeQueue();
+			}
+		}, "canvec-stdout");
+		thread.start();
+	}
+
+	/**
+	 * Opens the output for a job. If nothing else is using STDOUT, the job
+	 * writes to it directly; otherwise it writes to a temporary file, which is
+	 * recorded on the job. The job must be passed to
+	 * {@link #finished(ExtractorJob, boolean)} after the stream is closed.
+	 *
+	 * @param job
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized OutputStream open(ExtractorJob job) throws IOException {
+		if (aborted)
+			throw new IOException("Output to STDOUT has been stopped.");
+		if (live == null && !writing && queue.isEmpty()) {
+			live = job;
+			logger.info("Job {} is writing to STDOUT.", job.getName());
+			return new BufferedOutputStream(stdout, 65536) {
+				@Override
+				public void close() throws IOException {
+					// Don't close STDOUT.
+					flush();
+				}
+			};
+		}
+		File tempFile = File.createTempFile("canvec_", ".tmp", tempDir);
+		job.setTempFile(tempFile);
+		return new BufferedOutputStream(new FileOutputStream(tempFile));
+	}
+
+	/**
+	 * Called when a job has finished. If the job succeeded, its temporary file
+	 * is queued for writing; otherwise it is discarded.
+	 *
+	 * @param job
+	 * @param success
+	 */
+	public synchronized void finished(ExtractorJob job, boolean success) {
+		if (job == live) {
+			live = null;
+		} else if (job.getTempFile() != null) {
+			if (success && !aborted)
+				queue.add(job.getTempFile());
+			else
+				delete(job.getTempFile());
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Stops writing. Queued files are discarded.
+	 */
+	public synchronized void abort() {
+		aborted = true;
+		for (File file : queue)
+			delete(file);
+		queue.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every queued file has been written, and stops the writing
+	 * thread. Returns false if writing failed.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public boolean close() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			t = thread;
+		}
+		if (t != null)
+			t.join();
+		return !failed;
+	}
+
+	/**
+	 * Writes queued files whenever STDOUT is free, until the multiplexer is
+	 * closed and the queue is empty, or it is aborted.
+	 */
+	private void writeQueue() {
+		while (true) {
+			File file;
+			synchronized (this) {
+				try {
+					while (!aborted
+							&& !(live == null && (!queue.isEmpty() || closed)))
+						wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (aborted || queue.isEmpty())
+					return;
+				file = queue.removeFirst();
+				writing = true;
+			}
+			try {
+				writer.write(file);
+			} catch (IOException e) {
+				logger.error("Failed to write to STDOUT.", e);
+				failed = true;
+				abort();
+				if (onFailure != null)
+					onFailure.run();
+			} finally {
+				delete(file);
+				synchronized (this) {
+					writing = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private void delete(File file) {
+		if (deleteTempFiles && !file.delete())
+			file.deleteOnExit();
+	}
+}
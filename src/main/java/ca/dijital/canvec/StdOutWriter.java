@@ -0,0 +1,92 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies files to STDOUT, or another channel, without passing the data
+ * through the heap. Files are sent with {@link FileChannel#transferTo}, which
+ * the operating system can usually do without copying into user space. If
+ * the channel doesn't accept a transfer, the rest is copied through a direct
+ * buffer.
+ */
+public class StdOutWriter {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private WritableByteChannel out;
+	private ByteBuffer buffer;
+
+	/**
+	 * Construct a {@link StdOutWriter} which writes to STDOUT.
+	 */
+	public StdOutWriter() {
+		this(new FileOutputStream(FileDescriptor.out).getChannel());
+	}
+
+	/**
+	 * Construct a {@link StdOutWriter} which writes to the given channel.
+	 * 
+	 * @param out
+	 */
+	public StdOutWriter(WritableByteChannel out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the contents of a file.
+	 * 
+	 * @param file
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 */
+	public long write(File file) throws IOException {
+		// Anything already written through System.out must go first.
+		System.out.flush();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				long sent = channel.transferTo(position, size - position, out);
+				if (sent <= 0)
+					break;
+				position += sent;
+			}
+			if (position < size) {
+				channel.position(position);
+				position += copy(channel);
+			}
+			return position;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies the rest of a channel through a direct buffer.
+	 * 
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	private long copy(FileChannel channel) throws IOException {
+		if (buffer == null)
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long total = 0;
+		buffer.clear();
+		while (channel.read(buffer) > -1 || buffer.position() > 0) {
+			buffer.flip();
+			total += out.write(buffer);
+			buffer.compact();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,228 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the shapefiles extracted to the temporary directory, so that
+ * the disk they use stays within a budget.
+ *
+ * A shapefile and its companion files are extracted once and shared by every
+ * job that needs them. Each job holds a reference from the time it asks for
+ * the shapefile until the shapefile has been converted; when the last
+ * reference is released, the files are deleted and their space returned to
+ * the budget. Extraction waits while the budget is spent, unless nothing is
+ * held at all, so a single shapefile larger than the budget can still be
+ * extracted. Converted segments waiting to be appended to the output are
+ * counted too.
+ */
+public class TempSpace {
+
+	private static Logger logger = LoggerFactory.getLogger(TempSpace.class);
+
+	private long budget;
+	private boolean deleteFiles;
+	private long used;
+	private long peak;
+	private boolean closed;
+	private Map<File, Group> groups;
+
+	/**
+	 * Construct a {@link TempSpace}.
+	 *
+	 * @param budget
+	 *            The most bytes to hold at once, or 0 for no limit.
+	 * @param deleteFiles
+	 *            If false, released files are kept on disk, though their space
+	 *            is still returned to the budget.
+	 */
+	public TempSpace(long budget, boolean deleteFiles) {
+		this.budget = budget <= 0 ? Long.MAX_VALUE : budget;
+		this.deleteFiles = deleteFiles;
+		groups = new HashMap<File, Group>();
+	}
+
+	/**
+	 * Takes a reference to a shapefile and its companion files. If they
+	 * haven't been extracted, room is made for them in the budget, waiting if
+	 * necessary, and true is returned; the caller must then extract them and
+	 * call {@link #ready(File)} or {@link #failed(File)}. Otherwise, this waits
+	 * until whoever is extracting them is done, and returns false.
+	 *
+	 * @param shapeFile
+	 * @param files
+	 *            The shapefile and its companion files.
+	 * @param size
+	 *            The size of the files, in bytes.
+	 * @return
+	 * @throws IOException
+	 *             If another caller failed to extract the files.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean acquire(File shapeFile, List<File> files,
+			long size) throws IOException, InterruptedException {
+		Group group = groups.get(shapeFile);
+		if (group != null) {
+			++group.refs;
+			while (!group.ready && !group.failed && !closed)
+				wait();
+			if (!group.ready) {
+				--group.refs;
+				throw new IOException("Failed to extract "
+						+ shapeFile.getName() + ".");
+			}
+			return false;
+		}
+		while (!closed && used > 0 && used + size > budget)
+			wait();
+		if (closed)
+			throw new IOException("The temporary space has been closed.");
+		group = new Group(new ArrayList<File>(files), size);
+		groups.put(shapeFile, group);
+		used += size;
+		peak = Math.max(peak, used);
+		return true;
+	}
+
+	/**
+	 * Counts a file which has been written to the temporary directory, such
+	 * as a converted segment, against the budget until it is released. This
+	 * doesn't wait, since the file is already on disk and is only freed by
+	 * being consumed; extraction waits for it instead. The file isn't deleted
+	 * when it is released.
+	 *
+	 * @param file
+	 * @param size
+	 *            The size of the file, in bytes.
+	 */
+	public synchronized void hold(File file, long size) {
+		if (closed || groups.containsKey(file))
+			return;
+		Group group = new Group(new ArrayList<File>(), size);
+		group.ready = true;
+		groups.put(file, group);
+		used += size;
+		peak = Math.max(peak, used);
+	}
+
+	/**
+	 * Marks a shapefile as extracted.
+	 *
+	 * @param shapeFile
+	 */
+	public synchronized void ready(File shapeFile) {
+		Group group = groups.get(shapeFile);
+		if (group != null) {
+			group.ready = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Marks a shapefile as having failed to extract. Its files are deleted,
+	 * and anyone waiting for it fails.
+	 *
+	 * @param shapeFile
+	 */
+	public synchronized void failed(File shapeFile) {
+		Group group = groups.remove(shapeFile);
+		if (group != null) {
+			group.failed = true;
+			remove(group, true);
+		}
+	}
+
+	/**
+	 * Releases a reference to a shapefile. When the last reference is
+	 * released, its files are deleted.
+	 *
+	 * @param shapeFile
+	 */
+	public synchronized void release(File shapeFile) {
+		Group group = groups.get(shapeFile);
+		if (group == null || --group.refs > 0)
+			return;
+		groups.remove(shapeFile);
+		remove(group, deleteFiles);
+	}
+
+	/**
+	 * Deletes every file still held, and fails anyone waiting.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (Group group : groups.values())
+			remove(group, deleteFiles);
+		groups.clear();
+		logger.info("At most {} bytes of extracted files were on disk.", peak);
+	}
+
+	/**
+	 * Returns true if any shapefile held is in the given directory.
+	 *
+	 * @param dir
+	 * @return
+	 */
+	public synchronized boolean holds(File dir) {
+		String prefix = dir.getPath() + File.separator;
+		for (File shapeFile : groups.keySet()) {
+			if (shapeFile.getPath().startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of bytes held now.
+	 *
+	 * @return
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * Returns the most bytes that have been held at once.
+	 *
+	 * @return
+	 */
+	public synchronized long getPeak() {
+		return peak;
+	}
+
+	private void remove(Group group, boolean delete) {
+		if (delete) {
+			for (File file : group.files) {
+				if (file.exists() && !file.delete())
+					file.deleteOnExit();
+			}
+		}
+		used -= group.size;
+		notifyAll();
+	}
+
+	/**
+	 * A shapefile and its companion files.
+	 */
+	private static class Group {
+
+		private List<File> files;
+		private long size;
+		private int refs;
+		private boolean ready;
+		private boolean failed;
+
+		Group(List<File> files, long size) {
+			this.files = files;
+			this.size = size;
+			refs = 1;
+		}
+	}
+}
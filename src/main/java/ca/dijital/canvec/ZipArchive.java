@@ -0,0 +1,318 @@
+package ca.dijital.canvec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reads a zip archive from a {@link SeekableSource}. Unlike
+ * {@link java.util.zip.ZipFile}, which only reads local files, the archive can
+ * be read through a cache or any other source. The central directory is read
+ * with a single read, and each entry's data as one sequential run.
+ *
+ * Stored and deflated entries are supported; each entry's CRC is checked as
+ * it is read. ZIP64 archives are not supported.
+ */
+public class ZipArchive {
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int EOCD_LENGTH = 22;
+	private static final int CEN_LENGTH = 46;
+	private static final int LOC_LENGTH = 30;
+	private static final int MAX_COMMENT = 0xffff;
+
+	private SeekableSource source;
+	private String name;
+	private List<ZipEntry> entries;
+	private Map<String, Entry> byName;
+
+	/**
+	 * Opens an archive and reads its central directory.
+	 *
+	 * @param source
+	 * @param name
+	 *            The name of the archive, for messages.
+	 * @throws IOException
+	 */
+	public ZipArchive(SeekableSource source, String name) throws IOException {
+		this.source = source;
+		this.name = name;
+		try {
+			readCentralDirectory();
+		} catch (IOException e) {
+			source.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the archive's entries, in the order of the central directory.
+	 *
+	 * @return
+	 */
+	public List<ZipEntry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Returns the named entry, or null if there isn't one.
+	 *
+	 * @param entryName
+	 * @return
+	 */
+	public ZipEntry getEntry(String entryName) {
+		return byName.get(entryName);
+	}
+
+	/**
+	 * Returns a stream of an entry's uncompressed data. The stream throws an
+	 * IOException at the end if the data doesn't match the entry's CRC.
+	 *
+	 * @param entry
+	 *            An entry from this archive.
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream getInputStream(ZipEntry entry) throws IOException {
+		Entry e = byName.get(entry.getName());
+		if (e == null)
+			throw new IOException("No entry " + entry.getName() + " in "
+					+ name + ".");
+		ByteBuffer loc = read(e.offset, LOC_LENGTH);
+		if (loc.getInt(0) != LOC_SIGNATURE)
+			throw new IOException("Bad local header for " + e.getName()
+					+ " in " + name + ".");
+		long start = e.offset + LOC_LENGTH + (loc.getShort(26) & 0xffff)
+				+ (loc.getShort(28) & 0xffff);
+		InputStream in = new SourceInputStream(start, e.getCompressedSize());
+		switch (e.getMethod()) {
+		case ZipEntry.STORED:
+			break;
+		case ZipEntry.DEFLATED:
+			in = new InflaterInputStream(in, new Inflater(true), 65536) {
+				private boolean ended;
+				private boolean eof;
+
+				@Override
+				protected void fill() throws IOException {
+					len = in.read(buf, 0, buf.length);
+					if (len == -1) {
+						if (eof)
+							throw new EOFException("Unexpected end of "
+									+ name + ".");
+						// A raw inflater may need a dummy byte to finish.
+						buf[0] = 0;
+						len = 1;
+						eof = true;
+					}
+					inf.setInput(buf, 0, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					if (!ended) {
+						inf.end();
+						ended = true;
+					}
+				}
+			};
+			break;
+		default:
+			throw new IOException("Unsupported compression method "
+					+ e.getMethod() + " for " + e.getName() + " in " + name
+					+ ".");
+		}
+		return new CheckedStream(in, e);
+	}
+
+	/**
+	 * Closes the archive and its source.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * Finds the end of central directory record and reads the entries.
+	 *
+	 * @throws IOException
+	 */
+	private void readCentralDirectory() throws IOException {
+		long size = source.size();
+		if (size < EOCD_LENGTH)
+			throw new IOException(name + " is not a zip archive.");
+		// The record is at the end, followed by a comment of up to 64K.
+		int tailLength = (int) Math.min(size, EOCD_LENGTH + MAX_COMMENT);
+		ByteBuffer tail = read(size - tailLength, tailLength);
+		int eocd = -1;
+		for (int i = tailLength - EOCD_LENGTH; i >= 0; --i) {
+			if (tail.getInt(i) == EOCD_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd < 0)
+			throw new IOException(name + " is not a zip archive.");
+		int count = tail.getShort(eocd + 10) & 0xffff;
+		long cenSize = tail.getInt(eocd + 12) & 0xffffffffL;
+		long cenOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+		if (count == 0xffff || cenSize == 0xffffffffL
+				|| cenOffset == 0xffffffffL)
+			throw new IOException(name + " is a ZIP64 archive.");
+		if (cenOffset + cenSize > size)
+			throw new IOException("Bad central directory in " + name + ".");
+
+		ByteBuffer cen = read(cenOffset, (int) cenSize);
+		entries = new ArrayList<ZipEntry>(count);
+		byName = new HashMap<String, Entry>(count * 2);
+		int pos = 0;
+		for (int i = 0; i < count; ++i) {
+			if (pos + CEN_LENGTH > cenSize || cen.getInt(pos) != CEN_SIGNATURE)
+				throw new IOException("Bad central directory in " + name
+						+ ".");
+			int nameLength = cen.getShort(pos + 28) & 0xffff;
+			int extraLength = cen.getShort(pos + 30) & 0xffff;
+			int commentLength = cen.getShort(pos + 32) & 0xffff;
+			byte[] nameBytes = new byte[nameLength];
+			cen.position(pos + CEN_LENGTH);
+			cen.get(nameBytes);
+			Entry entry = new Entry(new String(nameBytes, "UTF-8"));
+			entry.setMethod(cen.getShort(pos + 10) & 0xffff);
+			entry.setCrc(cen.getInt(pos + 16) & 0xffffffffL);
+			entry.setCompressedSize(cen.getInt(pos + 20) & 0xffffffffL);
+			entry.setSize(cen.getInt(pos + 24) & 0xffffffffL);
+			entry.offset = cen.getInt(pos + 42) & 0xffffffffL;
+			entries.add(entry);
+			byName.put(entry.getName(), entry);
+			pos += CEN_LENGTH + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	 * Reads a run of bytes from the source into a little-endian buffer.
+	 *
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		byte[] buf = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = source.read(position + read, buf, read, length - read);
+			if (n < 0)
+				throw new IOException("Unexpected end of " + name + ".");
+			read += n;
+		}
+		return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * An entry, with the offset of its local header.
+	 */
+	private static class Entry extends ZipEntry {
+
+		private long offset;
+
+		Entry(String name) {
+			super(name);
+		}
+	}
+
+	/**
+	 * Reads a range of the source.
+	 */
+	private class SourceInputStream extends InputStream {
+
+		private long position;
+		private long remaining;
+
+		SourceInputStream(long position, long length) {
+			this.position = position;
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = source.read(position, b, off,
+					(int) Math.min(len, remaining));
+			if (n < 0)
+				throw new IOException("Unexpected end of " + name + ".");
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Checks the size and CRC of an entry's data when the end is reached.
+	 */
+	private class CheckedStream extends InputStream {
+
+		private InputStream in;
+		private ZipEntry entry;
+		private CRC32 crc;
+		private long count;
+
+		CheckedStream(InputStream in, ZipEntry entry) {
+			this.in = in;
+			this.entry = entry;
+			crc = new CRC32();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n < 0) {
+				if (count != entry.getSize() || crc.getValue() != entry.getCrc())
+					throw new IOException("Corrupt entry " + entry.getName()
+							+ " in " + name + ".");
+				return -1;
+			}
+			crc.update(b, off, n);
+			count += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ArchiveCatalog}.
+ */
+public class ArchiveCatalogTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("canvec_test_", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File sub : files)
+				delete(sub);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Creates a file and backdates it, and its directory, so the catalogue
+	 * trusts their times.
+	 */
+	private static File touch(File file, long time) throws Exception {
+		file.getParentFile().mkdirs();
+		file.createNewFile();
+		file.setLastModified(time);
+		file.getParentFile().setLastModified(time);
+		return file;
+	}
+
+	public void testRefresh() throws Exception {
+		long past = System.currentTimeMillis() - 60000;
+		File root = new File(dir, "canvec");
+		touch(new File(root, "021/m/021m07.zip"), past);
+		touch(new File(root, "021/m/readme.txt"), past);
+		touch(new File(root, "031/a/031a01.zip"), past);
+		new File(root, "021").setLastModified(past);
+		new File(root, "031").setLastModified(past);
+		root.setLastModified(past);
+		File table = new File(dir, "table.dat");
+
+		ArchiveCatalog catalog = ArchiveCatalog.load(table);
+		assertEquals(2, catalog.refresh(root, 4).size());
+		assertEquals(5, catalog.getListedCount());
+		catalog.save(table);
+
+		// Nothing has changed, so nothing is listed.
+		catalog = ArchiveCatalog.load(table);
+		assertEquals(2, catalog.refresh(root, 4).size());
+		assertEquals(0, catalog.getListedCount());
+
+		// A new archive deep in the tree only lists its directory.
+		touch(new File(root, "031/a/031a02.zip"), past + 1000);
+		List<File> archives = catalog.refresh(root, 4);
+		assertEquals(3, archives.size());
+		assertTrue(archives.contains(new File(root.getAbsoluteFile(),
+				"031/a/031a02.zip")));
+		assertEquals(1, catalog.getListedCount());
+		// The archives are in order, whatever the order of the listings.
+		File abs = root.getAbsoluteFile();
+		assertEquals(Arrays.asList(new File(abs, "021/m/021m07.zip"),
+				new File(abs, "031/a/031a01.zip"), new File(abs,
+						"031/a/031a02.zip")), archives);
+	}
+}
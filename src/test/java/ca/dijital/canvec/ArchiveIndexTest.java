@@ -0,0 +1,97 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ArchiveIndex}.
+ */
+public class ArchiveIndexTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("canvec_test_", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	public void testSaveAndLoad() throws Exception {
+		File zip = new File(dir, "021m07.zip");
+		FileOutputStream out = new FileOutputStream(zip);
+		out.write(new byte[100]);
+		out.close();
+
+		ArchiveIndex index = new ArchiveIndex();
+		assertNull(index.get(zip));
+		ArchiveIndex.Archive archive = new ArchiveIndex.Archive(zip);
+		ZipEntry entry = new ZipEntry("021m07_1180009_0.shp");
+		entry.setSize(1234);
+		entry.setCrc(0xfedcba98L);
+		archive.addEntry(entry);
+		archive.addEntry(new ZipEntry("021m07_1180009_0.dbf"));
+		index.put(archive);
+		File indexFile = new File(dir, "index.dat");
+		index.save(indexFile);
+
+		ArchiveIndex loaded = ArchiveIndex.load(indexFile);
+		ArchiveIndex.Archive record = loaded.get(zip);
+		assertNotNull(record);
+		assertEquals(2, record.getEntries().size());
+		ArchiveIndex.Entry shp = record.getEntries().get(0);
+		assertEquals("021m07_1180009_0.shp", shp.getName());
+		assertEquals(1234, shp.getSize());
+		assertEquals(0xfedcba98L, shp.getCrc());
+		assertEquals(-1, record.getEntries().get(1).getCrc());
+
+		// A changed archive isn't trusted.
+		out = new FileOutputStream(zip, true);
+		out.write(1);
+		out.close();
+		assertNull(loaded.get(zip));
+	}
+
+	public void testCorruptIndex() throws Exception {
+		File indexFile = new File(dir, "index.dat");
+		FileOutputStream out = new FileOutputStream(indexFile);
+		out.write(new byte[] { 'C', 'V' });
+		out.close();
+		assertNull(ArchiveIndex.load(indexFile).get(indexFile));
+	}
+
+	public void testTruncatedIndex() throws Exception {
+		File zip = new File(dir, "021m07.zip");
+		FileOutputStream out = new FileOutputStream(zip);
+		out.write(new byte[100]);
+		out.close();
+		ArchiveIndex index = new ArchiveIndex();
+		ArchiveIndex.Archive archive = new ArchiveIndex.Archive(zip);
+		archive.addEntry(new ZipEntry("021m07_1180009_0.shp"));
+		index.put(archive);
+		File indexFile = new File(dir, "index.dat");
+		index.save(indexFile);
+
+		// The loaded index doesn't keep the file open, so it can be replaced.
+		ArchiveIndex loaded = ArchiveIndex.load(indexFile);
+		assertNotNull(loaded.get(zip));
+		index.put(new ArchiveIndex.Archive(zip));
+		index.save(indexFile);
+
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+		raf.setLength(raf.length() - 4);
+		raf.close();
+		assertNull(ArchiveIndex.load(indexFile).get(zip));
+	}
+}
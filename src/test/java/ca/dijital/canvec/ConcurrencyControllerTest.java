@@ -0,0 +1,81 @@
+package ca.dijital.canvec;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ConcurrencyController}.
+ */
+public class ConcurrencyControllerTest extends TestCase {
+
+	private ThreadPoolExecutor converters;
+	private ThreadPoolExecutor extractors;
+	private Metrics metrics;
+	private ConcurrencyController controller;
+
+	@Override
+	protected void setUp() throws Exception {
+		converters = newPool(2);
+		extractors = newPool(2);
+		metrics = new Metrics(2, 2, 1);
+		controller = new ConcurrencyController(converters, extractors,
+				metrics, 1, 4, 3);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		converters.shutdownNow();
+		extractors.shutdownNow();
+	}
+
+	private static ThreadPoolExecutor newPool(int threads) {
+		return new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	public void testClimb() {
+		// Each thread added helps, up to the bound.
+		controller.adjust(100, 1.0, 8, 0);
+		assertEquals(3, converters.getCorePoolSize());
+		controller.adjust(150, 1.0, 8, 0);
+		assertEquals(4, converters.getCorePoolSize());
+		controller.adjust(200, 1.0, 8, 0);
+		assertEquals(4, converters.getCorePoolSize());
+		assertEquals(4, metrics.getConversionThreads());
+	}
+
+	public void testUndo() {
+		controller.adjust(100, 1.0, 8, 0);
+		assertEquals(3, converters.getCorePoolSize());
+		// Adding a thread made it worse.
+		controller.adjust(80, 1.5, 8, 0);
+		assertEquals(2, converters.getCorePoolSize());
+	}
+
+	public void testNoGain() {
+		controller.adjust(100, 1.0, 8, 0);
+		assertEquals(3, converters.getCorePoolSize());
+		// Adding a thread did no more work; take it away, and hold.
+		controller.adjust(101, 1.5, 8, 0);
+		assertEquals(2, converters.getCorePoolSize());
+		controller.adjust(100, 1.0, 8, 0);
+		assertEquals(2, converters.getCorePoolSize());
+	}
+
+	public void testStarved() {
+		// Conversion is waiting for input: extraction grows, and conversion
+		// is left alone.
+		controller.adjust(10, 1.0, 0, 5);
+		assertEquals(2, converters.getCorePoolSize());
+		assertEquals(3, extractors.getCorePoolSize());
+		controller.adjust(10, 1.0, 0, 5);
+		assertEquals(3, extractors.getCorePoolSize());
+		// Conversion is well behind: extraction shrinks.
+		controller.adjust(10, -1, 100, 5);
+		assertEquals(2, extractors.getCorePoolSize());
+		assertEquals(2, metrics.getExtractionThreads());
+	}
+}
@@ -0,0 +1,59 @@
+package ca.dijital.canvec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link EntryMatcher}.
+ */
+public class EntryMatcherTest extends TestCase {
+
+	private static ExtractorJob job(String pattern) {
+		ExtractorJob job = new ExtractorJob();
+		job.setPattern(pattern);
+		return job;
+	}
+
+	public void testLiteralDetection() {
+		assertTrue(EntryMatcher.isLiteral("1180009"));
+		assertTrue(EntryMatcher.isLiteral("HD_1480009"));
+		assertFalse(EntryMatcher.isLiteral("1[12]80009"));
+		assertFalse(EntryMatcher.isLiteral("1180009.*shp"));
+	}
+
+	public void testLiteralAndRegexMatches() {
+		List<ExtractorJob> jobs = new ArrayList<ExtractorJob>();
+		ExtractorJob pipelines = job("1180009");
+		ExtractorJob mines = job("1350049");
+		ExtractorJob shared = job("80009");
+		ExtractorJob regex = job("13500[0-9]9");
+		jobs.add(pipelines);
+		jobs.add(mines);
+		jobs.add(shared);
+		jobs.add(regex);
+		EntryMatcher matcher = new EntryMatcher(jobs);
+
+		List<ExtractorJob> result = matcher.match("021M07_1_0_LX_1180009_0.shp");
+		assertEquals(2, result.size());
+		assertSame(pipelines, result.get(0));
+		assertSame(shared, result.get(1));
+
+		result = matcher.match("021M07_1_0_VE_1350049_0.dbf");
+		assertEquals(2, result.size());
+		assertSame(mines, result.get(0));
+		assertSame(regex, result.get(1));
+
+		assertTrue(matcher.match("021M07_1_0_HD_1480019_0.shp").isEmpty());
+		assertFalse(matcher.matches("readme.txt"));
+	}
+
+	public void testDuplicatePatterns() {
+		List<ExtractorJob> jobs = new ArrayList<ExtractorJob>();
+		jobs.add(job("1180009"));
+		jobs.add(job("1180009"));
+		EntryMatcher matcher = new EntryMatcher(jobs);
+		assertEquals(2, matcher.match("x_1180009_0.shx").size());
+	}
+}
@@ -0,0 +1,160 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ExtractionCache}.
+ */
+public class ExtractionCacheTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("canvec_test_", "");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
+	private static ExtractionPlan.Group group(String name, long size, long crc) {
+		return new ExtractionPlan.Group(new File("/canvec/a.zip"), 0, name,
+				Arrays.asList(new ArchiveIndex.Entry(name, size, crc)),
+				Collections.<ExtractorJob> emptyList());
+	}
+
+	private static void store(ExtractionCache cache,
+			ExtractionPlan.Group group, int size) throws Exception {
+		File part = cache.begin(group);
+		FileOutputStream out = new FileOutputStream(new File(part,
+				group.getShapeEntry()));
+		out.write(new byte[size]);
+		out.close();
+		cache.commit(group);
+	}
+
+	public void testLookup() throws Exception {
+		ExtractionCache cache = new ExtractionCache(dir, 1000);
+		ExtractionPlan.Group group = group("a.shp", 10, 1);
+		assertFalse(cache.lookup(group));
+		store(cache, group, 10);
+		assertTrue(cache.lookup(group));
+		// A changed CRC is a different key.
+		assertFalse(cache.lookup(group("a.shp", 10, 2)));
+	}
+
+	public void testDamaged() throws Exception {
+		ExtractionCache cache = new ExtractionCache(dir, 1000);
+		ExtractionPlan.Group group = group("a.shp", 10, 1);
+		store(cache, group, 5);
+		assertFalse(cache.lookup(group));
+		assertFalse(cache.getDirectory(group).exists());
+	}
+
+	public void testPartialDeletedOnOpen() throws Exception {
+		ExtractionCache cache = new ExtractionCache(dir, 1000);
+		File part = cache.begin(group("a.shp", 10, 1));
+		new ExtractionCache(dir, 1000);
+		assertFalse(part.exists());
+	}
+
+	public void testTrimLeastRecentlyUsed() throws Exception {
+		ExtractionCache cache = new ExtractionCache(dir, 1000);
+		ExtractionPlan.Group a = group("a.shp", 10, 1);
+		ExtractionPlan.Group b = group("b.shp", 10, 1);
+		ExtractionPlan.Group c = group("c.shp", 10, 1);
+		store(cache, a, 10);
+		store(cache, b, 10);
+		store(cache, c, 10);
+		long now = System.currentTimeMillis();
+		cache.getDirectory(a).setLastModified(now - 3000);
+		cache.getDirectory(b).setLastModified(now - 2000);
+		cache.getDirectory(c).setLastModified(now - 1000);
+		// The order of use is read when the cache is opened. Using a makes
+		// b the least recently used.
+		cache = new ExtractionCache(dir, 25);
+		assertTrue(cache.lookup(a));
+		cache.trim();
+		assertTrue(cache.getDirectory(a).exists());
+		assertFalse(cache.getDirectory(b).exists());
+		assertTrue(cache.getDirectory(c).exists());
+	}
+
+	public void testTrimOnCommit() throws Exception {
+		ExtractionCache cache = new ExtractionCache(dir, 15);
+		final ExtractionPlan.Group a = group("a.shp", 10, 1);
+		ExtractionPlan.Group b = group("b.shp", 10, 1);
+		ExtractionPlan.Group c = group("c.shp", 10, 1);
+		final boolean[] used = new boolean[] { true };
+		cache.setInUse(new FileFilter() {
+			public boolean accept(File file) {
+				return used[0] && file.getName().equals(ExtractionCache
+						.getKey(a));
+			}
+		});
+		store(cache, a, 10);
+		// a is in use, so it's kept though the cache is over its size.
+		store(cache, b, 10);
+		assertTrue(cache.getDirectory(a).exists());
+		assertFalse(cache.getDirectory(b).exists());
+		used[0] = false;
+		store(cache, c, 10);
+		assertFalse(cache.getDirectory(a).exists());
+		assertTrue(cache.getDirectory(c).exists());
+		assertEquals(10, cache.getSize());
+	}
+
+	public void testBudgetWithCache() throws Exception {
+		final TempSpace space = new TempSpace(15, true);
+		ExtractionCache cache = new ExtractionCache(dir, 1000);
+		ExtractionPlan.Group a = group("a.shp", 10, 1);
+		ExtractionPlan.Group b = group("b.shp", 10, 1);
+		store(cache, a, 10);
+		store(cache, b, 10);
+		// Taken from the cache, as the extractor does.
+		final File shpA = new File(cache.getDirectory(a), "a.shp");
+		File shpB = new File(cache.getDirectory(b), "b.shp");
+		assertTrue(space.acquire(shpA, Collections.<File> emptyList(),
+				a.getSize()));
+		assertTrue(cache.lookup(a));
+		space.ready(shpA);
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				space.release(shpA);
+			}
+		};
+		releaser.start();
+		// b doesn't fit in the budget until a has been converted.
+		long start = System.currentTimeMillis();
+		assertTrue(space.acquire(shpB, Collections.<File> emptyList(),
+				b.getSize()));
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertTrue(cache.lookup(b));
+		assertEquals(10, space.getPeak());
+		releaser.join();
+		// The cached files outlive their use.
+		assertTrue(shpA.exists());
+	}
+}
@@ -0,0 +1,95 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ExtractionPlan}, and the ordering of jobs by its sizes.
+ */
+public class ExtractionPlanTest extends TestCase {
+
+	private ExtractorJob small;
+	private ExtractorJob large;
+	private ExtractorJob empty;
+	private ExtractionPlan plan;
+
+	@Override
+	protected void setUp() throws Exception {
+		small = new ExtractorJob();
+		small.setPattern("1180009");
+		large = new ExtractorJob();
+		large.setPattern("1480009");
+		empty = new ExtractorJob();
+		empty.setPattern("1690009");
+		plan = new ExtractionPlan();
+		add("a.zip", 0, "A_1180009_0.shp", 100, small);
+		add("a.zip", 0, "A_1480009_0.shp", 1000, large);
+		add("b.zip", 1, "B_1480009_0.shp", 2000, large);
+		// A shapefile found again in a later archive is only counted once.
+		add("c.zip", 2, "A_1180009_0.shp", 100, small);
+	}
+
+	private void add(String archive, int order, String name, long size,
+			ExtractorJob job) {
+		plan.add(new File(archive), order, name, Arrays
+				.asList(new ArchiveIndex.Entry(name, size, 0)), Arrays
+				.asList(job));
+	}
+
+	public void testGetSize() {
+		assertEquals(100, plan.getSize(small));
+		assertEquals(3000, plan.getSize(large));
+		assertEquals(0, plan.getSize(empty));
+		assertEquals(new File("a.zip"), plan.getGroups(small).get(0)
+				.getArchive());
+	}
+
+	public void testOrderLargestFirst() {
+		ExtractorJob other = new ExtractorJob();
+		other.setPattern("2600009");
+		List<ExtractorJob> jobs = new ArrayList<ExtractorJob>(Arrays.asList(
+				empty, small, other, large));
+		new Extractor().orderLargestFirst(jobs, plan);
+		// Jobs of the same size keep their order.
+		assertEquals(Arrays.asList(large, small, empty, other), jobs);
+	}
+
+	public void testFollow() {
+		final List<String> planned = new ArrayList<String>();
+		final boolean[] finished = new boolean[1];
+		ExtractionPlan.Listener listener = new ExtractionPlan.Listener() {
+			public void planned(List<ExtractionPlan.Group> groups) {
+				for (ExtractionPlan.Group group : groups)
+					planned.add(group.getArchive() + ":"
+							+ group.getShapeEntry());
+			}
+
+			public void finished(boolean complete) {
+				finished[0] = complete;
+			}
+		};
+		// b.zip is matched first, but isn't final until a.zip is.
+		plan.matched(1);
+		plan.follow(large, listener);
+		assertTrue(planned.isEmpty());
+		plan.matched(0);
+		assertEquals(Arrays.asList("a.zip:A_1480009_0.shp",
+				"b.zip:B_1480009_0.shp"), planned);
+		// A shapefile found in an earlier archive, after a later one was.
+		add("e.zip", 4, "E_1480009_0.shp", 10, large);
+		add("d.zip", 3, "E_1480009_0.shp", 10, large);
+		plan.matched(4);
+		plan.matched(2);
+		assertEquals(2, planned.size());
+		plan.matched(3);
+		assertEquals("d.zip:E_1480009_0.shp", planned.get(2));
+		assertFalse(finished[0]);
+		plan.finish(true);
+		assertEquals(3, planned.size());
+		assertTrue(finished[0]);
+	}
+}
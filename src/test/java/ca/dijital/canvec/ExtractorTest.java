@@ -0,0 +1,218 @@
+package ca.dijital.canvec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link Extractor} run end to end over a small CanVec tree, with a
+ * converter which writes a line for each shapefile.
+ */
+public class ExtractorTest extends TestCase {
+
+	private static final String[] SHEETS = { "021a01", "021a02", "021b01",
+			"031a01", "031a02", "031b01", "031b02", "041a01" };
+
+	private File dir;
+	private File canvecDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("canvec_test_", "");
+		dir.delete();
+		canvecDir = new File(dir, "canvec");
+		for (String sheet : SHEETS) {
+			List<String> entries = new ArrayList<String>();
+			entries.add(sheet.toUpperCase() + "_1180009_0");
+			if (sheet.endsWith("1"))
+				entries.add(sheet.toUpperCase() + "_1480009_0");
+			// The same shapefile is in two archives.
+			if (sheet.equals("021b01") || sheet.equals("031a02"))
+				entries.add("DUP_1180009_0");
+			createArchive(sheet, entries);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Writes an archive holding a shapefile for each of the names, whose
+	 * contents are the sheet's name.
+	 */
+	private void createArchive(String sheet, List<String> names)
+			throws IOException {
+		File sheetDir = new File(canvecDir, sheet.substring(0, 3)
+				+ File.separator + sheet.charAt(3));
+		sheetDir.mkdirs();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(
+				new File(sheetDir, sheet + ".zip")));
+		try {
+			for (String name : names) {
+				for (String extension : Arrays.asList(".shp", ".shx", ".dbf")) {
+					out.putNextEntry(new ZipEntry(name + extension));
+					out.write(sheet.getBytes("UTF-8"));
+					out.closeEntry();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private ExtractorJob createJob(String pattern) {
+		ExtractorJob job = new ExtractorJob();
+		job.setPattern(pattern);
+		job.setSchemaName("public");
+		job.setTableName("canvec_" + pattern);
+		job.setOutFile(new File(dir, "canvec_" + pattern + ".sql").getPath());
+		return job;
+	}
+
+	private Extractor createExtractor() {
+		Extractor extractor = new Extractor();
+		extractor.setCanvecDir(canvecDir.getPath());
+		extractor.setTempDir(new File(dir, "tmp").getPath());
+		extractor.setNumWorkers(2);
+		extractor.setExtractThreads(4);
+		extractor.setUseJournal(false);
+		extractor.setConverter(new StubConverter());
+		return extractor;
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Checks that the shapefiles were appended in the given order, each
+	 * once, and that only the first segment dropped and created the table,
+	 * and only the last created the index.
+	 */
+	private void assertSegments(List<String> lines, String... expected) {
+		assertEquals(expected.length, lines.size());
+		for (int i = 0; i < lines.size(); ++i) {
+			String[] parts = lines.get(i).split(" ");
+			assertEquals(expected[i], parts[0] + " " + parts[1]);
+			int flags = Integer.parseInt(parts[2]);
+			assertEquals(i == 0, (flags & ShapeConverter.DROP_CREATE) != 0);
+			assertEquals(i == lines.size() - 1,
+					(flags & ShapeConverter.CREATE_INDEX) != 0);
+		}
+	}
+
+	public void testSegmentOrder() throws Exception {
+		Extractor extractor = createExtractor();
+		ExtractorJob roads = createJob("1180009");
+		ExtractorJob lakes = createJob("1480009");
+		extractor.addJob(roads);
+		extractor.addJob(lakes);
+		assertTrue(extractor.execute(false));
+
+		// The segments are in catalogue order, then by name, and the
+		// duplicate is taken from the first archive in the catalogue.
+		assertSegments(readLines(new File(roads.getOutFile())),
+				"021A01_1180009_0.shp 021a01", "021A02_1180009_0.shp 021a02",
+				"021B01_1180009_0.shp 021b01", "DUP_1180009_0.shp 021b01",
+				"031A01_1180009_0.shp 031a01", "031A02_1180009_0.shp 031a02",
+				"031B01_1180009_0.shp 031b01", "031B02_1180009_0.shp 031b02",
+				"041A01_1180009_0.shp 041a01");
+		assertSegments(readLines(new File(lakes.getOutFile())),
+				"021A01_1480009_0.shp 021a01", "021B01_1480009_0.shp 021b01",
+				"031A01_1480009_0.shp 031a01", "031B01_1480009_0.shp 031b01",
+				"041A01_1480009_0.shp 041a01");
+	}
+
+	public void testDuplicateFromIndex() throws Exception {
+		// The second run matches the archives from the index.
+		for (int i = 0; i < 2; ++i) {
+			Extractor extractor = createExtractor();
+			ExtractorJob roads = createJob("DUP");
+			extractor.addJob(roads);
+			assertTrue(extractor.execute(false));
+			assertSegments(readLines(new File(roads.getOutFile())),
+					"DUP_1180009_0.shp 021b01");
+		}
+	}
+
+	public void testFailedConversion() throws Exception {
+		Extractor extractor = createExtractor();
+		extractor.setConverter(new StubConverter() {
+			@Override
+			public void convert(File shapeFile, ExtractorJob job,
+					String charset, int flags, OutputStream out)
+					throws IOException, InterruptedException {
+				if (shapeFile.getName().startsWith("031A02"))
+					throw new IOException("A test failure.");
+				super.convert(shapeFile, job, charset, flags, out);
+			}
+		});
+		extractor.addJob(createJob("1180009"));
+		assertFalse(extractor.execute(false));
+	}
+
+	/**
+	 * Writes the name of the shapefile, the sheet in it and the flags, after
+	 * a random delay, so that conversions finish out of order.
+	 */
+	private static class StubConverter implements ShapeConverter {
+
+		private Random random = new Random(1);
+
+		public boolean supportsFormat(String format) {
+			return ExtractorJob.FORMAT_INSERT.equals(format);
+		}
+
+		public void convert(File shapeFile, ExtractorJob job, String charset,
+				int flags, OutputStream out) throws IOException,
+				InterruptedException {
+			int delay;
+			synchronized (random) {
+				delay = random.nextInt(30);
+			}
+			Thread.sleep(delay);
+			byte[] sheet = new byte[6];
+			FileInputStream in = new FileInputStream(shapeFile);
+			try {
+				if (in.read(sheet) != sheet.length)
+					throw new IOException("The shapefile is short.");
+			} finally {
+				in.close();
+			}
+			out.write((shapeFile.getName() + " " + new String(sheet, "UTF-8")
+					+ " " + flags + "\n").getBytes("UTF-8"));
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link HelperLauncher}.
+ */
+public class HelperLauncherTest extends TestCase {
+
+	private HelperLauncher launcher;
+
+	@Override
+	protected void setUp() throws Exception {
+		launcher = new HelperLauncher();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		launcher.close();
+	}
+
+	public void testOutputAndExit() throws Exception {
+		Process proc = launcher.start(Arrays.asList("sh", "-c",
+				"head -c 300000 /dev/zero; echo oops 1>&2; exit 3"));
+		assertEquals(300000, readAll(proc.getInputStream()).length);
+		assertEquals("oops", new String(readAll(proc.getErrorStream()),
+				"UTF-8").trim());
+		assertEquals(3, proc.waitFor());
+		assertEquals(3, proc.exitValue());
+	}
+
+	public void testSeveralAtOnce() throws Exception {
+		Process a = launcher.start(Arrays.asList("sh", "-c", "echo a"));
+		Process b = launcher.start(Arrays.asList("sh", "-c", "echo b"));
+		assertEquals("b", new String(readAll(b.getInputStream()), "UTF-8")
+				.trim());
+		assertEquals("a", new String(readAll(a.getInputStream()), "UTF-8")
+				.trim());
+		assertEquals(0, a.waitFor());
+		assertEquals(0, b.waitFor());
+	}
+
+	public void testMissingProgram() throws Exception {
+		try {
+			launcher.start(Arrays.asList("canvec-no-such-program"));
+			fail("A missing program should fail to start.");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testDestroy() throws Exception {
+		Process proc = launcher.start(Arrays.asList("sleep", "30"));
+		long start = System.currentTimeMillis();
+		proc.destroy();
+		proc.waitFor();
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ((read = in.read(buf)) > -1)
+			out.write(buf, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
+}
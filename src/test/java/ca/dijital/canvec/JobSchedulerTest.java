@@ -0,0 +1,177 @@
+package ca.dijital.canvec;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link JobScheduler}.
+ */
+public class JobSchedulerTest extends TestCase {
+
+	private Set<ExtractorWorker> finished;
+	private JobScheduler scheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		finished = Collections.synchronizedSet(new HashSet<ExtractorWorker>());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (scheduler != null)
+			scheduler.shutdown();
+	}
+
+	private JobScheduler createScheduler(int numWorkers) {
+		scheduler = new JobScheduler(numWorkers, new JobScheduler.Listener() {
+			public void workerFinished(ExtractorWorker worker) {
+				finished.add(worker);
+			}
+		});
+		return scheduler;
+	}
+
+	public void testAwaitCompletion() throws Exception {
+		JobScheduler scheduler = createScheduler(2);
+		TestWorker[] workers = new TestWorker[5];
+		for (int i = 0; i < workers.length; ++i) {
+			workers[i] = new TestWorker(false);
+			scheduler.submit(workers[i]);
+		}
+		assertTrue(scheduler.awaitCompletion());
+		assertFalse(scheduler.isFailure());
+		for (TestWorker worker : workers) {
+			assertTrue(worker.ran);
+			assertTrue(finished.contains(worker));
+		}
+	}
+
+	public void testFailedWorker() throws Exception {
+		JobScheduler scheduler = createScheduler(2);
+		BlockingWorker waiting = new BlockingWorker();
+		TestWorker failing = new TestWorker(true);
+		TestWorker queued = new TestWorker(false);
+		scheduler.submit(waiting);
+		assertTrue(waiting.started.await(5, TimeUnit.SECONDS));
+		scheduler.submit(failing);
+		scheduler.submit(queued);
+		assertFalse(scheduler.awaitCompletion());
+		assertTrue(scheduler.isFailure());
+		// The running worker is stopped, and the queued one never starts.
+		assertTrue(waiting.stopped.await(5, TimeUnit.SECONDS));
+		scheduler.shutdown();
+		assertTrue(finished.contains(failing));
+		assertTrue(finished.contains(waiting));
+		assertFalse(queued.ran);
+	}
+
+	public void testThrowingWorker() throws Exception {
+		JobScheduler scheduler = createScheduler(2);
+		BlockingWorker waiting = new BlockingWorker();
+		ExtractorWorker throwing = new ExtractorWorker(null,
+				new ExtractorJob(), false) {
+			@Override
+			public void run() {
+				throw new IllegalStateException("A test failure.");
+			}
+		};
+		scheduler.submit(waiting);
+		assertTrue(waiting.started.await(5, TimeUnit.SECONDS));
+		scheduler.submit(throwing);
+		assertFalse(scheduler.awaitCompletion());
+		assertTrue(waiting.stopped.await(5, TimeUnit.SECONDS));
+		scheduler.shutdown();
+		assertTrue(finished.contains(throwing));
+		assertTrue(finished.contains(waiting));
+	}
+
+	public void testFail() throws Exception {
+		JobScheduler scheduler = createScheduler(1);
+		BlockingWorker waiting = new BlockingWorker();
+		TestWorker queued = new TestWorker(false);
+		scheduler.submit(waiting);
+		scheduler.submit(queued);
+		assertTrue(waiting.started.await(5, TimeUnit.SECONDS));
+		scheduler.fail();
+		assertTrue(waiting.stopped.await(5, TimeUnit.SECONDS));
+		assertFalse(scheduler.awaitCompletion());
+		// Workers submitted after the failure are ignored.
+		TestWorker late = new TestWorker(false);
+		scheduler.submit(late);
+		scheduler.shutdown();
+		assertFalse(queued.ran);
+		assertFalse(late.ran);
+		assertFalse(finished.contains(late));
+	}
+
+	public void testShutdownStopsWorkers() throws Exception {
+		JobScheduler scheduler = createScheduler(2);
+		BlockingWorker a = new BlockingWorker();
+		BlockingWorker b = new BlockingWorker();
+		scheduler.submit(a);
+		scheduler.submit(b);
+		assertTrue(a.started.await(5, TimeUnit.SECONDS));
+		assertTrue(b.started.await(5, TimeUnit.SECONDS));
+		scheduler.shutdown();
+		assertEquals(0, a.stopped.getCount());
+		assertEquals(0, b.stopped.getCount());
+		assertTrue(finished.contains(a));
+		assertTrue(finished.contains(b));
+	}
+
+	/**
+	 * A worker which returns at once, having failed or not.
+	 */
+	private static class TestWorker extends ExtractorWorker {
+
+		private boolean fail;
+		private volatile boolean ran;
+
+		TestWorker(boolean fail) {
+			super(null, new ExtractorJob(), false);
+			this.fail = fail;
+		}
+
+		@Override
+		public void run() {
+			ran = true;
+		}
+
+		@Override
+		public boolean isFailure() {
+			return fail;
+		}
+	}
+
+	/**
+	 * A worker which runs until it is stopped.
+	 */
+	private static class BlockingWorker extends ExtractorWorker {
+
+		private CountDownLatch started = new CountDownLatch(1);
+		private CountDownLatch stopped = new CountDownLatch(1);
+
+		BlockingWorker() {
+			super(null, new ExtractorJob(), false);
+		}
+
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				stopped.await();
+			} catch (InterruptedException e) {
+			}
+		}
+
+		@Override
+		public synchronized void stop() {
+			stopped.countDown();
+		}
+	}
+}
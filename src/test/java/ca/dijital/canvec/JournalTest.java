@@ -0,0 +1,95 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link Journal}.
+ */
+public class JournalTest extends TestCase {
+
+	private File file;
+	private ExtractorJob job;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("canvec_test_", ".txt");
+		job = new ExtractorJob();
+		job.setPattern("1180009");
+		job.setSchemaName("public");
+		job.setTableName("petro");
+		job.setOutFile("/tmp/petro.sql");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testResume() throws Exception {
+		Journal journal = Journal.open(file, false);
+		journal.started(job, 0);
+		journal.converted(job, new File("/x/a.shp"), 100);
+		journal.converted(job, new File("/x/b.shp"), 250);
+		journal.close();
+
+		journal = Journal.open(file, true);
+		Journal.State state = journal.getState(job);
+		assertNotNull(state);
+		assertFalse(state.isDone());
+		assertEquals(250, state.getLength());
+		assertTrue(state.getShapeFiles().contains("a.shp"));
+		assertTrue(state.getShapeFiles().contains("b.shp"));
+		journal.finished(job, 300);
+		journal.close();
+
+		journal = Journal.open(file, true);
+		assertTrue(journal.getState(job).isDone());
+		journal.close();
+	}
+
+	public void testTornLine() throws Exception {
+		Journal journal = Journal.open(file, false);
+		journal.started(job, 0);
+		journal.converted(job, new File("/x/a.shp"), 100);
+		journal.close();
+		// A crash in the middle of a record.
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write("S\t/tmp/petro.sql\tb.shp\t2".getBytes("UTF-8"));
+		out.close();
+
+		journal = Journal.open(file, true);
+		Journal.State state = journal.getState(job);
+		assertEquals(100, state.getLength());
+		assertFalse(state.getShapeFiles().contains("b.shp"));
+		journal.converted(job, new File("/x/c.shp"), 200);
+		journal.close();
+
+		journal = Journal.open(file, true);
+		assertEquals(200, journal.getState(job).getLength());
+		journal.close();
+	}
+
+	public void testChangedJob() throws Exception {
+		Journal journal = Journal.open(file, false);
+		journal.started(job, 0);
+		journal.close();
+		job.setTableName("other");
+		journal = Journal.open(file, true);
+		assertNull(journal.getState(job));
+		journal.close();
+	}
+
+	public void testFreshRun() throws Exception {
+		Journal journal = Journal.open(file, false);
+		journal.started(job, 0);
+		journal.close();
+		journal = Journal.open(file, false);
+		journal.close();
+		journal = Journal.open(file, true);
+		assertNull(journal.getState(job));
+		journal.close();
+	}
+}
@@ -0,0 +1,51 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link Metrics}.
+ */
+public class MetricsTest extends TestCase {
+
+	public void testTimer() throws Exception {
+		Metrics metrics = new Metrics(2, 1, 3);
+		long start = System.nanoTime();
+		Thread.sleep(20);
+		metrics.getConvert().record(start, 1000);
+		metrics.getConvert().record(System.nanoTime(), 500);
+		assertEquals(2, metrics.getShapeFilesConverted());
+		assertEquals(1500, metrics.getBytesConverted());
+		assertTrue(metrics.getConvertSeconds() >= 0.02);
+		assertTrue(metrics.getWorkerUtilisation() > 0);
+		assertTrue(metrics.getWorkerUtilisation() <= 1);
+	}
+
+	public void testJson() throws Exception {
+		Metrics metrics = new Metrics(1, 1, 2);
+		metrics.jobFinished(true);
+		metrics.jobFinished(false);
+		metrics.setArchives(7);
+		metrics.getExtractionQueueGauge().incrementAndGet();
+		metrics.getWrite().record(System.nanoTime(), 42);
+		File file = File.createTempFile("canvec_test_", ".json");
+		try {
+			metrics.writeJson(file);
+			byte[] bytes = new byte[(int) file.length()];
+			FileInputStream in = new FileInputStream(file);
+			in.read(bytes);
+			in.close();
+			String json = new String(bytes, "UTF-8");
+			assertTrue(json.contains("\"jobs\": {\"total\": 2, \"finished\": 1, \"failed\": 1"));
+			assertTrue(json.contains("\"archives\": 7,"));
+			assertTrue(json.contains("\"extraction\": 1,"));
+			assertTrue(json.contains("\"write\": {\"count\": 1, \"seconds\": "));
+			assertTrue(json.contains("\"bytes\": 42}"));
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link NativeShapeConverter}.
+ */
+public class NativeShapeConverterTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("canvec_test_", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Writes a polygon shapefile with two records: a square with a hole, and
+	 * a null shape.
+	 */
+	private File writePolygons() throws IOException {
+		double[][] outer = { { 0, 0 }, { 0, 10 }, { 10, 10 }, { 10, 0 },
+				{ 0, 0 } };
+		double[][] hole = { { 2, 2 }, { 4, 2 }, { 4, 4 }, { 2, 4 }, { 2, 2 } };
+		int points = outer.length + hole.length;
+		ByteBuffer rec1 = ByteBuffer.allocate(44 + 8 + 16 * points).order(
+				ByteOrder.LITTLE_ENDIAN);
+		rec1.putInt(Shape.POLYGON);
+		rec1.putDouble(0).putDouble(0).putDouble(10).putDouble(10);
+		rec1.putInt(2).putInt(points);
+		rec1.putInt(0).putInt(outer.length);
+		for (double[] p : outer)
+			rec1.putDouble(p[0]).putDouble(p[1]);
+		for (double[] p : hole)
+			rec1.putDouble(p[0]).putDouble(p[1]);
+		ByteBuffer rec2 = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		rec2.putInt(Shape.NULL);
+		byte[][] records = { rec1.array(), rec2.array() };
+
+		File shp = new File(dir, "test.shp");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(shp));
+		DataOutputStream shx = new DataOutputStream(new FileOutputStream(
+				new File(dir, "test.shx")));
+		int length = 100;
+		for (byte[] r : records)
+			length += 8 + r.length;
+		out.write(header(length, Shape.POLYGON));
+		shx.write(header(100 + 8 * records.length, Shape.POLYGON));
+		int offset = 100;
+		for (int i = 0; i < records.length; ++i) {
+			out.writeInt(i + 1);
+			out.writeInt(records[i].length / 2);
+			out.write(records[i]);
+			shx.writeInt(offset / 2);
+			shx.writeInt(records[i].length / 2);
+			offset += 8 + records[i].length;
+		}
+		out.close();
+		shx.close();
+
+		writeDbf(new byte[][] { field("CODE", 'N', 7, 0),
+				field("NAME", 'C', 10, 0) }, " 1180009O'Hareé   ",
+				" *******          ");
+		return shp;
+	}
+
+	/**
+	 * Writes the shapefile's dBase file, with the given fields and records.
+	 */
+	private void writeDbf(byte[][] fields, String... records)
+			throws IOException {
+		int headerSize = 32 + 32 * fields.length + 1;
+		ByteArrayOutputStream dbf = new ByteArrayOutputStream();
+		ByteBuffer head = ByteBuffer.allocate(headerSize).order(
+				ByteOrder.LITTLE_ENDIAN);
+		head.put((byte) 3).put(new byte[3]).putInt(records.length)
+				.putShort((short) headerSize)
+				.putShort((short) records[0].length()).put(new byte[20]);
+		for (byte[] field : fields)
+			head.put(field);
+		head.put((byte) 0x0d);
+		dbf.write(head.array());
+		for (String record : records)
+			dbf.write(record.getBytes("ISO-8859-1"));
+		FileOutputStream dbfOut = new FileOutputStream(new File(dir,
+				"test.dbf"));
+		dbfOut.write(dbf.toByteArray());
+		dbfOut.close();
+	}
+
+	private static byte[] header(int length, int type) {
+		ByteBuffer bb = ByteBuffer.allocate(100);
+		bb.putInt(9994).position(24);
+		bb.putInt(length / 2);
+		bb.order(ByteOrder.LITTLE_ENDIAN).putInt(1000).putInt(type);
+		return bb.array();
+	}
+
+	private static byte[] field(String name, char type, int width,
+			int decimals) {
+		byte[] f = new byte[32];
+		System.arraycopy(name.getBytes(), 0, f, 0, name.length());
+		f[11] = (byte) type;
+		f[16] = (byte) width;
+		f[17] = (byte) decimals;
+		return f;
+	}
+
+	public void testConvert() throws Exception {
+		File shp = writePolygons();
+		ExtractorJob job = new ExtractorJob();
+		job.setSchemaName("public");
+		job.setTableName("canvec_test");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NativeShapeConverter().convert(shp, job, "LATIN1",
+				ShapeConverter.DROP_CREATE | ShapeConverter.CREATE_INDEX, out);
+		String[] lines = out.toString("UTF-8").split("\n");
+
+		String square = "0106000020E6100000" + "01000000" + "0103000000"
+				+ "02000000" + "05000000";
+		assertEquals("SET CLIENT_ENCODING TO UTF8;", lines[0]);
+		assertEquals("SET STANDARD_CONFORMING_STRINGS TO ON;", lines[1]);
+		assertEquals(
+				"SELECT DropGeometryColumn('public','canvec_test','geom');",
+				lines[2]);
+		assertEquals("DROP TABLE \"public\".\"canvec_test\";", lines[3]);
+		assertEquals("BEGIN;", lines[4]);
+		assertEquals("CREATE TABLE \"public\".\"canvec_test\" (gid serial,",
+				lines[5]);
+		assertEquals("\"code\" int4,", lines[6]);
+		assertEquals("\"name\" varchar(10));", lines[7]);
+		assertEquals(
+				"ALTER TABLE \"public\".\"canvec_test\" ADD PRIMARY KEY (gid);",
+				lines[8]);
+		assertEquals(
+				"SELECT AddGeometryColumn('public','canvec_test','geom','4326','MULTIPOLYGON',2);",
+				lines[9]);
+		String insert = "INSERT INTO \"public\".\"canvec_test\" (\"code\",\"name\",geom) VALUES (";
+		assertTrue(lines[10].startsWith(insert + "'1180009','O''Hareé','"
+				+ square));
+		assertEquals(insert + "NULL,NULL,NULL);", lines[11]);
+		assertEquals(
+				"CREATE INDEX ON \"public\".\"canvec_test\" USING GIST (\"geom\");",
+				lines[12]);
+		assertEquals("COMMIT;", lines[13]);
+		assertEquals("ANALYZE \"public\".\"canvec_test\";", lines[14]);
+		assertEquals(15, lines.length);
+	}
+
+	public void testAppend() throws Exception {
+		File shp = writePolygons();
+		ExtractorJob job = new ExtractorJob();
+		job.setSchemaName("public");
+		job.setTableName("canvec_test");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NativeShapeConverter().convert(shp, job, "LATIN1", 0, out);
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals("BEGIN;", lines[2]);
+		assertTrue(lines[3].startsWith("INSERT INTO"));
+		assertEquals("COMMIT;", lines[5]);
+		assertEquals(7, lines.length);
+	}
+
+	public void testCopy() throws Exception {
+		File shp = writePolygons();
+		ExtractorJob job = new ExtractorJob();
+		job.setSchemaName("public");
+		job.setTableName("canvec_test");
+		job.setFormat(ExtractorJob.FORMAT_COPY);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NativeShapeConverter().convert(shp, job, "LATIN1", 0, out);
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals("BEGIN;", lines[2]);
+		assertEquals(
+				"COPY \"public\".\"canvec_test\" (\"code\",\"name\",geom) FROM stdin;",
+				lines[3]);
+		assertTrue(lines[4].startsWith("1180009\tO'Hareé\t0106000020E6100000"));
+		assertEquals("\\N\t\\N\t\\N", lines[5]);
+		assertEquals("\\.", lines[6]);
+		assertEquals("COMMIT;", lines[7]);
+		assertEquals(9, lines.length);
+	}
+
+	public void testBinary() throws Exception {
+		File shp = writePolygons();
+		ExtractorJob job = new ExtractorJob();
+		job.setSchemaName("public");
+		job.setTableName("canvec_test");
+		job.setFormat(ExtractorJob.FORMAT_BINARY);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NativeShapeConverter().convert(shp, job, "LATIN1",
+				ShapeConverter.DROP_CREATE, out);
+		ByteBuffer bb = ByteBuffer.wrap(out.toByteArray());
+		// The first tuple: code, name and geometry.
+		assertEquals(3, bb.getShort());
+		assertEquals(4, bb.getInt());
+		assertEquals(1180009, bb.getInt());
+		byte[] name = new byte[bb.getInt()];
+		bb.get(name);
+		assertEquals("O'Hareé", new String(name, "UTF-8"));
+		int length = bb.getInt();
+		assertEquals(1, bb.get());
+		bb.position(bb.position() + length - 1);
+		// The second is all nulls.
+		assertEquals(3, bb.getShort());
+		assertEquals(-1, bb.getInt());
+		assertEquals(-1, bb.getInt());
+		assertEquals(-1, bb.getInt());
+		assertFalse(bb.hasRemaining());
+	}
+
+	public void testNumericTypes() throws Exception {
+		File shp = writePolygons();
+		// A narrow integer, and a number more precise than a double.
+		writeDbf(new byte[][] { field("KIND", 'N', 4, 0),
+				field("AREA", 'N', 18, 16) }, "   120.1234567890123456",
+				" **********************");
+		ExtractorJob job = new ExtractorJob();
+		job.setSchemaName("public");
+		job.setTableName("canvec_test");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NativeShapeConverter().convert(shp, job, "LATIN1",
+				ShapeConverter.DROP_CREATE, out);
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals("\"kind\" int2,", lines[6]);
+		assertEquals("\"area\" numeric);", lines[7]);
+
+		job.setFormat(ExtractorJob.FORMAT_BINARY);
+		out = new ByteArrayOutputStream();
+		new NativeShapeConverter().convert(shp, job, "LATIN1",
+				ShapeConverter.DROP_CREATE, out);
+		ByteBuffer bb = ByteBuffer.wrap(out.toByteArray());
+		assertEquals(3, bb.getShort());
+		assertEquals(2, bb.getInt());
+		assertEquals(12, bb.getShort());
+		int length = bb.getInt();
+		assertEquals(16, length);
+		assertEquals(4, bb.getShort());
+		assertEquals(-1, bb.getShort());
+		assertEquals(0, bb.getShort());
+		assertEquals(16, bb.getShort());
+		assertEquals(1234, bb.getShort());
+		bb.position(bb.position() + length - 10);
+		length = bb.getInt();
+		bb.position(bb.position() + length);
+		assertEquals(3, bb.getShort());
+		assertEquals(-1, bb.getInt());
+		assertEquals(-1, bb.getInt());
+		assertEquals(-1, bb.getInt());
+		assertFalse(bb.hasRemaining());
+	}
+
+	public void testColumnTypes() {
+		assertEquals("int2", columnType('N', 4, 0));
+		assertEquals("int4", columnType('N', 5, 0));
+		assertEquals("int4", columnType('N', 9, 0));
+		assertEquals("float8", columnType('N', 10, 0));
+		assertEquals("float8", columnType('N', 18, 15));
+		assertEquals("numeric", columnType('N', 18, 16));
+		assertEquals("numeric", columnType('N', 19, 0));
+		assertEquals("float8", columnType('F', 12, 3));
+		assertEquals("varchar(8)", columnType('C', 8, 0));
+	}
+
+	private static String columnType(char type, int width, int decimals) {
+		return NativeShapeConverter.columnType(new DbfReader.Field("F", type,
+				width, decimals));
+	}
+}
@@ -0,0 +1,65 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ParallelGzipOutputStream}.
+ */
+public class ParallelGzipOutputStreamTest extends TestCase {
+
+	private ExecutorService pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		pool = Executors.newFixedThreadPool(3);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pool.shutdownNow();
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) > -1)
+			out.write(buf, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
+
+	public void testRoundTrip() throws Exception {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < 50000; ++i)
+			str.append("INSERT INTO \"public\".\"canvec\" VALUES (").append(i)
+					.append(");\n");
+		byte[] data = str.toString().getBytes("UTF-8");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes,
+				pool, 1, 100000, 2);
+		out.write(data, 0, 1000);
+		out.write(data[1000]);
+		out.write(data, 1001, data.length - 1001);
+		out.close();
+		byte[] gz = bytes.toByteArray();
+		assertTrue(gz.length < data.length / 4);
+		assertTrue(Arrays.equals(data, gunzip(gz)));
+	}
+
+	public void testEmpty() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new ParallelGzipOutputStream(bytes, pool, 6, 1024, 4).close();
+		assertEquals(0, gunzip(bytes.toByteArray()).length);
+	}
+}
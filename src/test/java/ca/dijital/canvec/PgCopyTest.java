@@ -0,0 +1,63 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PgCopy}.
+ */
+public class PgCopyTest extends TestCase {
+
+	private static ByteBuffer encodeNumeric(String value) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PgCopy.writeNumeric(new DataOutputStream(bytes), value);
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	private static void assertNumeric(String value, int weight, int sign,
+			int dscale, int... digits) throws Exception {
+		ByteBuffer bb = encodeNumeric(value);
+		assertEquals(8 + digits.length * 2, bb.getInt());
+		assertEquals(digits.length, bb.getShort());
+		assertEquals(weight, bb.getShort());
+		assertEquals(sign, bb.getShort());
+		assertEquals(dscale, bb.getShort());
+		for (int digit : digits)
+			assertEquals(digit, bb.getShort());
+		assertFalse(bb.hasRemaining());
+	}
+
+	public void testNumeric() throws Exception {
+		assertNumeric("0", 0, 0, 0);
+		assertNumeric("12345678.9", 1, 0, 1, 1234, 5678, 9000);
+		assertNumeric("-0.0001", -1, 0x4000, 4, 1);
+		assertNumeric("0.00000001", -2, 0, 8, 1);
+		assertNumeric("10000", 1, 0, 0, 1);
+	}
+
+	public void testDate() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		PgCopy.writeDate(out, "20000101");
+		PgCopy.writeDate(out, "19991231");
+		PgCopy.writeDate(out, "20240301");
+		ByteBuffer bb = ByteBuffer.wrap(bytes.toByteArray());
+		assertEquals(4, bb.getInt());
+		assertEquals(0, bb.getInt());
+		assertEquals(4, bb.getInt());
+		assertEquals(-1, bb.getInt());
+		assertEquals(4, bb.getInt());
+		assertEquals(8826, bb.getInt());
+	}
+
+	public void testText() {
+		StringBuilder str = new StringBuilder();
+		PgCopy.appendText(str, "a\tb\\c\n");
+		str.append('|');
+		PgCopy.appendText(str, null);
+		assertEquals("a\\tb\\\\c\\n|\\N", str.toString());
+	}
+}
@@ -0,0 +1,106 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ShardMerger}.
+ */
+public class ShardMergerTest extends TestCase {
+
+	private File dir;
+	private ExtractorJob job;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("canvec_test_", "");
+		dir.delete();
+		dir.mkdirs();
+		job = new ExtractorJob();
+		job.setPattern("1180009");
+		job.setSchemaName("public");
+		job.setTableName("petro");
+		job.setOutFile(new File(dir, "petro.sql").getPath());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	public void testGetShard() throws Exception {
+		File root = new File("/data/canvec");
+		int[] counts = new int[3];
+		for (int i = 0; i < 300; ++i) {
+			File archive = new File(root, "021/h/021h" + i + ".zip");
+			int shard = ShardMerger.getShard(root, archive, 3);
+			assertTrue(shard >= 1 && shard <= 3);
+			// The shard depends only on the path under the CanVec directory.
+			assertEquals(shard, ShardMerger.getShard(new File("/mnt/canvec"),
+					new File("/mnt/canvec/021/h/021h" + i + ".zip"), 3));
+			++counts[shard - 1];
+		}
+		for (int count : counts)
+			assertTrue(count > 0);
+	}
+
+	public void testMerge() throws Exception {
+		File outFile = new File(job.getOutFile());
+		write(ShardMerger.getPartFile(outFile, 1, 3), "create;\n");
+		write(ShardMerger.getPartFile(outFile, 2, 3), "");
+		write(ShardMerger.getPartFile(outFile, 3, 3), "insert;\nindex;\n");
+		ShardMerger.merge(job, 3);
+		assertEquals("create;\ninsert;\nindex;\n", read(outFile));
+		assertFalse(ShardMerger.getPartFile(outFile, 1, 3).exists());
+	}
+
+	public void testMergeBinary() throws Exception {
+		job.setFormat(ExtractorJob.FORMAT_BINARY);
+		File outFile = new File(job.getOutFile());
+		write(ShardMerger.getPartFile(outFile, 1, 1), "rows");
+		ShardMerger.merge(job, 1);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		PgCopy.writeHeader(expected);
+		expected.write("rows".getBytes("UTF-8"));
+		PgCopy.writeTrailer(expected);
+		assertEquals(expected.toString("ISO-8859-1"), read(outFile));
+	}
+
+	public void testMissingPart() throws Exception {
+		File outFile = new File(job.getOutFile());
+		write(ShardMerger.getPartFile(outFile, 1, 2), "create;\n");
+		write(ShardMerger.getInProgressFile(ShardMerger.getPartFile(outFile,
+				2, 2)), "insert;\n");
+		try {
+			ShardMerger.merge(job, 2);
+			fail("Merged an unfinished shard.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertTrue(ShardMerger.getPartFile(outFile, 1, 2).exists());
+	}
+
+	private static void write(File file, String str) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(str.getBytes("UTF-8"));
+		out.close();
+	}
+
+	private static String read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1)
+			out.write(buf, 0, read);
+		in.close();
+		return out.toString("ISO-8859-1");
+	}
+}
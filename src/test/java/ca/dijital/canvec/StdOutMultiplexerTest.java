@@ -0,0 +1,49 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link StdOutMultiplexer}.
+ */
+public class StdOutMultiplexerTest extends TestCase {
+
+	public void testOrdering() throws Exception {
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		File tempDir = new File(System.getProperty("java.io.tmpdir"));
+		StdOutMultiplexer mux = new StdOutMultiplexer(new StdOutWriter(
+				Channels.newChannel(stdout)), stdout, tempDir, true, null);
+		mux.start();
+		ExtractorJob a = new ExtractorJob();
+		ExtractorJob b = new ExtractorJob();
+		ExtractorJob c = new ExtractorJob();
+
+		// The first job writes directly; the others are buffered.
+		OutputStream outA = mux.open(a);
+		assertNull(a.getTempFile());
+		OutputStream outB = mux.open(b);
+		OutputStream outC = mux.open(c);
+		assertNotNull(b.getTempFile());
+		outA.write("a1\n".getBytes());
+		outC.write("c\n".getBytes());
+		outC.close();
+		mux.finished(c, true);
+		outB.write("b\n".getBytes());
+		outB.close();
+		mux.finished(b, false);
+		outA.write("a2\n".getBytes());
+		outA.close();
+		assertEquals("a1\na2\n", stdout.toString());
+		mux.finished(a, true);
+
+		assertTrue(mux.close());
+		// The failed job is dropped; its file and the written one are gone.
+		assertEquals("a1\na2\nc\n", stdout.toString());
+		assertFalse(b.getTempFile().exists());
+		assertFalse(c.getTempFile().exists());
+	}
+}
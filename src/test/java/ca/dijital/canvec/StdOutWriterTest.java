@@ -0,0 +1,53 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link StdOutWriter}.
+ */
+public class StdOutWriterTest extends TestCase {
+
+	private File in;
+	private File out;
+	private byte[] data;
+
+	@Override
+	protected void setUp() throws Exception {
+		in = File.createTempFile("canvec_test_", ".tmp");
+		out = File.createTempFile("canvec_test_", ".tmp");
+		data = new byte[3 * 1024 * 1024 + 17];
+		new Random(1).nextBytes(data);
+		FileOutputStream fout = new FileOutputStream(in);
+		fout.write(data);
+		fout.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		in.delete();
+		out.delete();
+	}
+
+	public void testWriteToFile() throws Exception {
+		FileOutputStream fout = new FileOutputStream(out);
+		StdOutWriter writer = new StdOutWriter(fout.getChannel());
+		assertEquals(data.length, writer.write(in));
+		assertEquals(data.length, writer.write(in));
+		fout.close();
+		assertEquals(2L * data.length, out.length());
+	}
+
+	public void testWriteToStream() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		StdOutWriter writer = new StdOutWriter(Channels.newChannel(bytes));
+		assertEquals(data.length, writer.write(in));
+		assertTrue(Arrays.equals(data, bytes.toByteArray()));
+	}
+}
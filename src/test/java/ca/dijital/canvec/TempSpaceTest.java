@@ -0,0 +1,123 @@
+package ca.dijital.canvec;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TempSpace}.
+ */
+public class TempSpaceTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("canvec_test_", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private File touch(String name) throws Exception {
+		File file = new File(dir, name);
+		file.createNewFile();
+		return file;
+	}
+
+	public void testDeletedAfterLastRelease() throws Exception {
+		TempSpace space = new TempSpace(0, true);
+		File shp = new File(dir, "a.shp");
+		assertTrue(space.acquire(shp, Arrays.asList(shp), 10));
+		touch("a.shp");
+		space.ready(shp);
+		// A second job shares the extracted file.
+		assertFalse(space.acquire(shp, Arrays.asList(shp), 10));
+		assertEquals(10, space.getUsed());
+		space.release(shp);
+		assertTrue(shp.exists());
+		space.release(shp);
+		assertFalse(shp.exists());
+		assertEquals(0, space.getUsed());
+	}
+
+	public void testBudget() throws Exception {
+		final TempSpace space = new TempSpace(15, true);
+		final File a = new File(dir, "a.shp");
+		final File b = new File(dir, "b.shp");
+		// Larger than the budget, but nothing else is held.
+		assertTrue(space.acquire(a, Arrays.asList(a), 20));
+		space.ready(a);
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				space.release(a);
+			}
+		};
+		releaser.start();
+		long start = System.currentTimeMillis();
+		assertTrue(space.acquire(b, Arrays.asList(b), 10));
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertEquals(10, space.getUsed());
+		assertEquals(20, space.getPeak());
+		releaser.join();
+	}
+
+	public void testFailedExtraction() throws Exception {
+		final TempSpace space = new TempSpace(0, true);
+		final File shp = new File(dir, "a.shp");
+		assertTrue(space.acquire(shp, Arrays.asList(shp), 10));
+		final Exception[] thrown = new Exception[1];
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					space.acquire(shp, Arrays.asList(shp), 10);
+				} catch (Exception e) {
+					thrown[0] = e;
+				}
+			}
+		};
+		waiter.start();
+		while (waiter.getState() != Thread.State.WAITING)
+			Thread.sleep(5);
+		space.failed(shp);
+		waiter.join();
+		assertNotNull(thrown[0]);
+		assertEquals(0, space.getUsed());
+	}
+
+	public void testHeldSegment() throws Exception {
+		final TempSpace space = new TempSpace(15, true);
+		final File segment = touch("seg.tmp");
+		File shp = new File(dir, "a.shp");
+		// A segment is counted, but isn't deleted when it's released.
+		space.hold(segment, 10);
+		assertEquals(10, space.getUsed());
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				space.release(segment);
+			}
+		};
+		releaser.start();
+		long start = System.currentTimeMillis();
+		assertTrue(space.acquire(shp, Arrays.asList(shp), 10));
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertTrue(segment.exists());
+		assertEquals(10, space.getUsed());
+		releaser.join();
+	}
+}
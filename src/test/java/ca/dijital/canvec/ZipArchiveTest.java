@@ -0,0 +1,106 @@
+package ca.dijital.canvec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ZipArchive} read through a {@link CachingSource}.
+ */
+public class ZipArchiveTest extends TestCase {
+
+	private File file;
+	private byte[] random;
+	private byte[] text;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("canvec_test_", ".zip");
+		random = new byte[300000];
+		new Random(1).nextBytes(random);
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < 20000; ++i)
+			str.append("feature ").append(i).append('\n');
+		text = str.toString().getBytes("UTF-8");
+
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+		ZipEntry stored = new ZipEntry("021m07_1180009_0.shp");
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(random.length);
+		CRC32 crc = new CRC32();
+		crc.update(random);
+		stored.setCrc(crc.getValue());
+		out.putNextEntry(stored);
+		out.write(random);
+		out.putNextEntry(new ZipEntry("021m07_1180009_0.dbf"));
+		out.write(text);
+		out.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1000];
+		int read;
+		while ((read = in.read(buf)) > -1)
+			out.write(buf, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
+
+	public void testRead() throws Exception {
+		LatencySource latency = new LatencySource(new FileSource(file), 0);
+		ZipArchive archive = new ZipArchive(new CachingSource(latency, 4096,
+				64, 16), file.getName());
+		try {
+			assertEquals(2, archive.getEntries().size());
+			ZipEntry shp = archive.getEntry("021m07_1180009_0.shp");
+			assertEquals(random.length, shp.getSize());
+			long before = latency.getReadCount();
+			assertTrue(Arrays.equals(random,
+					readAll(archive.getInputStream(shp))));
+			// 74 blocks, read ahead in growing runs.
+			assertTrue(latency.getReadCount() - before < 12);
+			assertTrue(Arrays.equals(text, readAll(archive
+					.getInputStream(archive.getEntry("021m07_1180009_0.dbf")))));
+			assertNull(archive.getEntry("missing"));
+		} finally {
+			archive.close();
+		}
+	}
+
+	public void testCorruptEntry() throws Exception {
+		// Flip a byte in the stored entry's data.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(1000);
+		int b = raf.read();
+		raf.seek(1000);
+		raf.write(b ^ 0xff);
+		raf.close();
+		ZipArchive archive = new ZipArchive(new FileSource(file),
+				file.getName());
+		try {
+			readAll(archive.getInputStream(archive
+					.getEntry("021m07_1180009_0.shp")));
+			fail("The corrupt entry was read.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Corrupt entry"));
+		} finally {
+			archive.close();
+		}
+	}
+}